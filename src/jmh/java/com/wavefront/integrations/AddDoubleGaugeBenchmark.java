@@ -0,0 +1,69 @@
+package com.wavefront.integrations;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures reporting one attribute of a StorageMetrics event: decoding its value, looking up its metric and sending
+ * the point.  Attributes are either plain numbers or "rate roughness total" counters.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AddDoubleGaugeBenchmark {
+
+    private static final String SCOPE = "4500";
+
+    @Param({"Version", "QueryQueue", "BytesInput"})
+    public String attribute;
+
+    private NullWavefrontSender sender;
+
+    private FDBLogListener listener;
+
+    private TraceLineScanner event;
+
+    private int index;
+
+    @Setup
+    public void setUp() throws IOException {
+        sender = new NullWavefrontSender();
+        listener = BenchmarkEvents.listener(sender);
+        event = new TraceLineScanner();
+        if (!event.scan(BenchmarkEvents.traceLine(BenchmarkEvents.event("StorageMetrics")))) {
+            throw new IllegalStateException("Cannot scan the sample StorageMetrics event");
+        }
+        index = event.indexOf(attribute);
+        if (index == -1) {
+            throw new IllegalStateException("The sample StorageMetrics event has no " + attribute);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        if (sender.checksum() == 0) {
+            throw new IllegalStateException("No points were sent");
+        }
+    }
+
+    @Benchmark
+    public void addDoubleGauge() throws IOException {
+        listener.addDoubleGauge(event, SCOPE, attribute, index, MetricRules.VALUE_TOTAL);
+    }
+}
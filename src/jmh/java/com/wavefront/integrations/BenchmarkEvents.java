@@ -0,0 +1,65 @@
+package com.wavefront.integrations;
+
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SharedMetricRegistries;
+import com.google.common.base.Charsets;
+import com.google.common.io.Resources;
+import com.wavefront.sdk.common.WavefrontSender;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Trace events and listeners for the benchmarks.
+ *
+ * The events, one per line of {@code benchmark-events.xml}, are copied from the trace files of a storage server.
+ */
+final class BenchmarkEvents {
+
+    private static final String RESOURCE = "benchmark-events.xml";
+
+    static final String PREFIX = "fdb.";
+
+    private BenchmarkEvents() {
+    }
+
+    /**
+     * @return Every sample event, in the order of the resource.
+     */
+    static List<String> events() throws IOException {
+        return Resources.readLines(Resources.getResource(BenchmarkEvents.class, RESOURCE), Charsets.UTF_8);
+    }
+
+    /**
+     * @return The sample event of the given type.
+     */
+    static String event(String type) throws IOException {
+        for (String event : events()) {
+            if (event.contains(" Type=\"" + type + "\"")) {
+                return event;
+            }
+        }
+        throw new IllegalArgumentException("No sample event of type " + type);
+    }
+
+    /**
+     * @return The line as the tailer hands it to listeners, as a view of the bytes it read.
+     */
+    static TraceLine traceLine(String line) {
+        byte[] bytes = line.getBytes(Charsets.UTF_8);
+        return new TraceLine().set(ByteBuffer.wrap(bytes), 0, bytes.length);
+    }
+
+    /**
+     * @return A listener with the built-in rules, sending to the given sender.
+     */
+    static synchronized FDBLogListener listener(WavefrontSender sender) {
+        if (SharedMetricRegistries.tryGetDefault() == null) {
+            SharedMetricRegistries.setDefault("defaultFDBMetrics", new MetricRegistry());
+        }
+        MetricStore values = new MetricStore(new MetricRegistry(), PREFIX, false, 100_000, 15);
+        return new FDBLogListener(PREFIX, values, sender, "fdbtailer", Collections.emptyList());
+    }
+}
@@ -0,0 +1,95 @@
+package com.wavefront.integrations;
+
+import com.codahale.metrics.Counter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures handling one line of each type metrics are taken from, in ns per line.
+ *
+ * {@link #handleLine()} covers the whole of it, while {@link #handleEvent()} leaves out scanning the line, and so
+ * measures applying the rules to the event's attributes and sending the points.  {@link #handleEventCoalesced()}
+ * sends them through a {@link CoalescingSender}, flushed every thousand events, as a listener does when points are
+ * coalesced.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HandleLineBenchmark {
+
+    @Param({"StorageMetrics", "RedwoodMetrics", "ProcessMetrics", "MemSample"})
+    public String type;
+
+    private NullWavefrontSender sender;
+
+    private FDBLogListener listener;
+
+    private NullWavefrontSender coalescedSender;
+
+    private CoalescingSender coalescingSender;
+
+    private FDBLogListener coalescingListener;
+
+    private int events;
+
+    private TraceLine line;
+
+    private TraceLineScanner event;
+
+    @Setup
+    public void setUp() throws IOException {
+        String text = BenchmarkEvents.event(type);
+        sender = new NullWavefrontSender();
+        listener = BenchmarkEvents.listener(sender);
+        coalescedSender = new NullWavefrontSender();
+        coalescingSender = new CoalescingSender(coalescedSender, 60_000, new Counter());
+        coalescingListener = BenchmarkEvents.listener(coalescingSender);
+        line = BenchmarkEvents.traceLine(text);
+        event = new TraceLineScanner();
+        if (!event.scan(line)) {
+            throw new IllegalStateException("Cannot scan the sample " + type + " event");
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        coalescingSender.flush();
+        if (sender.checksum() == 0 && coalescedSender.checksum() == 0) {
+            throw new IllegalStateException("No points were sent");
+        }
+    }
+
+    @Benchmark
+    public void handleLine() {
+        listener.handleLine(line);
+    }
+
+    @Benchmark
+    public void handleEvent() throws IOException {
+        listener.handleEvent(event);
+    }
+
+    @Benchmark
+    public void handleEventCoalesced() throws IOException {
+        coalescingListener.handleEvent(event);
+        if (++events % 1000 == 0) {
+            coalescingSender.flush();
+        }
+    }
+}
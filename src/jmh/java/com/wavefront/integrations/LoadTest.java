@@ -0,0 +1,209 @@
+package com.wavefront.integrations;
+
+import com.beust.jcommander.JCommander;
+import com.beust.jcommander.Parameter;
+import com.codahale.metrics.Snapshot;
+import com.google.common.base.Splitter;
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Files;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Runs the whole tailer against synthetic trace files written at a given rate, with a local {@link ProxySink} in place
+ * of the Wavefront proxy, and reports how well it keeps up.
+ *
+ * Every report interval, and over the whole run after the warm-up, it logs the lines written and read per second, the
+ * points received per second, the lag from a line being written to its points arriving, the CPU used by the tailer,
+ * and the heap in use.  Lines are counted as read once points of a later line have arrived.  The tailer's CPU is that
+ * of the whole process less the generator's and the sink's threads.  A rate the tailer cannot sustain shows as read
+ * lines falling behind written ones, and a growing lag; {@code --linesPerSecond 0} writes as fast as possible.
+ *
+ * The proxy sender writes points out when its buffer fills or once a minute, so at low rates the lag is mostly that.
+ */
+public class LoadTest {
+
+    private static final Logger logger = Logger.getLogger(LoadTest.class.getCanonicalName());
+
+    static class Arguments {
+
+        @Parameter(names = {"--dir"}, description = "The directory trace files are written to.  Defaults to a new " +
+                "temporary directory, deleted at exit.")
+        private String directory;
+
+        @Parameter(names = {"--processes"}, description = "The number of processes writing trace files.")
+        private int processes = 8;
+
+        @Parameter(names = {"--linesPerSecond"}, description = "The number of lines written per second over all " +
+                "processes, or 0 for as many as possible.")
+        private long linesPerSecond = 10_000;
+
+        @Parameter(names = {"--mix"}, description = "The relative number of events of every type, as " +
+                "<type>=<weight>,...  Types are those of the sample events.")
+        private String mix = "StorageMetrics=1,RedwoodMetrics=1,ProcessMetrics=1,MemSample=4,Net2SlowTaskTrace=13";
+
+        @Parameter(names = {"--lineBytes"}, description = "The minimum length of a line; shorter events are padded.")
+        private int lineBytes = 0;
+
+        @Parameter(names = {"--rollBytes"}, description = "The size at which a process rolls to its next file.")
+        private long rollBytes = 10 * 1024 * 1024;
+
+        @Parameter(names = {"--keepFiles"}, description = "The number of files of every process kept, the oldest " +
+                "being deleted, or 0 to keep them all.")
+        private int keepFiles = 0;
+
+        @Parameter(names = {"--durationSeconds"}, description = "How long to write for, including the warm-up.")
+        private long durationSeconds = 60;
+
+        @Parameter(names = {"--warmupSeconds"}, description = "How long to write for before measuring the run.")
+        private long warmupSeconds = 10;
+
+        @Parameter(names = {"--reportSeconds"}, description = "How often progress is logged.")
+        private long reportSeconds = 5;
+
+        @Parameter(names = {"--tailerThreads"}, description = "The tailer's --tailerThreads, or 0 for its default.")
+        private int tailerThreads = 0;
+
+        @Parameter(names = {"--parseThreads"}, description = "The tailer's --parseThreads.")
+        private int parseThreads = 0;
+
+        @Parameter(names = {"--coalesceSeconds"}, description = "The tailer's --coalesceSeconds.  Coalescing holds " +
+                "points back, so it is off by default.")
+        private long coalesceSeconds = 0;
+
+        @Parameter(names = {"--help", "-h"}, help = true, description = "Prints available options.")
+        private boolean help;
+    }
+
+    /**
+     * The counts everything is measured by, at one moment.
+     */
+    private static final class Sample {
+
+        final long nanos = System.nanoTime();
+
+        final long written;
+
+        final long read;
+
+        final long bytes;
+
+        final long points;
+
+        final long tailerCpuNanos;
+
+        Sample(TraceGenerator generator, ProxySink sink, Thread generatorThread) {
+            ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+            long processCpuNanos = ((com.sun.management.OperatingSystemMXBean)
+                    ManagementFactory.getOperatingSystemMXBean()).getProcessCpuTime();
+            long generatorCpuNanos = Math.max(threads.getThreadCpuTime(generatorThread.getId()), 0);
+            this.written = generator.getLines();
+            this.read = generator.getLinesUpTo(sink.getWatermark());
+            this.bytes = generator.getBytes();
+            this.points = sink.getPoints();
+            this.tailerCpuNanos = processCpuNanos - generatorCpuNanos - sink.getCpuNanos();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Arguments arguments = new Arguments();
+        JCommander jCommander = new JCommander(arguments, args);
+        if (arguments.help) {
+            jCommander.setProgramName(LoadTest.class.getCanonicalName());
+            jCommander.usage();
+            return;
+        }
+
+        File directory;
+        if (arguments.directory == null) {
+            directory = Files.createTempDirectory("fdb-load-test").toFile();
+            File created = directory;
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> FileUtils.deleteQuietly(created)));
+        } else {
+            directory = new File(arguments.directory);
+        }
+        Map<String, Integer> mix = new LinkedHashMap<>();
+        for (Map.Entry<String, String> entry :
+                Splitter.on(',').trimResults().withKeyValueSeparator('=').split(arguments.mix).entrySet()) {
+            mix.put(entry.getKey(), Integer.parseInt(entry.getValue()));
+        }
+        TraceGenerator generator = new TraceGenerator(directory, mix, arguments.processes, arguments.linesPerSecond,
+                arguments.lineBytes, arguments.rollBytes, arguments.keepFiles);
+        ProxySink sink = new ProxySink();
+
+        FDBMetricsReporterArguments reporterArguments = new FDBMetricsReporterArguments();
+        reporterArguments.setReporterType(FDBMetricsReporterArguments.ReporterType.PROXY);
+        reporterArguments.setProxyHost("127.0.0.1");
+        reporterArguments.setProxyPort(sink.getPort());
+        reporterArguments.setDirectory(directory.getAbsolutePath());
+        reporterArguments.setMatching("trace\\..*\\.xml");
+        reporterArguments.setCoalesceSeconds(arguments.coalesceSeconds);
+        reporterArguments.setParseThreads(arguments.parseThreads);
+        if (arguments.tailerThreads > 0) {
+            reporterArguments.setTailerThreads(arguments.tailerThreads);
+        }
+        // Events are stamped a day in the past.
+        reporterArguments.setMaxLatenessSeconds(0);
+        FDBMetricsReporter reporter = new FDBMetricsReporter(reporterArguments);
+        reporter.start();
+
+        logger.info("Writing " + (arguments.linesPerSecond == 0 ? "as many" : arguments.linesPerSecond) +
+                " lines/s from " + arguments.processes + " processes to " + directory + ", sending to port " +
+                sink.getPort());
+        Thread generatorThread = new Thread(generator, "fdb-load-generator");
+        generatorThread.setDaemon(true);
+        generatorThread.start();
+
+        long start = System.nanoTime();
+        long end = start + TimeUnit.SECONDS.toNanos(arguments.durationSeconds);
+        long warmupEnd = start + TimeUnit.SECONDS.toNanos(arguments.warmupSeconds);
+        Sample previous = new Sample(generator, sink, generatorThread);
+        Sample measured = null;
+        long maxHeapBytes = 0;
+        while (System.nanoTime() < end) {
+            Thread.sleep(TimeUnit.SECONDS.toMillis(arguments.reportSeconds));
+            Sample current = new Sample(generator, sink, generatorThread);
+            long heapBytes = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+            logger.info(describe(previous, current, sink.takeLags().getSnapshot(), heapBytes));
+            if (measured == null && current.nanos >= warmupEnd) {
+                measured = current;
+                maxHeapBytes = 0;
+            }
+            maxHeapBytes = Math.max(maxHeapBytes, heapBytes);
+            previous = current;
+        }
+        generator.stop();
+
+        if (measured == null || measured == previous) {
+            logger.warning("The run ended before any time was measured after the warm-up");
+        } else {
+            logger.info(String.format("Over %.0f s after the warm-up: %s, max heap %d MB, %d files rolled, " +
+                            "%d lines behind at the end", (previous.nanos - measured.nanos) / 1e9,
+                    describeRates(measured, previous), maxHeapBytes >> 20, generator.getRolledFiles(),
+                    previous.written - previous.read));
+        }
+        sink.close();
+        System.exit(0);
+    }
+
+    private static String describe(Sample from, Sample to, Snapshot lags, long heapBytes) {
+        return String.format("%s, lag p50 %.0f ms p99 %.0f ms max %d ms, heap %d MB", describeRates(from, to),
+                lags.getMedian(), lags.get99thPercentile(), lags.getMax(), heapBytes >> 20);
+    }
+
+    private static String describeRates(Sample from, Sample to) {
+        double seconds = Math.max(to.nanos - from.nanos, 1) / 1e9;
+        double cpuSeconds = (to.tailerCpuNanos - from.tailerCpuNanos) / 1e9;
+        long read = to.read - from.read;
+        return String.format("wrote %.0f lines/s (%.1f MB/s), read %.0f lines/s, received %.0f points/s, " +
+                        "tailer CPU %.0f%% of a core (%.0f lines per CPU second)", (to.written - from.written) / seconds,
+                (to.bytes - from.bytes) / 1e6 / seconds, read / seconds, (to.points - from.points) / seconds,
+                cpuSeconds * 100 / seconds, cpuSeconds > 0 ? read / cpuSeconds : 0);
+    }
+}
@@ -0,0 +1,69 @@
+package com.wavefront.integrations;
+
+import com.wavefront.sdk.common.Pair;
+import com.wavefront.sdk.common.WavefrontSender;
+import com.wavefront.sdk.entities.histograms.HistogramGranularity;
+import com.wavefront.sdk.entities.tracing.SpanLog;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * A {@link WavefrontSender} that only counts the points sent to it, so that benchmarks measure what leads up to sending.
+ */
+class NullWavefrontSender implements WavefrontSender {
+
+    private long points;
+
+    private double sum;
+
+    @Override
+    public void sendMetric(String name, double value, Long timestamp, String source, Map<String, String> tags) {
+        // Using the arguments keeps the JIT from removing the work that produced them.
+        points += name.length() + tags.size();
+        sum += value;
+    }
+
+    @Override
+    public void sendFormattedMetric(String point) {
+    }
+
+    @Override
+    public void sendDistribution(String name, List<Pair<Double, Integer>> centroids,
+                                 Set<HistogramGranularity> histogramGranularities, Long timestamp, String source,
+                                 Map<String, String> tags) {
+    }
+
+    @Override
+    public void sendSpan(String name, long startMillis, long durationMillis, String source, UUID traceId,
+                         UUID spanId, List<UUID> parents, List<UUID> followsFrom, List<Pair<String, String>> tags,
+                         List<SpanLog> spanLogs) {
+    }
+
+    @Override
+    public String getClientId() {
+        return "null";
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public int getFailureCount() {
+        return 0;
+    }
+
+    @Override
+    public void close() {
+    }
+
+    /**
+     * @return A value that depends on every point sent, for the benchmarks to consume.
+     */
+    double checksum() {
+        return points + sum;
+    }
+}
@@ -0,0 +1,83 @@
+package com.wavefront.integrations;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Timer;
+import com.google.common.collect.ImmutableMap;
+import com.wavefront.sdk.common.WavefrontSender;
+import com.wavefront.sdk.proxy.WavefrontProxyClient;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures sending a point to a proxy on a loopback port, through {@link ProxyLineSender} and, for comparison, through
+ * the SDK's proxy client.  The proxy is a {@link ProxySink}, which only counts what it receives.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProxySendBenchmark {
+
+    private static final Map<String, String> TAGS = ImmutableMap.of("service", "fdbtailer", "cluster_file",
+            "/etc/foundationdb/fdb.cluster");
+
+    private static final String[] NAMES = new String[100];
+
+    static {
+        for (int i = 0; i < NAMES.length; ++i) {
+            NAMES[i] = "fdb.4500.metric_" + i;
+        }
+    }
+
+    @Param({"line", "sdk"})
+    public String sender;
+
+    private ProxySink sink;
+
+    private WavefrontSender wavefrontSender;
+
+    private long sent;
+
+    @Setup
+    public void setUp() throws IOException {
+        sink = new ProxySink();
+        if (sender.equals("line")) {
+            wavefrontSender = new ProxyLineSender("localhost", sink.getPort(), "host-1", 1, new Counter(), new Timer());
+        } else {
+            wavefrontSender = new WavefrontProxyClient.Builder("localhost").metricsPort(sink.getPort())
+                    .flushIntervalSeconds(1).build();
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        wavefrontSender.flush();
+        wavefrontSender.close();
+        sink.close();
+        if (wavefrontSender.getFailureCount() > 0) {
+            throw new IllegalStateException(wavefrontSender.getFailureCount() + " failures sending points");
+        }
+    }
+
+    @Benchmark
+    public void sendMetric() throws IOException {
+        long i = sent++;
+        wavefrontSender.sendMetric(NAMES[(int) (i % NAMES.length)], i, 1706276733452L + i, null, TAGS);
+    }
+}
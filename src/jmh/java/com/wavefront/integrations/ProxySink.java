@@ -0,0 +1,184 @@
+package com.wavefront.integrations;
+
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.UniformReservoir;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A local stand-in for a Wavefront proxy, which accepts points in its line protocol on a loopback port and only
+ * measures them.
+ *
+ * Points taken from the events of a {@link TraceGenerator} carry the event's Time, which is when it was written less
+ * {@link TraceGenerator#TIME_OFFSET_MILLIS}.  Every such point adds to the distribution of the lag from its event being
+ * written to the point arriving, and the latest Time read is kept as a watermark of how far the points have got.  The
+ * tailer's own points, stamped with the time they are sent or not at all, are only counted.
+ */
+final class ProxySink implements Closeable {
+
+    private static final Logger logger = Logger.getLogger(ProxySink.class.getCanonicalName());
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Timestamps below this are in seconds rather than milliseconds.
+     */
+    private static final long MILLIS_THRESHOLD = 100_000_000_000L;
+
+    private final ServerSocketChannel server;
+
+    private final List<Thread> threads = new CopyOnWriteArrayList<>();
+
+    private final LongAdder points = new LongAdder();
+
+    private final AtomicLong watermark = new AtomicLong();
+
+    private final AtomicReference<Histogram> lags = new AtomicReference<>(newLags());
+
+    private volatile boolean closed;
+
+    ProxySink() throws IOException {
+        server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        start("fdb-sink-acceptor", this::accept);
+    }
+
+    private void start(String name, Runnable runnable) {
+        Thread thread = new Thread(runnable, name);
+        thread.setDaemon(true);
+        threads.add(thread);
+        thread.start();
+    }
+
+    private void accept() {
+        while (!closed) {
+            try {
+                SocketChannel channel = server.accept();
+                start("fdb-sink-" + channel.getRemoteAddress(), () -> read(channel));
+            } catch (IOException e) {
+                if (!closed) {
+                    logger.log(Level.WARNING, "Exception accepting a connection", e);
+                }
+            }
+        }
+    }
+
+    private void read(SocketChannel channel) {
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        byte[] bytes = buffer.array();
+        // The field of the line being read, and, in the third, the timestamp read so far or -1 if it is not one.
+        int field = 0;
+        long timestamp = 0;
+        try {
+            int read;
+            while ((read = channel.read(buffer)) != -1) {
+                long now = System.currentTimeMillis();
+                Histogram current = lags.get();
+                for (int i = 0; i < read; ++i) {
+                    byte b = bytes[i];
+                    if (b == '\n') {
+                        if (field == 2) {
+                            record(current, now, timestamp);
+                        }
+                        points.increment();
+                        field = 0;
+                        timestamp = 0;
+                    } else if (b == ' ') {
+                        if (field == 2) {
+                            record(current, now, timestamp);
+                        }
+                        ++field;
+                    } else if (field == 2 && timestamp != -1) {
+                        timestamp = b >= '0' && b <= '9' ? timestamp * 10 + (b - '0') : -1;
+                    }
+                }
+                buffer.clear();
+            }
+        } catch (IOException e) {
+            if (!closed) {
+                logger.log(Level.WARNING, "Exception reading points", e);
+            }
+        } finally {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // It is being discarded anyway.
+            }
+        }
+    }
+
+    private void record(Histogram current, long now, long timestamp) {
+        if (timestamp <= 0) {
+            return;
+        }
+        long millis = timestamp < MILLIS_THRESHOLD ? timestamp * 1000 : timestamp;
+        if (millis > now - TraceGenerator.TIME_OFFSET_MILLIS / 2) {
+            // Not from an event.
+            return;
+        }
+        current.update(Math.max(now - TraceGenerator.TIME_OFFSET_MILLIS - millis, 0));
+        watermark.accumulateAndGet(millis, Math::max);
+    }
+
+    private static Histogram newLags() {
+        return new Histogram(new UniformReservoir());
+    }
+
+    int getPort() {
+        return server.socket().getLocalPort();
+    }
+
+    /**
+     * @return The number of points received.
+     */
+    long getPoints() {
+        return points.sum();
+    }
+
+    /**
+     * @return The latest Time of an event whose points were received, in milliseconds.
+     */
+    long getWatermark() {
+        return watermark.get();
+    }
+
+    /**
+     * @return The lags of the points received since the last call, in milliseconds.
+     */
+    Histogram takeLags() {
+        return lags.getAndSet(newLags());
+    }
+
+    /**
+     * @return The CPU time used by the sink's threads, in nanoseconds.
+     */
+    long getCpuNanos() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        long total = 0;
+        for (Thread thread : threads) {
+            total += Math.max(bean.getThreadCpuTime(thread.getId()), 0);
+        }
+        return total;
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        server.close();
+    }
+}
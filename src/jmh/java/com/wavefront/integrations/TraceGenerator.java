@@ -0,0 +1,371 @@
+package com.wavefront.integrations;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Random;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Writes synthetic FDB trace files at a steady rate, as a set of fdbserver processes would.
+ *
+ * Events are made from the sample events of {@link BenchmarkEvents}, in a configurable mix of types, with their Time
+ * and DateTime set to when they are written less {@link #TIME_OFFSET_MILLIS}, and their Machine to the process writing
+ * them.  The points read from an event carry its Time, so that the lag from writing a line to receiving its points can
+ * be measured, and the offset tells them apart from the tailer's own points, which carry the time they are sent.
+ * Lines may be padded to a minimum size.
+ *
+ * Each process writes its own chain of files, named like FDB's, and rolls to the next one when its file is full:
+ * the full file is ended with {@code </Trace>} and its successor is started with the next sequence number.
+ *
+ * Lines are written in ticks of {@link #TICK_MILLIS}, spread over the processes in turn, and flushed at the end of
+ * every tick.  The lines of a tick all have the same Time, and the number of lines written up to every tick is kept,
+ * so that how many lines have been read can be told from the latest Time received.
+ */
+final class TraceGenerator implements Runnable {
+
+    static final long TICK_MILLIS = 10;
+
+    /**
+     * How far in the past events are stamped.
+     */
+    static final long TIME_OFFSET_MILLIS = TimeUnit.DAYS.toMillis(1);
+
+    /**
+     * The number of lines written per tick when the rate is unlimited.
+     */
+    private static final int UNTHROTTLED_BATCH = 1000;
+
+    private static final byte[] HEADER = "<?xml version=\"1.0\"?>\n<Trace>\n".getBytes(Charsets.US_ASCII);
+
+    private static final byte[] END_TRACE = "</Trace>\n".getBytes(Charsets.US_ASCII);
+
+    private static final String ADDRESS = "10.0.0.1";
+
+    private static final int FIRST_PORT = 4500;
+
+    private static final Pattern FIELD = Pattern.compile(" (Time|DateTime|Machine)=\"[^\"]*\"");
+
+    private static final int TEXT = 0;
+
+    private static final int TIME = 1;
+
+    private static final int DATE_TIME = 2;
+
+    private static final int MACHINE = 3;
+
+    /**
+     * A sample event split into literal text and the fields filled in for every line.
+     */
+    private static final class Template {
+
+        final int[] kinds;
+
+        final byte[][] texts;
+
+        Template(String event, int lineBytes) {
+            // The length of the line with the fields filled in, as they always are for Time and DateTime.
+            int length = event.length();
+            Matcher matcher = FIELD.matcher(event);
+            List<Integer> kinds = new ArrayList<>();
+            List<byte[]> texts = new ArrayList<>();
+            int start = 0;
+            while (matcher.find()) {
+                int valueStart = matcher.start() + matcher.group(1).length() + 3;
+                int kind = matcher.group(1).equals("Time") ? TIME : matcher.group(1).equals("DateTime") ? DATE_TIME :
+                        MACHINE;
+                addText(kinds, texts, event.substring(start, valueStart));
+                kinds.add(kind);
+                texts.add(null);
+                length += (kind == TIME ? 17 : kind == DATE_TIME ? 20 : ADDRESS.length() + 5) -
+                        (matcher.end() - 1 - valueStart);
+                start = matcher.end() - 1;
+            }
+            String rest = event.substring(start);
+            if (length + 1 < lineBytes) {
+                int end = rest.lastIndexOf("/>");
+                // Padding no rule takes metrics from, so that only the cost of reading the line grows.
+                String padding = " Pad=\"" + Strings.repeat("x", Math.max(lineBytes - length - 8, 0)) + "\"";
+                rest = rest.substring(0, end).trim() + padding + " " + rest.substring(end);
+            }
+            addText(kinds, texts, rest + "\n");
+            this.kinds = new int[kinds.size()];
+            for (int i = 0; i < this.kinds.length; ++i) {
+                this.kinds[i] = kinds.get(i);
+            }
+            this.texts = texts.toArray(new byte[0][]);
+        }
+
+        private static void addText(List<Integer> kinds, List<byte[]> texts, String text) {
+            kinds.add(TEXT);
+            texts.add(text.getBytes(Charsets.UTF_8));
+        }
+    }
+
+    /**
+     * The chain of files one process writes.
+     */
+    private final class Process {
+
+        final byte[] machine;
+
+        final String baseName;
+
+        final Deque<File> files = new ArrayDeque<>();
+
+        int sequence;
+
+        long fileBytes;
+
+        OutputStream out;
+
+        Process(int port, long startSeconds) {
+            this.machine = (ADDRESS + ":" + port).getBytes(Charsets.US_ASCII);
+            this.baseName = "trace." + ADDRESS + "." + port + "." + startSeconds + "." + String.format("%08x", port);
+        }
+
+        void open() throws IOException {
+            File file = new File(directory, baseName + "." + sequence + ".xml");
+            out = new BufferedOutputStream(new FileOutputStream(file), 256 * 1024);
+            out.write(HEADER);
+            fileBytes = HEADER.length;
+            files.addLast(file);
+            if (keepFiles > 0 && files.size() > keepFiles) {
+                File oldest = files.removeFirst();
+                if (!oldest.delete()) {
+                    throw new IOException("Cannot delete " + oldest);
+                }
+            }
+        }
+
+        void roll() throws IOException {
+            out.write(END_TRACE);
+            out.close();
+            ++sequence;
+            rolledFiles.incrementAndGet();
+            open();
+        }
+
+        /**
+         * @return The length of the line written.
+         */
+        int write(Template template, long millis) throws IOException {
+            int length = 0;
+            for (int i = 0; i < template.kinds.length; ++i) {
+                switch (template.kinds[i]) {
+                    case TIME:
+                        length += writeTime(out, millis);
+                        break;
+                    case DATE_TIME:
+                        byte[] formatted = dateTime(millis);
+                        out.write(formatted);
+                        length += formatted.length;
+                        break;
+                    case MACHINE:
+                        out.write(machine);
+                        length += machine.length;
+                        break;
+                    default:
+                        out.write(template.texts[i]);
+                        length += template.texts[i].length;
+                        break;
+                }
+            }
+            fileBytes += length;
+            if (fileBytes >= rollBytes) {
+                roll();
+            }
+            return length;
+        }
+    }
+
+    private final File directory;
+
+    private final long linesPerSecond;
+
+    private final long rollBytes;
+
+    private final int keepFiles;
+
+    private final Template[] schedule;
+
+    private final Process[] processes;
+
+    private final byte[] digits = new byte[20];
+
+    private long dateTimeSecond = -1;
+
+    private byte[] dateTime;
+
+    private final AtomicLong lines = new AtomicLong();
+
+    private final AtomicLong bytes = new AtomicLong();
+
+    private final AtomicLong rolledFiles = new AtomicLong();
+
+    /**
+     * The number of lines written up to every tick, keyed by the Time of its lines in milliseconds.
+     */
+    private final ConcurrentSkipListMap<Long, Long> progress = new ConcurrentSkipListMap<>();
+
+    private volatile boolean stopped;
+
+    /**
+     * @param mix            The relative number of events of every type.
+     * @param processes      The number of processes writing files.
+     * @param linesPerSecond The number of lines written per second over all processes, or 0 for as many as possible.
+     * @param lineBytes      The minimum length of a line; shorter events are padded.
+     * @param rollBytes      The size at which a process rolls to its next file.
+     * @param keepFiles      The number of files of every process kept, the oldest being deleted, or 0 to keep them all.
+     */
+    TraceGenerator(File directory, Map<String, Integer> mix, int processes, long linesPerSecond, int lineBytes,
+                   long rollBytes, int keepFiles) throws IOException {
+        this.directory = directory;
+        this.linesPerSecond = linesPerSecond;
+        this.rollBytes = rollBytes;
+        this.keepFiles = keepFiles;
+        List<Template> schedule = new ArrayList<>();
+        for (Entry<String, Integer> entry : mix.entrySet()) {
+            Template template = new Template(BenchmarkEvents.event(entry.getKey()), lineBytes);
+            schedule.addAll(Collections.nCopies(entry.getValue(), template));
+        }
+        if (schedule.isEmpty()) {
+            throw new IllegalArgumentException("The mix of event types is empty");
+        }
+        // Interleaved as in a real trace file, rather than in runs of one type.
+        Collections.shuffle(schedule, new Random(0));
+        this.schedule = schedule.toArray(new Template[0]);
+        long startSeconds = System.currentTimeMillis() / 1000;
+        this.processes = new Process[processes];
+        for (int i = 0; i < processes; ++i) {
+            this.processes[i] = new Process(FIRST_PORT + i, startSeconds);
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            for (Process process : processes) {
+                process.open();
+            }
+            long start = System.currentTimeMillis();
+            long written = 0;
+            while (!stopped) {
+                long now = System.currentTimeMillis();
+                long time = now - TIME_OFFSET_MILLIS;
+                long due = linesPerSecond == 0 ? written + UNTHROTTLED_BATCH : (now - start) * linesPerSecond / 1000;
+                for (; written < due; ++written) {
+                    Process process = processes[(int) (written % processes.length)];
+                    bytes.addAndGet(process.write(schedule[(int) (written / processes.length % schedule.length)], time));
+                }
+                for (Process process : processes) {
+                    process.out.flush();
+                }
+                lines.set(written);
+                progress.put(time, written);
+                if (linesPerSecond > 0) {
+                    Thread.sleep(TICK_MILLIS);
+                }
+            }
+            for (Process process : processes) {
+                process.out.close();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    void stop() {
+        stopped = true;
+    }
+
+    /**
+     * @return The number of lines written.
+     */
+    long getLines() {
+        return lines.get();
+    }
+
+    /**
+     * @return The number of bytes written, not counting the headers and ends of files.
+     */
+    long getBytes() {
+        return bytes.get();
+    }
+
+    /**
+     * @return The number of times a process rolled to its next file.
+     */
+    long getRolledFiles() {
+        return rolledFiles.get();
+    }
+
+    /**
+     * @return The number of lines written with a Time no later than the given one, in milliseconds.  Progress before
+     * that time is forgotten, so times asked for should not go backwards.
+     */
+    long getLinesUpTo(long millis) {
+        Entry<Long, Long> entry = progress.floorEntry(millis);
+        if (entry == null) {
+            return 0;
+        }
+        ConcurrentNavigableMap<Long, Long> older = progress.headMap(entry.getKey());
+        older.clear();
+        return entry.getValue();
+    }
+
+    /**
+     * Writes the time as FDB does, in seconds with six decimals.
+     *
+     * @return The number of bytes written.
+     */
+    private int writeTime(OutputStream out, long millis) throws IOException {
+        int start = digits.length;
+        // Microseconds are not known, and are always zero.
+        for (int i = 0; i < 3; ++i) {
+            digits[--start] = '0';
+        }
+        long value = millis % 1000;
+        for (int i = 0; i < 3; ++i) {
+            digits[--start] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        digits[--start] = '.';
+        value = millis / 1000;
+        do {
+            digits[--start] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value != 0);
+        out.write(digits, start, digits.length - start);
+        return digits.length - start;
+    }
+
+    private byte[] dateTime(long millis) {
+        long second = millis / 1000;
+        if (second != dateTimeSecond) {
+            dateTime = Instant.ofEpochSecond(second).toString().getBytes(Charsets.US_ASCII);
+            dateTimeSecond = second;
+        }
+        return dateTime;
+    }
+}
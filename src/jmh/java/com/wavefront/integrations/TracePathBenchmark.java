@@ -0,0 +1,69 @@
+package com.wavefront.integrations;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the whole path from a tailed line to the sender, in ns per line, for a mix of lines like a storage server's
+ * trace file: most of them of types no metrics are taken from.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TracePathBenchmark {
+
+    private static final int LINES = 20;
+
+    private NullWavefrontSender sender;
+
+    private FDBLogListener listener;
+
+    private final List<TraceLine> lines = new ArrayList<>();
+
+    @Setup
+    public void setUp() throws IOException {
+        sender = new NullWavefrontSender();
+        listener = BenchmarkEvents.listener(sender);
+        lines.add(BenchmarkEvents.traceLine(BenchmarkEvents.event("StorageMetrics")));
+        lines.add(BenchmarkEvents.traceLine(BenchmarkEvents.event("RedwoodMetrics")));
+        lines.add(BenchmarkEvents.traceLine(BenchmarkEvents.event("ProcessMetrics")));
+        lines.addAll(Collections.nCopies(4, BenchmarkEvents.traceLine(BenchmarkEvents.event("MemSample"))));
+        while (lines.size() < LINES) {
+            lines.add(BenchmarkEvents.traceLine(BenchmarkEvents.event("Net2SlowTaskTrace")));
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        if (sender.checksum() == 0) {
+            throw new IllegalStateException("No points were sent");
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LINES)
+    public void handle() {
+        for (TraceLine line : lines) {
+            listener.handle(line);
+        }
+    }
+}
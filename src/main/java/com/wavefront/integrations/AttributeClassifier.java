@@ -0,0 +1,101 @@
+package com.wavefront.integrations;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Classifies trace event attribute names into up to 32 groups of exact-name and name-prefix rules.
+ *
+ * Rules are compiled once into hash tables keyed by name and by prefix, so an uncached classification costs one hash
+ * lookup per distinct prefix length.  The result for each distinct attribute name is then memoized, which makes the
+ * steady-state cost a single lookup per attribute regardless of how many rules there are.
+ */
+class AttributeClassifier {
+
+    private static final int MAX_CACHED_NAMES = 16_384;
+
+    private final Map<String, Integer> exact = new HashMap<>();
+
+    private final Map<String, Integer> prefixes = new HashMap<>();
+
+    private int[] prefixLengths = new int[0];
+
+    private int groups;
+
+    private final ConcurrentHashMap<String, Integer> cache = new ConcurrentHashMap<>();
+
+    /**
+     * @return A classifier whose first group matches attribute names starting with any of the given prefixes.
+     */
+    static AttributeClassifier prefixes(String... prefixes) {
+        return new AttributeClassifier().orPrefixes(prefixes);
+    }
+
+    /**
+     * Adds a group that matches attribute names starting with any of the given prefixes.
+     */
+    AttributeClassifier orPrefixes(String... prefixes) {
+        int group = nextGroup();
+        TreeSet<Integer> lengths = new TreeSet<>();
+        for (int length : prefixLengths) {
+            lengths.add(length);
+        }
+        for (String prefix : prefixes) {
+            this.prefixes.merge(prefix, group, (a, b) -> a | b);
+            lengths.add(prefix.length());
+        }
+        prefixLengths = lengths.stream().mapToInt(Integer::intValue).toArray();
+        return this;
+    }
+
+    /**
+     * Adds a group that matches exactly the given attribute names.
+     */
+    AttributeClassifier orExact(String... names) {
+        int group = nextGroup();
+        for (String name : names) {
+            exact.merge(name, group, (a, b) -> a | b);
+        }
+        return this;
+    }
+
+    private int nextGroup() {
+        if (groups == Integer.SIZE) {
+            throw new IllegalStateException("At most " + Integer.SIZE + " groups are supported");
+        }
+        cache.clear();
+        return 1 << groups++;
+    }
+
+    /**
+     * @param name The attribute name.
+     * @return A bit mask with bit {@code i} set if the name matches a rule of group {@code i}, in the order the groups
+     *         were added.
+     */
+    int classify(String name) {
+        Integer groups = cache.get(name);
+        if (groups == null) {
+            groups = compute(name);
+            if (cache.size() < MAX_CACHED_NAMES) {
+                cache.put(name, groups);
+            }
+        }
+        return groups;
+    }
+
+    private int compute(String name) {
+        int groups = exact.getOrDefault(name, 0);
+        for (int length : prefixLengths) {
+            if (length > name.length()) {
+                break;
+            }
+            Integer match = prefixes.get(length == name.length() ? name : name.substring(0, length));
+            if (match != null) {
+                groups |= match;
+            }
+        }
+        return groups;
+    }
+}
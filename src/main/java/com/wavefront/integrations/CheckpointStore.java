@@ -0,0 +1,258 @@
+package com.wavefront.integrations;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Charsets;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Persists how far each tailed file has been read, so that a restart resumes where the previous run left off instead
+ * of skipping everything written while the tailer was down.
+ *
+ * The position saved is that of the last line handled, not read, so that lines queued for parse workers are read again
+ * after a crash.  The position of a {@link TailedFile} is only sampled by {@link #flush()}, which runs periodically off the
+ * tailing threads; tailing itself never touches the store.  Each flush that finds something changed rewrites the state
+ * file as a whole: it writes a temporary file, syncs it, and renames it over the old one, so a crash leaves either the
+ * old or the new checkpoints, never a torn file.
+ *
+ * A checkpoint identifies its file by path, file key (the inode on Linux) and a hash of the file's first bytes.  It is
+ * only used if all three still match, and only if it was saved within the maximum catch-up window; otherwise the file
+ * is tailed from its end, as it would be without checkpoints.
+ */
+class CheckpointStore {
+
+    private static final Logger logger = Logger.getLogger(CheckpointStore.class.getCanonicalName());
+
+    private static final int HEADER_LENGTH = 1024;
+
+    private static final String SAVED = "saved";
+
+    /**
+     * Where a file was read up to, and how to recognize it.
+     */
+    static final class Checkpoint {
+
+        final String fileKey;
+
+        final int headerLength;
+
+        final long headerHash;
+
+        final long position;
+
+        Checkpoint(String fileKey, int headerLength, long headerHash, long position) {
+            this.fileKey = fileKey;
+            this.headerLength = headerLength;
+            this.headerHash = headerHash;
+            this.position = position;
+        }
+
+        boolean sameFile(Checkpoint other) {
+            return fileKey.equals(other.fileKey) && headerLength == other.headerLength &&
+                    headerHash == other.headerHash;
+        }
+    }
+
+    private final File stateFile;
+
+    private final long maxCatchUpMillis;
+
+    private final Map<String, Checkpoint> checkpoints = new ConcurrentHashMap<>();
+
+    private final Map<TailedFile, Checkpoint> tracked = new ConcurrentHashMap<>();
+
+    private final long previousRunMillis;
+
+    private volatile boolean recovering = true;
+
+    private boolean dirty;
+
+    /**
+     * @param stateFile        The file checkpoints are kept in.  It is created on the first flush.
+     * @param maxCatchUpMillis How old a checkpoint may be and still be resumed from.
+     */
+    CheckpointStore(File stateFile, long maxCatchUpMillis) {
+        this.stateFile = stateFile;
+        this.maxCatchUpMillis = maxCatchUpMillis;
+        this.previousRunMillis = load();
+    }
+
+    /**
+     * @return The offset to start tailing {@code file} from, or {@link TailedFile#FROM_END}.
+     */
+    long startPosition(File file) {
+        if (previousRunMillis == 0 || System.currentTimeMillis() - previousRunMillis > maxCatchUpMillis) {
+            return TailedFile.FROM_END;
+        }
+        try {
+            Checkpoint saved = checkpoints.get(file.getAbsolutePath());
+            if (saved == null) {
+                // A file created while the tailer was down has never been read at all.
+                if (recovering && creationTime(file) > previousRunMillis) {
+                    logger.info("Reading file created since the last run from the start: " + file);
+                    return 0;
+                }
+                return TailedFile.FROM_END;
+            }
+            Checkpoint current = identify(file, saved.headerLength);
+            if (!current.sameFile(saved) || saved.position > file.length()) {
+                logger.info("Ignoring checkpoint for a different file at the same path: " + file);
+                return TailedFile.FROM_END;
+            }
+            logger.info("Resuming " + file + " from offset " + saved.position);
+            return saved.position;
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Cannot check the checkpoint for " + file, e);
+            return TailedFile.FROM_END;
+        }
+    }
+
+    /**
+     * Ends recovery from the previous run.  From now on, files without a checkpoint are new and are tailed from their
+     * end.
+     */
+    void recovered() {
+        recovering = false;
+    }
+
+    /**
+     * Starts checkpointing a tailed file.
+     */
+    void track(TailedFile tailedFile) {
+        try {
+            tracked.put(tailedFile, identify(tailedFile.getFile(), HEADER_LENGTH));
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Cannot checkpoint " + tailedFile.getFile(), e);
+        }
+    }
+
+    /**
+     * Saves the position of every tracked file, if any has changed since the last flush.
+     */
+    synchronized void flush() {
+        for (Map.Entry<TailedFile, Checkpoint> entry : tracked.entrySet()) {
+            TailedFile tailedFile = entry.getKey();
+            if (tailedFile.isStopped()) {
+                tracked.remove(tailedFile);
+            }
+            String path = tailedFile.getFile().getAbsolutePath();
+            Checkpoint identity = entry.getValue();
+            try {
+                if (identity.headerLength < HEADER_LENGTH) {
+                    // The file was too short to identify by its header; it may have grown since.
+                    identity = identify(tailedFile.getFile(), HEADER_LENGTH);
+                    entry.setValue(identity);
+                }
+            } catch (IOException e) {
+                continue;
+            }
+            long position = tailedFile.getHandledPosition();
+            if (position == TailedFile.FROM_END) {
+                continue;
+            }
+            Checkpoint saved = checkpoints.get(path);
+            if (saved == null || saved.position != position || !saved.sameFile(identity)) {
+                checkpoints.put(path, new Checkpoint(identity.fileKey, identity.headerLength, identity.headerHash,
+                        position));
+                dirty = true;
+            }
+        }
+        for (String path : checkpoints.keySet()) {
+            if (!new File(path).exists()) {
+                checkpoints.remove(path);
+                dirty = true;
+            }
+        }
+        // Save at least once per catch-up window so that an idle tailer's checkpoints stay usable.
+        if (dirty || System.currentTimeMillis() - stateFile.lastModified() > maxCatchUpMillis / 2) {
+            try {
+                save();
+                dirty = false;
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Failed to save checkpoints to " + stateFile, e);
+            }
+        }
+    }
+
+    @VisibleForTesting
+    Checkpoint getCheckpoint(File file) {
+        return checkpoints.get(file.getAbsolutePath());
+    }
+
+    /**
+     * @return When the checkpoints were saved, or 0 if there are none.
+     */
+    private long load() {
+        if (!stateFile.exists()) {
+            return 0;
+        }
+        long savedMillis = 0;
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(stateFile), Charsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t", 5);
+                if (fields.length == 2 && fields[0].equals(SAVED)) {
+                    savedMillis = Long.parseLong(fields[1]);
+                } else if (fields.length == 5) {
+                    checkpoints.put(fields[4], new Checkpoint(fields[0], Integer.parseInt(fields[1]),
+                            Long.parseLong(fields[2]), Long.parseLong(fields[3])));
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            logger.log(Level.WARNING, "Ignoring unreadable checkpoints in " + stateFile, e);
+            checkpoints.clear();
+            return 0;
+        }
+        return savedMillis;
+    }
+
+    private void save() throws IOException {
+        File temp = new File(stateFile.getPath() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(temp)) {
+            Writer writer = new OutputStreamWriter(out, Charsets.UTF_8);
+            writer.write(SAVED + "\t" + System.currentTimeMillis() + "\n");
+            for (Map.Entry<String, Checkpoint> entry : checkpoints.entrySet()) {
+                Checkpoint checkpoint = entry.getValue();
+                writer.write(checkpoint.fileKey + "\t" + checkpoint.headerLength + "\t" + checkpoint.headerHash + "\t" +
+                        checkpoint.position + "\t" + entry.getKey() + "\n");
+            }
+            writer.flush();
+            out.getFD().sync();
+        }
+        Files.move(temp.toPath(), stateFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static Checkpoint identify(File file, int headerLength) throws IOException {
+        Object fileKey = Files.readAttributes(file.toPath(), BasicFileAttributes.class).fileKey();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            byte[] header = new byte[(int) Math.min(headerLength, raf.length())];
+            raf.readFully(header);
+            CRC32 crc = new CRC32();
+            crc.update(header);
+            return new Checkpoint(fileKey == null ? "-" : fileKey.toString().replace('\t', ' '), header.length,
+                    crc.getValue(), 0);
+        }
+    }
+
+    private static long creationTime(File file) throws IOException {
+        return Files.readAttributes(file.toPath(), BasicFileAttributes.class).creationTime().toMillis();
+    }
+}
@@ -0,0 +1,333 @@
+package com.wavefront.integrations;
+
+import com.codahale.metrics.Counter;
+import com.google.common.annotations.VisibleForTesting;
+import com.wavefront.sdk.common.Pair;
+import com.wavefront.sdk.common.WavefrontSender;
+import com.wavefront.sdk.entities.histograms.HistogramGranularity;
+import com.wavefront.sdk.entities.tracing.SpanLog;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * A sender that holds on to the latest point of every series, and only sends it to its delegate when flushed.
+ *
+ * FDB logs many metric events per process every few seconds, each reporting dozens of values, while the points are
+ * only needed once per flush interval.  Flushing this sender once per interval sends each series at most once, with
+ * the value and timestamp of its latest event.  Points replaced before they were sent are counted as coalesced.
+ *
+ * Points stamped with their event's time are coalesced per interval of that time, not of the time they are sent: when
+ * a point of a later interval arrives, the pending point of the earlier one is sent straight away.  Reading a backlog,
+ * e.g. when resuming from a checkpoint, thus keeps a point per series for every interval it covers rather than one for
+ * all of them.  A point of an interval before the pending one's is sent as it is.
+ *
+ * Every series has one entry, which its points overwrite, so that once a series has been seen sending it a point
+ * allocates nothing.  Entries are found by the hash of the name, which a String caches, and compare their tags by
+ * identity before equality, since a listener sends every point of a series with the same name and tag map.  A series
+ * that has had no point for a whole flush interval is forgotten.  The entries are split by hash into stripes, each
+ * with its own lock, so that the threads parsing different files seldom wait for each other, and a flush takes the
+ * pending points of one stripe at a time.
+ *
+ * Distributions, spans and preformatted points are passed through as they are.
+ */
+class CoalescingSender implements WavefrontSender {
+
+    private static final class Series {
+
+        final String name;
+
+        final String source;
+
+        final Map<String, String> tags;
+
+        final int hash;
+
+        Series next;
+
+        double value;
+
+        Long timestamp;
+
+        boolean pending;
+
+        Series(String name, String source, Map<String, String> tags, int hash) {
+            this.name = name;
+            this.source = source;
+            this.tags = tags;
+            this.hash = hash;
+        }
+
+        boolean matches(String name, String source, Map<String, String> tags) {
+            return (this.name == name || this.name.equals(name)) && Objects.equals(this.source, source) &&
+                    (this.tags == tags || Objects.equals(this.tags, tags));
+        }
+    }
+
+    /**
+     * A part of the entries, guarded by its own lock.
+     */
+    private static final class Stripe {
+
+        // Chains of entries.
+        Series[] table = new Series[64];
+
+        int seriesCount;
+
+        int pendingCount;
+
+        /**
+         * @return The entry of a series, added if there is none.
+         */
+        Series find(String name, String source, Map<String, String> tags, int hash) {
+            int slot = hash & (table.length - 1);
+            Series series = table[slot];
+            while (series != null && !(series.hash == hash && series.matches(name, source, tags))) {
+                series = series.next;
+            }
+            if (series == null) {
+                series = new Series(name, source, tags, hash);
+                series.next = table[slot];
+                table[slot] = series;
+                if (++seriesCount > table.length) {
+                    resize(table.length * 2);
+                }
+            }
+            return series;
+        }
+
+        private void resize(int length) {
+            Series[] old = table;
+            table = new Series[length];
+            for (Series chain : old) {
+                while (chain != null) {
+                    Series next = chain.next;
+                    int slot = chain.hash & (length - 1);
+                    chain.next = table[slot];
+                    table[slot] = chain;
+                    chain = next;
+                }
+            }
+        }
+    }
+
+    /**
+     * The number of stripes, a power of two, which the top bits of a series' hash select.
+     */
+    private static final int STRIPE_BITS = 5;
+
+    private final WavefrontSender delegate;
+
+    private final long intervalMillis;
+
+    private final Counter coalesced;
+
+    private final Stripe[] stripes = new Stripe[1 << STRIPE_BITS];
+
+    // The points taken by a flush, which sends them without holding the lock, guarded by flushing.
+    private final Object flushing = new Object();
+
+    private Series[] taken = new Series[1024];
+
+    private double[] takenValues = new double[1024];
+
+    private Long[] takenTimestamps = new Long[1024];
+
+    /**
+     * @param intervalMillis The interval the latest point of every series is kept for, which should be how often the
+     *                       sender is flushed.
+     * @param coalesced      The counter of points replaced by a later point of the same series before they were sent.
+     */
+    CoalescingSender(WavefrontSender delegate, long intervalMillis, Counter coalesced) {
+        this.delegate = delegate;
+        this.intervalMillis = intervalMillis;
+        this.coalesced = coalesced;
+        for (int i = 0; i < stripes.length; ++i) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    private static int hash(String name, String source) {
+        int hash = 31 * name.hashCode() + (source == null ? 0 : source.hashCode());
+        return hash ^ (hash >>> 16);
+    }
+
+    @Override
+    public void sendMetric(String name, double value, Long timestamp, String source, Map<String, String> tags)
+            throws IOException {
+        int hash = hash(name, source);
+        // A point sent straight away, rather than kept: this one, or the pending point of an earlier interval.
+        double sentValue;
+        Long sentTimestamp;
+        Stripe stripe = stripes[hash >>> (Integer.SIZE - STRIPE_BITS)];
+        synchronized (stripe) {
+            Series series = stripe.find(name, source, tags, hash);
+            if (!series.pending) {
+                series.value = value;
+                series.timestamp = timestamp;
+                series.pending = true;
+                ++stripe.pendingCount;
+                return;
+            }
+            long interval = interval(timestamp);
+            long pendingInterval = interval(series.timestamp);
+            if (interval < pendingInterval) {
+                sentValue = value;
+                sentTimestamp = timestamp;
+            } else if (interval > pendingInterval) {
+                sentValue = series.value;
+                sentTimestamp = series.timestamp;
+                series.value = value;
+                series.timestamp = timestamp;
+            } else {
+                coalesced.inc();
+                // Points normally arrive in order, but one stamped earlier than the pending one must not replace it.
+                if (series.timestamp == null || timestamp == null || timestamp >= series.timestamp) {
+                    series.value = value;
+                    series.timestamp = timestamp;
+                }
+                return;
+            }
+        }
+        delegate.sendMetric(name, sentValue, sentTimestamp, source, tags);
+    }
+
+    /**
+     * @return The interval of event time a point belongs to, or -1 for all points without a timestamp.
+     */
+    private long interval(Long timestamp) {
+        return timestamp == null ? -1 : timestamp / intervalMillis;
+    }
+
+    /**
+     * @return The number of series with a point waiting to be sent.
+     */
+    int getPendingCount() {
+        int count = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                count += stripe.pendingCount;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return The number of series remembered, pending or not.
+     */
+    @VisibleForTesting
+    int getSeriesCount() {
+        int count = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                count += stripe.seriesCount;
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public void sendFormattedMetric(String point) throws IOException {
+        delegate.sendFormattedMetric(point);
+    }
+
+    @Override
+    public void sendDistribution(String name, List<Pair<Double, Integer>> centroids,
+                                 Set<HistogramGranularity> histogramGranularities, Long timestamp, String source,
+                                 Map<String, String> tags) throws IOException {
+        delegate.sendDistribution(name, centroids, histogramGranularities, timestamp, source, tags);
+    }
+
+    @Override
+    public void sendSpan(String name, long startMillis, long durationMillis, String source, UUID traceId, UUID spanId,
+                         List<UUID> parents, List<UUID> followsFrom, List<Pair<String, String>> tags,
+                         List<SpanLog> spanLogs) throws IOException {
+        delegate.sendSpan(name, startMillis, durationMillis, source, traceId, spanId, parents, followsFrom, tags,
+                spanLogs);
+    }
+
+    @Override
+    public String getClientId() {
+        return delegate.getClientId();
+    }
+
+    /**
+     * Sends the pending point of every series to the delegate, and flushes it.
+     */
+    @Override
+    public void flush() throws IOException {
+        synchronized (flushing) {
+            int count = take();
+            try {
+                for (int i = 0; i < count; ++i) {
+                    Series series = taken[i];
+                    delegate.sendMetric(series.name, takenValues[i], takenTimestamps[i], series.source, series.tags);
+                }
+            } finally {
+                Arrays.fill(taken, 0, count, null);
+                Arrays.fill(takenTimestamps, 0, count, null);
+            }
+            delegate.flush();
+        }
+    }
+
+    /**
+     * Takes the pending points, one stripe at a time, and forgets the series that had none.  A point that arrives
+     * meanwhile stays pending for the next flush.  Only called while synchronized on flushing.
+     *
+     * @return The number of points taken.
+     */
+    private int take() {
+        int count = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                if (taken.length < count + stripe.pendingCount) {
+                    int length = Math.max(taken.length * 2, count + stripe.pendingCount);
+                    taken = Arrays.copyOf(taken, length);
+                    takenValues = Arrays.copyOf(takenValues, length);
+                    takenTimestamps = Arrays.copyOf(takenTimestamps, length);
+                }
+                Series[] table = stripe.table;
+                for (int slot = 0; slot < table.length; ++slot) {
+                    Series previous = null;
+                    for (Series series = table[slot]; series != null; series = series.next) {
+                        if (series.pending) {
+                            taken[count] = series;
+                            takenValues[count] = series.value;
+                            takenTimestamps[count] = series.timestamp;
+                            ++count;
+                            series.pending = false;
+                            series.timestamp = null;
+                            previous = series;
+                        } else {
+                            if (previous == null) {
+                                table[slot] = series.next;
+                            } else {
+                                previous.next = series.next;
+                            }
+                            --stripe.seriesCount;
+                        }
+                    }
+                }
+                stripe.pendingCount = 0;
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public int getFailureCount() {
+        return delegate.getFailureCount();
+    }
+
+    @Override
+    public void close() throws IOException {
+        flush();
+        delegate.close();
+    }
+}
@@ -0,0 +1,161 @@
+package com.wavefront.integrations;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.NotDirectoryException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+/**
+ * Reports files in a directory being created, modified or deleted as it happens, through a {@link WatchService}
+ * (inotify on Linux), instead of waiting for the next directory scan.
+ *
+ * Events are delivered on a single daemon thread.  The watch service can lose events when many happen at once; the
+ * handler is then told to reconcile with a full scan.  If the watch itself is lost, as when the directory is deleted
+ * or replaced, the directory is registered again as soon as it can be, and until then the handler is told to scan
+ * every time that is tried.
+ */
+class DirectoryWatcher implements Closeable {
+
+    private static final Logger logger = Logger.getLogger(DirectoryWatcher.class.getCanonicalName());
+
+    /**
+     * How often registering the directory again is tried while it cannot be watched.
+     */
+    private static final long RETRY_MILLIS = 5_000;
+
+    interface Handler {
+
+        void created(File file);
+
+        void modified(File file);
+
+        void deleted(File file);
+
+        /**
+         * Called when events may have been lost.
+         */
+        void overflowed();
+    }
+
+    private final File directory;
+
+    private final Pattern pattern;
+
+    private final Handler handler;
+
+    private final WatchService watchService;
+
+    private final long retryMillis;
+
+    private final Thread thread;
+
+    /**
+     * @param pattern Only files whose names match this pattern are reported.
+     * @throws IOException If the directory cannot be watched.
+     */
+    DirectoryWatcher(File directory, Pattern pattern, Handler handler) throws IOException {
+        this(directory, pattern, handler, RETRY_MILLIS);
+    }
+
+    /**
+     * @param retryMillis How often registering the directory again is tried while it cannot be watched.
+     */
+    DirectoryWatcher(File directory, Pattern pattern, Handler handler, long retryMillis) throws IOException {
+        this.directory = directory;
+        this.pattern = pattern;
+        this.handler = handler;
+        this.retryMillis = retryMillis;
+        this.watchService = directory.toPath().getFileSystem().newWatchService();
+        register();
+        this.thread = new Thread(this::run, "fdb-log-watcher");
+        this.thread.setDaemon(true);
+    }
+
+    private void register() throws IOException {
+        directory.toPath().register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    private void run() {
+        try {
+            while (true) {
+                WatchKey key = watchService.take();
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    try {
+                        dispatch(event);
+                    } catch (RuntimeException e) {
+                        logger.log(Level.WARNING, "Exception while handling " + event.kind() + " of " +
+                                event.context(), e);
+                    }
+                }
+                if (!key.reset()) {
+                    reregister();
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // Closed.
+        }
+    }
+
+    /**
+     * Registers the directory again after its watch was lost, telling the handler to scan after every attempt, so
+     * that files are still found while it cannot be watched, and once it can be again.
+     */
+    private void reregister() throws InterruptedException {
+        logger.warning("Lost the watch on " + directory + " - it is no longer accessible; scanning it every " +
+                retryMillis + " ms until it can be watched again");
+        while (true) {
+            try {
+                register();
+                logger.info("Watching " + directory + " again");
+                handler.overflowed();
+                return;
+            } catch (NoSuchFileException | NotDirectoryException e) {
+                // Not back yet.
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Cannot watch " + directory, e);
+            }
+            handler.overflowed();
+            Thread.sleep(retryMillis);
+        }
+    }
+
+    private void dispatch(WatchEvent<?> event) {
+        WatchEvent.Kind<?> kind = event.kind();
+        if (kind == StandardWatchEventKinds.OVERFLOW) {
+            handler.overflowed();
+            return;
+        }
+        String name = ((Path) event.context()).toString();
+        if (!pattern.matcher(name).matches()) {
+            return;
+        }
+        File file = new File(directory, name);
+        if (kind == StandardWatchEventKinds.ENTRY_CREATE) {
+            handler.created(file);
+        } else if (kind == StandardWatchEventKinds.ENTRY_MODIFY) {
+            handler.modified(file);
+        } else if (kind == StandardWatchEventKinds.ENTRY_DELETE) {
+            handler.deleted(file);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        watchService.close();
+    }
+}
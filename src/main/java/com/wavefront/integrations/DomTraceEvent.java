@@ -0,0 +1,52 @@
+package com.wavefront.integrations;
+
+import com.google.common.base.Charsets;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import org.xml.sax.SAXException;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+/**
+ * A {@link TraceEvent} backed by a fully parsed W3C DOM.  This is much slower than {@link TraceLineScanner} but performs
+ * complete XML validation, so it is used for lines the scanner does not accept.
+ */
+class DomTraceEvent implements TraceEvent {
+
+    private static DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
+
+    private final NamedNodeMap map;
+
+    private DomTraceEvent(NamedNodeMap map) {
+        this.map = map;
+    }
+
+    static DomTraceEvent parse(String line) throws ParserConfigurationException, SAXException, IOException {
+        return new DomTraceEvent(dbf.newDocumentBuilder().parse(
+                new ByteArrayInputStream(line.getBytes(Charsets.UTF_8))).getDocumentElement().getAttributes());
+    }
+
+    @Override
+    public int getAttributeCount() {
+        return map.getLength();
+    }
+
+    @Override
+    public String getAttributeName(int index) {
+        return map.item(index).getNodeName();
+    }
+
+    @Override
+    public String getAttributeValue(int index) {
+        return map.item(index).getNodeValue();
+    }
+
+    @Override
+    public String getAttribute(String name) {
+        Node node = map.getNamedItem(name);
+        return node == null ? null : node.getNodeValue();
+    }
+}
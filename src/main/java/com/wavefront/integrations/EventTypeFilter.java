@@ -0,0 +1,170 @@
+package com.wavefront.integrations;
+
+import java.util.Collection;
+
+/**
+ * Decides from the raw bytes of an {@code <Event .../>} line, or of a line of a JSON trace file, whether its Type is
+ * one worth parsing, so that the many events no metrics are taken from are never parsed.
+ *
+ * FDB writes the Type near the start of the line, so only the first {@link #SCAN_LIMIT} characters are searched for
+ * it.  The types are held in a small open-addressing table keyed by {@link String#hashCode()}, which is computed over
+ * the value in place, so a lookup does not allocate.
+ */
+final class EventTypeFilter {
+
+    /**
+     * How far into a line the Type attribute is looked for.
+     */
+    static final int SCAN_LIMIT = 512;
+
+    private static final String TYPE = " Type=\"";
+
+    private static final String SEVERITY = " Severity=\"";
+
+    private static final String JSON_TYPE = "\"Type\": \"";
+
+    private static final String JSON_SEVERITY = "\"Severity\": \"";
+
+    /**
+     * The line's Type is one of the filter's types.
+     */
+    static final int ACCEPTED = 0;
+
+    /**
+     * The line's Type is not one of the filter's types.
+     */
+    static final int REJECTED = 1;
+
+    /**
+     * The line's Type could not be found within the scan limit, so the line has to be parsed to tell.
+     */
+    static final int UNKNOWN = 2;
+
+    private final String[] table;
+
+    private final int mask;
+
+    EventTypeFilter(Collection<String> types) {
+        int size = Integer.highestOneBit(Math.max(types.size(), 1) * 4 - 1) << 1;
+        this.table = new String[size];
+        this.mask = size - 1;
+        for (String type : types) {
+            int slot = type.hashCode() & mask;
+            while (table[slot] != null && !table[slot].equals(type)) {
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = type;
+        }
+    }
+
+    /**
+     * @return {@link #ACCEPTED}, {@link #REJECTED} or {@link #UNKNOWN}.
+     */
+    int check(CharSequence line) {
+        return check(line, TYPE);
+    }
+
+    /**
+     * @return {@link #ACCEPTED}, {@link #REJECTED} or {@link #UNKNOWN} for a line of a JSON trace file.
+     */
+    int checkJson(CharSequence line) {
+        return check(line, JSON_TYPE);
+    }
+
+    private int check(CharSequence line, String key) {
+        int start = valueStart(line, key);
+        if (start == -1) {
+            return UNKNOWN;
+        }
+        int end = valueEnd(line, start);
+        if (end == -1) {
+            return UNKNOWN;
+        }
+        int hash = 0;
+        for (int i = start; i < end; ++i) {
+            char ch = line.charAt(i);
+            if (ch == '\\') {
+                // An escape in a JSON value, which only parsing can undo.
+                return UNKNOWN;
+            }
+            hash = 31 * hash + ch;
+        }
+        for (int slot = hash & mask; table[slot] != null; slot = (slot + 1) & mask) {
+            if (regionEquals(line, start, end, table[slot])) {
+                return ACCEPTED;
+            }
+        }
+        return REJECTED;
+    }
+
+    /**
+     * @return The line's Severity, or 0 if it cannot be found within the scan limit or is not a number.
+     */
+    static int severity(CharSequence line) {
+        return severity(line, SEVERITY);
+    }
+
+    /**
+     * @return The Severity of a line of a JSON trace file, or 0 if it cannot be found within the scan limit or is not a
+     * number.
+     */
+    static int jsonSeverity(CharSequence line) {
+        return severity(line, JSON_SEVERITY);
+    }
+
+    private static int severity(CharSequence line, String key) {
+        int start = valueStart(line, key);
+        if (start == -1) {
+            return 0;
+        }
+        int end = valueEnd(line, start);
+        if (end == -1 || end == start || end - start > 4) {
+            return 0;
+        }
+        int severity = 0;
+        for (int i = start; i < end; ++i) {
+            char ch = line.charAt(i);
+            if (ch < '0' || ch > '9') {
+                return 0;
+            }
+            severity = severity * 10 + (ch - '0');
+        }
+        return severity;
+    }
+
+    /**
+     * @return The offset just past the quote opening the attribute's value, or -1 if it is not within the scan limit.
+     */
+    private static int valueStart(CharSequence line, String attribute) {
+        int limit = Math.min(line.length(), SCAN_LIMIT) - attribute.length();
+        char first = attribute.charAt(0);
+        for (int i = 0; i <= limit; ++i) {
+            if (line.charAt(i) == first && regionEquals(line, i, i + attribute.length(), attribute)) {
+                return i + attribute.length();
+            }
+        }
+        return -1;
+    }
+
+    private static int valueEnd(CharSequence line, int start) {
+        int limit = Math.min(line.length(), start + SCAN_LIMIT);
+        for (int i = start; i < limit; ++i) {
+            if (line.charAt(i) == '"') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean regionEquals(CharSequence line, int start, int end, String other) {
+        if (end - start != other.length()) {
+            return false;
+        }
+        for (int i = 0; i < other.length(); ++i) {
+            if (line.charAt(start + i) != other.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
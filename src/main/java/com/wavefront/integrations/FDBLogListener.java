@@ -1,122 +1,272 @@
 package com.wavefront.integrations;
 
 import com.codahale.metrics.Counter;
-import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
 import com.codahale.metrics.SharedMetricRegistries;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Charsets;
-import com.google.common.base.Splitter;
-import com.google.common.cache.LoadingCache;
-import com.google.common.collect.Iterables;
-import com.google.common.util.concurrent.AtomicDouble;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.primitives.Bytes;
 import com.wavefront.sdk.common.WavefrontSender;
 import org.apache.commons.io.IOUtils;
-import org.apache.commons.io.input.Tailer;
-import org.apache.commons.io.input.TailerListenerAdapter;
-import org.w3c.dom.Document;
-import org.w3c.dom.NamedNodeMap;
-import org.w3c.dom.Node;
 import org.xml.sax.SAXException;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
-import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-
-import static java.lang.Character.*;
+import java.util.function.Consumer;
 
 
 /**
  * This class reads FoundationDB logs and translates the content into metrics.
+ *
+ * Both of FDB's trace formats are understood: XML, with an {@code <Event .../>} element per line, and JSON, with an
+ * object per line.  The format is told from the first character of every line, so a file's name need not say which
+ * it is.
  */
-public class FDBLogListener extends TailerListenerAdapter {
+public class FDBLogListener implements TailListener {
 
     private static final Logger logger = Logger.getLogger(FDBLogListener.class.getCanonicalName());
 
     private static final String END_TRACE = "</Trace>";
     private static final String CLUSTER_TAG_KEY = "ClusterFile=\"";
 
-    private static DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
+    private static final byte[] CLUSTER_TAG_KEY_BYTES = CLUSTER_TAG_KEY.getBytes(Charsets.US_ASCII);
 
-    // Metrics
-    private static Map<String, Counter> severityMetrics = new HashMap<>();
+    private static final byte[] JSON_CLUSTER_TAG_KEY_BYTES = "\"ClusterFile\": \"".getBytes(Charsets.US_ASCII);
 
-    private LoadingCache<String, AtomicDouble> values;
+    /**
+     * How much of the start of a trace file is searched for its cluster file.  FDB logs it in one of the first events.
+     */
+    private static final int CLUSTER_FILE_HEADER_BYTES = 64 * 1024;
 
-    private LoadingCache<String, Gauge<Double>> gauges;
+    /**
+     * One in this many parsed events and sent points is timed, so that timing costs next to nothing.  A power of two.
+     */
+    private static final int TIMING_SAMPLE = 64;
 
-    static {
+    /**
+     * The cluster file of every process seen so far, keyed by {@link TraceFileName#processKey(File)}.
+     */
+    private static final Map<String, String> clusterFiles = new ConcurrentHashMap<>();
 
-    }
+    // Metrics
+    private final SeverityCounts severities = new SeverityCounts();
+
+    private final Counter skippedLines;
 
     private final Counter failed;
 
-    private Tailer tailer;
+    private final Counter latePoints;
+
+    private final Histogram parseTime;
+
+    private final Histogram sendTime;
+
+    /**
+     * The number of events of every type metrics are taken from, created as the types are seen.
+     */
+    private final Map<String, Counter> typeCounts = new HashMap<>();
+
+    private int parsedEvents;
+
+    private int sentPoints;
+
+    /**
+     * The Time of the latest event metrics were taken from, in milliseconds, or 0 if there has not been one yet.
+     */
+    private volatile long lastEventMillis;
+
+    private TailedFile tailer;
+
+    /**
+     * The file being tailed, which unlike {@link #tailer} is kept once the file is done, for its metrics.
+     */
+    private volatile TailedFile tailedFile;
+
+    /**
+     * The process key of the file, while its cluster file has not been found yet.
+     */
+    private String pendingClusterFile;
+
+    private Consumer<File> rollHandler;
 
     private String prefix;
 
     private Map<String, String> tags;
 
+    /**
+     * The tags of the file's severity counts, which also name the file.  They are read by the reporter's thread.
+     */
+    private volatile Map<String, String> severityTags;
+
+    private String fileName;
+
     private WavefrontSender wavefrontSender;
 
+    private final TraceLineScanner scanner = new TraceLineScanner();
+
+    /**
+     * The reader for lines of a JSON trace file, created when the first one is seen.
+     */
+    private JsonTraceEvent jsonEvent;
+
+    private boolean domParsing = false;
+
+    private final MetricStore metrics;
+
+    private final MetricNameCache names;
+
+    private final TraceValueDecoder decoder = new TraceValueDecoder();
+
+    private boolean counterComponents = false;
+
+    private boolean eventTime = true;
+
+    private long maxLatenessMillis = 0;
+
+    private FDBMetricsReporterArguments.LatePointPolicy latePointPolicy = FDBMetricsReporterArguments.LatePointPolicy.DROP;
+
+    /**
+     * The timestamp of the event being handled, in milliseconds, or null if points are stamped when they are sent.
+     */
+    private Long timestamp;
+
+    /**
+     * Whether the points of the event being handled are too late to send.
+     */
+    private boolean late;
+
     private String addPrefix(String name) {
         return prefix + name;
     }
 
     private List<String> disabledMetrics;
 
-    public FDBLogListener(String prefix, LoadingCache<String, AtomicDouble> values,
-                          LoadingCache<String, Gauge<Double>> gauges, WavefrontSender wavefrontSender, String serviceName, List<String> disabledMetrics) {
+    /**
+     * The rules for every event type that is not disabled.
+     */
+    private final Map<String, MetricRules.Rule[]> rulesByType = new HashMap<>();
+
+    private final EventTypeFilter typeFilter;
+
+    public FDBLogListener(String prefix, MetricStore metrics, WavefrontSender wavefrontSender, String serviceName,
+                          List<String> disabledMetrics) {
+        this(prefix, metrics, wavefrontSender, serviceName, disabledMetrics, MetricRules.defaults());
+    }
+
+    /**
+     * @param rules The rules metrics are taken from events by.
+     */
+    public FDBLogListener(String prefix, MetricStore metrics, WavefrontSender wavefrontSender, String serviceName,
+                          List<String> disabledMetrics, MetricRules rules) {
         this.prefix = prefix;
-        this.values = values;
-        this.gauges = gauges;
         this.wavefrontSender = wavefrontSender;
         this.failed = SharedMetricRegistries.getDefault().counter(addPrefix("listener_failed"));
-        this.tags = new HashMap<String, String>() {{put("service", serviceName);}};
+        this.latePoints = SharedMetricRegistries.getDefault().counter(addPrefix("late_points"));
+        this.tags = ImmutableMap.of("service", serviceName);
+        this.skippedLines = SharedMetricRegistries.getDefault().counter(addPrefix("skipped_lines"));
+        this.parseTime = SharedMetricRegistries.getDefault().histogram(addPrefix("tailer.parse_time"));
+        this.sendTime = SharedMetricRegistries.getDefault().histogram(addPrefix("tailer.send_time"));
         this.disabledMetrics = disabledMetrics;
+        for (String type : rules.getTypes()) {
+            if (enableMetricReporting(type)) {
+                rulesByType.put(type, rules.forType(type));
+            }
+        }
+        this.typeFilter = new EventTypeFilter(rulesByType.keySet());
+        this.metrics = metrics;
+        this.names = new MetricNameCache(prefix, metrics);
     }
 
     @Override
-    public void init(Tailer tailer) {
+    public void init(TailedFile tailer) {
         this.tailer = tailer;
+        this.tailedFile = tailer;
+        this.fileName = tailer.getFile().getName();
+        this.severityTags = ImmutableMap.<String, String>builder().putAll(tags).put("file", fileName).build();
         // Check to see if this one is already complete
         RandomAccessFile raf = null;
         try {
             raf = new RandomAccessFile(tailer.getFile(), "r");
-            raf.seek(raf.length() - END_TRACE.length());
-            byte[] endTrace = new byte[END_TRACE.length()];
+            // A file that was just created may not even be that long yet.
+            byte[] endTrace = new byte[(int) Math.min(END_TRACE.length(), raf.length())];
+            raf.seek(raf.length() - endTrace.length);
             raf.readFully(endTrace);
             String endOfFile = new String(endTrace, Charsets.US_ASCII);
-            if (END_TRACE.equals(endOfFile)) {
+            // A file resumed from a checkpoint may still have lines to read before its end.
+            if (END_TRACE.equals(endOfFile) &&
+                    (tailer.getStartPosition() == TailedFile.FROM_END || tailer.getStartPosition() >= raf.length())) {
                 done();
             }
 
             // Code to get the cluster file for sharded reporter
-            Scanner sc = new Scanner(tailer.getFile());
-            sc.useDelimiter("\n");
-            boolean found = false;
-            while (sc.hasNextLine()) {
-                String line = sc.nextLine();
-                String clusterFile = getClusterFile(line);
-                if (clusterFile != null) {
-                    tags.put("cluster_file", clusterFile);
-                    found = true;
-                    break;
-                }
+            String processKey = TraceFileName.processKey(tailer.getFile());
+            String clusterFile = clusterFiles.get(processKey);
+            if (clusterFile == null) {
+                raf.seek(0);
+                byte[] header = new byte[(int) Math.min(raf.length(), CLUSTER_FILE_HEADER_BYTES)];
+                raf.readFully(header);
+                clusterFile = getClusterFile(header);
+            }
+            if (clusterFile != null) {
+                setClusterFile(processKey, clusterFile);
+            } else {
+                // Look for it in the events as they are read.
+                pendingClusterFile = processKey;
             }
-            assert(found);
 
         } catch (IOException e) {
             throw new RuntimeException(e);
         } finally {
             IOUtils.closeQuietly(raf);
         }
-        initSeverityMetrics();
+    }
+
+    /**
+     * @return The cluster file in the given bytes of a trace file, or null if they do not contain one.
+     */
+    @VisibleForTesting
+    static String getClusterFile(byte[] bytes) {
+        byte[] key = CLUSTER_TAG_KEY_BYTES;
+        int index = Bytes.indexOf(bytes, key);
+        if (index == -1) {
+            key = JSON_CLUSTER_TAG_KEY_BYTES;
+            index = Bytes.indexOf(bytes, key);
+        }
+        if (index == -1) {
+            return null;
+        }
+        int startIndex = index + key.length;
+        for (int endIndex = startIndex; endIndex < bytes.length; ++endIndex) {
+            if (bytes[endIndex] == '\\') {
+                // An escaped JSON value; it is found when its event is parsed instead.
+                return null;
+            } else if (bytes[endIndex] == '\"') {
+                return new String(bytes, startIndex, endIndex - startIndex, Charsets.UTF_8);
+            } else if (bytes[endIndex] == '\n') {
+                break;
+            }
+        }
+        // The event is cut off by the end of the header.
+        return null;
+    }
+
+    private void setClusterFile(String processKey, String clusterFile) {
+        clusterFiles.put(processKey, clusterFile);
+        // The tags are replaced rather than changed, so that senders may cache what they render from them.
+        tags = ImmutableMap.of("service", tags.get("service"), "cluster_file", clusterFile);
+        if (fileName != null) {
+            severityTags = ImmutableMap.<String, String>builder().putAll(tags).put("file", fileName).build();
+        }
+        pendingClusterFile = null;
     }
 
     public String getClusterFile(String line) {
@@ -136,6 +286,10 @@ public class FDBLogListener extends TailerListenerAdapter {
         done();
     }
 
+    @Override
+    public void fileRotated() {
+    }
+
     private void done() {
         if (tailer == null) {
             return;
@@ -146,12 +300,103 @@ public class FDBLogListener extends TailerListenerAdapter {
         this.tailer = null;
     }
 
-    private void initSeverityMetrics() {
-        for (String sev : Arrays.asList("10", "20", "30", "40", "50")) {
-            severityMetrics.put(sev, SharedMetricRegistries.getDefault().counter(addPrefix("severity_" + sev)));
+    /**
+     * @param rollHandler Called with the file when its end is read, so that tailing can move on to the next file of
+     *                    the same process straight away.
+     */
+    void setRollHandler(Consumer<File> rollHandler) {
+        this.rollHandler = rollHandler;
+    }
+
+    /**
+     * @return The number of the file's events at every severity.
+     */
+    SeverityCounts getSeverityCounts() {
+        return severities;
+    }
+
+    /**
+     * Sends the number of the file's events at every severity so far, as {@code severity_<level>} tagged with the
+     * file's name.  Called from the reporter's thread.
+     */
+    void sendSeverityCounts(long timestamp) throws IOException {
+        Map<String, String> tags = severityTags;
+        if (wavefrontSender == null || tags == null) {
+            return;
+        }
+        for (int level : SeverityCounts.LEVELS) {
+            wavefrontSender.sendMetric(addPrefix("severity_" + level), severities.get(level), timestamp, null, tags);
+        }
+    }
+
+    /**
+     * Sends how far reading the file is behind its end, as {@code tailer.bytes_behind}, and how far the Time of its
+     * latest metric event is behind the given time, as {@code tailer.event_lag_ms}, tagged with the file's name.  Called
+     * from the reporter's thread.
+     */
+    void sendFileMetrics(long timestamp) throws IOException {
+        Map<String, String> tags = severityTags;
+        if (wavefrontSender == null || tags == null) {
+            return;
+        }
+        wavefrontSender.sendMetric(addPrefix("tailer.bytes_behind"), getBytesBehind(), timestamp, null, tags);
+        long lag = getEventLagMillis(timestamp);
+        if (lag >= 0) {
+            wavefrontSender.sendMetric(addPrefix("tailer.event_lag_ms"), lag, timestamp, null, tags);
         }
     }
 
+    /**
+     * @return How far the file extends beyond the last line read from it.
+     */
+    long getBytesBehind() {
+        TailedFile current = tailedFile;
+        return current == null ? 0 : current.getBytesBehind();
+    }
+
+    /**
+     * @return How far the Time of the latest event metrics were taken from is behind the given time, in milliseconds,
+     * or -1 if there has not been one yet.
+     */
+    long getEventLagMillis(long now) {
+        long last = lastEventMillis;
+        return last == 0 ? -1 : Math.max(now - last, 0);
+    }
+
+    /**
+     * @param domParsing Whether every line should be parsed and validated with a full DOM instead of the streaming
+     *                   scanner.  Lines the scanner rejects always fall back to the DOM.
+     */
+    @VisibleForTesting
+    void setDomParsing(boolean domParsing) {
+        this.domParsing = domParsing;
+    }
+
+    /**
+     * @param counterComponents Whether the rate and roughness of "rate roughness total" counters should be reported as
+     *                          separate metrics, in addition to the total.
+     */
+    void setCounterComponents(boolean counterComponents) {
+        this.counterComponents = counterComponents;
+    }
+
+    /**
+     * @param eventTime Whether points should be stamped with their event's Time attribute, which is the default, rather
+     *                  than with the time they are sent.
+     */
+    void setEventTime(boolean eventTime) {
+        this.eventTime = eventTime;
+    }
+
+    /**
+     * @param maxLatenessMillis How far behind the wall clock an event's time may be, or 0 for no limit.
+     * @param latePointPolicy   What to do with the points of events that are later than that.
+     */
+    void setMaxLateness(long maxLatenessMillis, FDBMetricsReporterArguments.LatePointPolicy latePointPolicy) {
+        this.maxLatenessMillis = maxLatenessMillis;
+        this.latePointPolicy = latePointPolicy;
+    }
+
     @Override
     public void handle(Exception ex) {
         logger.log(Level.WARNING, "Exception in tailer", ex);
@@ -159,7 +404,7 @@ public class FDBLogListener extends TailerListenerAdapter {
     }
 
     @Override
-    public void handle(String line) {
+    public void handle(CharSequence line) {
         if (tailer == null) {
             return;
         }
@@ -168,252 +413,264 @@ public class FDBLogListener extends TailerListenerAdapter {
     }
 
     @VisibleForTesting
-    void handleLine(String line) {
-        if (line.equals(END_TRACE)) {
+    void handleLine(CharSequence line) {
+        if (line.length() == END_TRACE.length() && TraceLineScanner.startsWith(line, END_TRACE)) {
             // End of log file
+            File file = tailer == null ? null : tailer.getFile();
             done();
-        } else if (line.startsWith("<Event ")) {
-            try {
-                DocumentBuilder db = dbf.newDocumentBuilder();
-                Document doc = db.parse(new ByteArrayInputStream(line.getBytes(Charsets.UTF_8)));
-                NamedNodeMap map = doc.getDocumentElement().getAttributes();
-                Node type = map.getNamedItem("Type");
-                if (type != null && enableMetricReporting(type.getNodeValue())) {
-                    switch (type.getNodeValue()) {
-                        case "Role": {
-                            // Track all transitions with booleans.  It isn't clear how often
-                            // these are reported so we may not get a clear view all the time.
-                            boolean begin = map.getNamedItem("Transition").getNodeValue().equals("Begin");
-                            String port = getPort(map);
-                            String as = map.getNamedItem("As").getNodeValue();
-                            String metricName = addPrefix(port + ".role." + encode(as));
-                            if (this.wavefrontSender == null) {
-                                gauges.getUnchecked(metricName);
-                            } else {
-                                this.wavefrontSender.sendMetric(metricName,
-                                        values.getUnchecked(metricName).doubleValue(),
-                                        null,
-                                        null,
-                                        tags);
-                            }
-                            AtomicDouble value = values.getUnchecked(metricName);
-                            value.set(begin ? 1 : 0);
-                            break;
-                        }
-                        case "MachineMetrics": {
-                            addDoubleGauges(map, "machine", Arrays.asList("CPUSeconds", "Mbps",
-                                    "OutSegs", "RetransSegs"));
-                            break;
-                        }
-                        case "ProcessMetrics": {
-                            String port = getPort(map);
-                            addDoubleGauges(map, port, Arrays.asList("CPU", "Mbps", "Disk",
-                                    "File", "N2", "AIO", "Cache", "Main"));
-                            addDoubleGauge(map, port, "Memory");
-                            break;
-                        }
-                        // an entry looks something like:
-                        // <Event Severity="10" Time="1706276733.451520" DateTime="2024-01-26T13:45:33Z" Type="StorageMetrics" ID="87e95f4ce1825556" Elapsed="5"
-                        // QueryQueue="1533.8 8.17835 446121285" SystemKeyQueries="934.999 11.0172 338909424" GetKeyQueries="0 -1 2174" GetValueQueries="970.399 12.5775 262317949"
-                        // GetRangeQueries="563.399 4.76179 183801162" GetRangeSystemKeyQueries="271.2 4.34073 114334078" GetRangeStreamQueries="0 -1 0" FinishedQueries="1533.8 9.30897 446121285"
-                        // LowPriorityQueries="0 -1 0" RowsQueried="22057.2 175.782 10846563485" BytesQueried="3.63678e+06 29196.7 1769773380385" WatchQueries="3.2 0.917709 535377"
-                        // EmptyQueries="202.2 20.8089 39720163" FeedRowsQueried="0 -1 0" FeedBytesQueried="0 -1 0" FeedStreamQueries="0 -1 0" RejectedFeedStreamQueries="0 -1 0"
-                        // FeedVersionQueries="0 -1 0" GetMappedRangeBytesQueried="0 -1 0" FinishedGetMappedRangeSecondaryQueries="0 -1 0" GetMappedRangeQueries="0 -1 0"
-                        // FinishedGetMappedRangeQueries="0 -1 0" BytesInput="3.30378e+06 41382.5 683693747690" LogicalBytesInput="963687 12070.3 212466787405" LogicalBytesMoveInOverhead="0 -1 3848694"
-                        // KVCommitLogicalBytes="354421 176147 351330835020" KVClearRanges="252 138.265 86023885" KVClearSingleKey="0.2 0 46891" KVSystemClearRanges="0.799999 1.4685 463375"
-                        // BytesDurable="1.63682e+06 818458 683676529700" BytesFetched="0 -1 156529210974" MutationBytes="982851 12310.3 215952228649" FeedBytesFetched="0 -1 0"
-                        // SampledBytesCleared="35750 178149 212529427228" KVFetched="0 -1 981991176" Mutations="1597 19.0042 290453437" SetMutations="1084.4 16.6442 148931696"
-                        // ClearRangeMutations="286 22.9326 85568844" AtomicMutations="226.6 192.432 55952897" UpdateBatches="1653.2 6.89218 457753157" UpdateVersions="304.4 2.81295 87325358"
-                        // Loops="1663.2 6.5741 460529340" FetchWaitingMS="0 -1 314243" FetchWaitingCount="0 -1 1489" FetchExecutingMS="0 -1 14441552" FetchExecutingCount="0 -1 1489"
-                        // ReadsRejected="0 -1 0" WrongShardServer="0 -1 1581" FetchedVersions="997668 5404.77 271137479542" FetchesFromLogs="1653.2 7.9577 457753157" QuickGetValueHit="0 -1 0"
-                        // QuickGetValueMiss="0 -1 0" QuickGetKeyValuesHit="0 -1 0" QuickGetKeyValuesMiss="0 -1 0" KVScanBytes="3.37271e+06 30331.1 1609369831047" KVGetBytes="115864 2024.36 51344830770"
-                        // EagerReadsKeys="512.6 28.2974 141523524" KVGets="1197 15.5863 318054755" KVScans="1684 13.1734 523470933" KVCommits="2 2.8017e-06 596034" LastTLogVersion="48820848276807"
-                        // Version="48820848276807" StorageVersion="48820842885415" DurableVersion="48820842885415" DesiredOldestVersion="48820843276807" VersionLag="135" LocalRate="100"
-                        // BytesReadSampleCount="0" FetchKeysFetchActive="0" FetchKeysWaiting="0" FetchChangeFeedFetchActive="0" FetchChangeFeedWaiting="0" QueryQueueMax="35" BytesStored="898686696480" A
-                        // ctiveWatches="65" WatchBytes="68521" KvstoreSizeTotal="0" KvstoreNodeTotal="0" KvstoreInlineKey="0" ActiveChangeFeeds="0" ActiveChangeFeedQueries="0"
-                        // StorageEngine="ssd-redwood-1-experimental" Tag="0:137" KvstoreBytesUsed="877656145920" KvstoreBytesFree="2702898458624" KvstoreBytesAvailable="2730074533888"
-                        // KvstoreBytesTotal="4754834661376" KvstoreBytesTemp="4080214016" ThreadID="18261086947468930259" Machine="10.0.0.1:4500" LogGroup="default" Roles="SS" TrackLatestType="Original" />
-                        case "StorageMetrics": {
-                            String port = getPort(map);
-                            addDoubleGauges(map, port, Arrays.asList("Fetch"));
-                            addDoubleGauges(map, port, Arrays.asList("bytes", "Bytes", "StorageVersion",
-                                    "DurableVersion", "LoopsPerSecond", "MutationBytesPerSecond",
-                                    "QueriesPerSecond", "Query", "Version", "IdleTime",
-                                    "ChangesPerSecond", "ElapsedTime", "BytesFetchedPerSecond", "Mutation", "Kv",
-                                    "Quick", "Finished", "Feed", "Get", "Set"));
-                            break;
-                        }
-                        case "MasterCommit": {
-                            String port = getPort(map);
-                            addDoubleGauges(map, "master." + port, Arrays.asList("CommittedTransactions",
-                                    "SubmittedTransactions", "Mutations", "Commits"));
-                            addDoubleGauges(map, "master" + port, Arrays.asList("Version", "CommittedVersion"));
-                            break;
-                        }
-                        case "RkUpdate": {
-                            addDoubleGauges(map, "ratekeeper." + getPort(map), Arrays.asList("StorageServers", "Proxies",
-                                    "TLogs", "ReadReplyRate", "WorseFreeSpace", "TPSLimit", "ReleasedTPS"));
-                            break;
-                        }
-                        case "TotalDataInFlight": {
-                            addDoubleGauge(map, "inflight", "TotalBytes");
-                            break;
-                        }
-                        case "MovingData": {
-                            // an entry looks something like:
-                            // <Event Severity="10" Time="1622081571.719325" Type="MovingData" ID="8fb39ddb70631e31"
-                            // InFlight="845" InQueue="315666" AverageShardSize="250000000" UnhealthyRelocations="143"
-                            // HighestPriority="950" BytesWritten="346668575426" PriorityRecoverMove="0" PriorityRebalanceUnderutilizedTeam="40"
-                            // PriorityRebalanceOverutilizedTeam="36" PriorityTeamHealthy="0" PriorityTeamContainsUndesiredServer="0"
-                            // PriorityTeamRedundant="4" PriorityMergeShard="264698" PriorityPopulateRegion="0" PriorityTeamUnhealthy="0"
-                            // PriorityTeam2Left="0" PriorityTeam1Left="0" PriorityTeam0Left="0" PrioritySplitShard="51733"
-                            // Machine="10.5.1.101:4591" LogGroup="default" Roles="DD" TrackLatestType="Original" />
-                            addDoubleGauge(map, "shards." + getPort(map), "AverageShardSize");
-                            addDoubleGauges(map, "moving", Arrays.asList("InFlight", "InQueue",
-                                    "LowPriorityRelocations", "HighPriorityRelocations", "HighestPriority",
-                                    "UnhealthyRelocations", "BytesWritten", "Priority"));
-                            break;
-                        }
-                        case "MachineLoadDetail": {
-                            addDoubleGauges(map, "load", Arrays.asList("User", "Nice", "System", "Idle", "IOWait", "Steal", "Guest"));
-                            addDoubleGauges(map, "interrupts", Arrays.asList("IRQ", "SoftIRQ"));
-                            break;
-                        }
-                        case "ProgramStart": {
-                            addDoubleGauge(map, getPort(map) + ".start", "ActualTime");
-                            break;
-                        }
-                        case "MemSample": {
-                            // an entry look something like:
-                            // <Event Severity="10" Time="1402522454.544848" Type="MemSample" Machine="0.0.0.0:0"
-                            //        ID="0000000000000000" Count="133088" TotalSize="545128448" SampleCount="1"
-                            //        Hash="FastAllocatedUnused4096" Bt="na"/>
-                            String hash = map.getNamedItem("Hash").getNodeValue();
-                            if (hash.startsWith("FastAllocatedUnused")) {
-                                // remove the prefix.
-                                hash = hash.substring("FastAllocatedUnused".length());
-                                addDoubleGauges(map, "memsample.fast_allocated_unused." + hash, Arrays.asList("Count", "TotalSize"));
-                            } else if (hash.equals("backTraces") || hash.equals("memSamples")) {
-                                addDoubleGauges(map, "memsample." + encode(hash), Arrays.asList("Count", "TotalSize", "SampleCount"));
-                            }
-                            break;
-                        }
-                        case "MemSampleSummary": {
-                            // an entry look something like:
-                            // <Event Severity="10" Time="1402610771.246234" Type="MemSampleSummary" Machine="0.0.0.0:0"
-                            //        ID="0000000000000000" InverseByteSampleRatio="10000000" MemorySamples="0" BackTraces="1"
-                            //        TotalSize="0" TotalCount="0"/>
-                            addDoubleGauges(map, "memsample", Arrays.asList("InverseByteSampleRatio", "MemorySamples", "BackTraces",
-                                    "TotalSize", "TotalCount"));
-                            break;
-                        }
-                        case "RedwoodMetrics": {
-                            // an entry looks something like:
-                            // BTreePreload="919" BTreePreloadExt="60" OpSet="10377" OpSetKeyBytes="375634" OpSetValueBytes="26560987" OpClear="806" OpClearKey="0" OpGet="75" OpGetRange="1403" OpCommit="10"
-                            // PagerDiskWrite="4298" PagerDiskRead="1324" PagerCacheHit="8848" PagerCacheMiss="1183" PagerProbeHit="1" PagerProbeMiss="23" PagerEvictUnhit="3222" PagerEvictFail="0"
-                            // PagerRemapFree="207" PagerRemapCopy="24" PagerRemapSkip="176" LookupGetRPF="919" LookupMeta="53" HitGetRPF="61" HitMeta="20" MissGetRPF="858" MissMeta="9"
-                            // WriteMeta="74" PageCacheCount="189076" PageCacheMoved="0" PageCacheSize="2147481730" DecodeCacheSize="46733442" L1PageBuild="2449" L1PageBuildExt="1578"
-                            // L1PageModify="105" L1PageModifyExt="5" L1PageRead="2942" L1PageReadExt="729" L1PageCommitStart="403" L1LazyClearInt="0" L1LazyClearIntExt="0" L1LazyClear="0"
-                            // L1LazyClearExt="0" L1ForceUpdate="0" L1DetachChild="0" L1LookupCommit="403" L1LookupLazyClr="0" L1LookupGet="75" L1LookupGetR="2464" L1HitCommit="389" L1HitLazyClr="0"
-                            // L1HitGet="61" L1HitGetR="2222" L1MissCommit="14" L1MissLazyClr="0" L1MissGet="14" L1MissGetR="242" L1WriteCommit="4137" L1WriteLazyClr="0" L2PageBuild="20" L2PageBuildExt="0"
-                            // L2PageModify="49" L2PageModifyExt="0" L2PageRead="1583" L2PageReadExt="0" L2PageCommitStart="101" L2LazyClearInt="0" L2LazyClearIntExt="0" L2LazyClear="0" L2LazyClearExt="0"
-                            // L2ForceUpdate="13" L2DetachChild="68" L2LookupCommit="101" L2LookupLazyClr="0" L2LookupGet="75" L2LookupGetR="1407" L2HitCommit="96" L2HitLazyClr="0" L2HitGet="72" L2HitGetR="1377"
-                            // L2MissCommit="5" L2MissLazyClr="0" L2MissGet="3" L2MissGetR="30" L2WriteCommit="69" L2WriteLazyClr="0" L3PageBuild="0" L3PageBuildExt="0" L3PageModify="16" L3PageModifyExt="0"
-                            // L3PageRead="1551" L3PageReadExt="0" L3PageCommitStart="73" L3LazyClearInt="0" L3LazyClearIntExt="0" L3LazyClear="0" L3LazyClearExt="0" L3ForceUpdate="6" L3DetachChild="19"
-                            // L3LookupCommit="73" L3LookupLazyClr="0" L3LookupGet="75" L3LookupGetR="1403" L3HitCommit="73" L3HitLazyClr="0" L3HitGet="75" L3HitGetR="1395" L3MissCommit="0" L3MissLazyClr="0" L3MissGet="0"
-                            // L3MissGetR="8" L3WriteCommit="16" L3WriteLazyClr="0" L4PageBuild="0" L4PageBuildExt="0" L4PageModify="2" L4PageModifyExt="0" L4PageRead="1519" L4PageReadExt="0" L4PageCommitStart="41"
-                            // L4LazyClearInt="0" L4LazyClearIntExt="0" L4LazyClear="0" L4LazyClearExt="0" L4ForceUpdate="2" L4DetachChild="7" L4LookupCommit="41" L4LookupLazyClr="0" L4LookupGet="75" L4LookupGetR="1403"
-                            // L4HitCommit="41" L4HitLazyClr="0" L4HitGet="75" L4HitGetR="1403" L4MissCommit="0" L4MissLazyClr="0" L4MissGet="0" L4MissGetR="0" L4WriteCommit="2" L4WriteLazyClr="0" L5PageBuild="0"
-                            // L5PageBuildExt="0" L5PageModify="0" L5PageModifyExt="0" L5PageRead="1488" L5PageReadExt="0" L5PageCommitStart="10" L5LazyClearInt="0" L5LazyClearIntExt="0" L5LazyClear="0" L5LazyClearExt="0"
-                            // L5ForceUpdate="0" L5DetachChild="0" L5LookupCommit="10" L5LookupLazyClr="0" L5LookupGet="75" L5LookupGetR="1403" L5HitCommit="10" L5HitLazyClr="0" L5HitGet="75" L5HitGetR="1403"
-                            // L5MissCommit="0" L5MissLazyClr="0" L5MissGet="0" L5MissGetR="0" L5WriteCommit="0" L5WriteLazyClr="0" ThreadID="13425918326275095525" Machine="10.0.0.1:4502" LogGroup="default" Roles="SS" />
-                            String port = getPort(map);
-                            addDoubleGauges(map, port, Arrays.asList("BTreePreload", "BTreePreloadExt", "OpSetKeyBytes", "OpSetValueBytes", "OpClear", "OpClearKey", "OpGet", "OpGetRange", "OpCommit",
-                                    "PagerDiskWrite", "PagerDiskRead", "PagerCacheHit", "PagerCacheMiss", "PagerProbeHit", "PagerProbeMiss", "PagerEvictUnhit", "PagerEvictFail",
-                                    "PagerRemapFree", "PagerRemapCopy", "PagerRemapSkip", "LookupGetRPF", "LookupMeta", " HitGetRPF", "HitMeta", "MissGetRPF", "MissMeta",
-                                    "WriteMeta", "PageCacheCount", "PageCacheMoved", "PageCacheSize", "DecodeCacheSize", "L1PageBuild", "L1PageBuildExt",
-                                    "L1PageModify", "L1PageModifyExt", "L1PageRead", "L1PageReadExt", "L1PageCommitStart", "L1LazyClearInt", "L1LazyClearIntExt", "L1LazyClear",
-                                    "L1LazyClearExt", "L1ForceUpdate", "L1DetachChild", "L1LookupCommit", "L1LookupLazyClr", "L1LookupGet", "L1LookupGetR", "L1HitCommit", "L1HitLazyClr",
-                                    "L1HitGet", "L1HitGetR", "L1MissCommit", "L1MissLazyClr", "L1MissGet", "L1MissGetR", "L1WriteCommit", "L1WriteLazyClr", "L2PageBuild", "L2PageBuildExt",
-                                    "L2PageModify", "L2PageModifyExt", "L2PageRead", "L2PageReadExt", "L2PageCommitStart", "L2LazyClearInt", "L2LazyClearIntExt", "L2LazyClear", "L2LazyClearExt",
-                                    "L2ForceUpdate", "L2DetachChild", "L2LookupCommit", "L2LookupLazyClr", "L2LookupGet", "L2LookupGetR", "L2HitCommit", "L2HitLazyClr", "L2HitGet", "L2HitGetR",
-                                    "L2MissCommit", "L2MissLazyClr", "L2MissGet", "L2MissGetR", "L2WriteCommit", "L2WriteLazyClr", "L3PageBuild", "L3PageBuildExt", "L3PageModify", "L3PageModifyExt",
-                                    "L3PageRead", "L3PageReadExt", "L3PageCommitStart", "L3LazyClearInt", "L3LazyClearIntExt", "L3LazyClear", "L3LazyClearExt", "L3ForceUpdate", "L3DetachChild",
-                                    "L3LookupCommit", "L3LookupLazyClr", "L3LookupGet", "L3LookupGetR", "L3HitCommit", "L3HitLazyClr", "L3HitGet", "L3HitGetR", "L3MissCommit", "L3MissLazyClr", "L3MissGet",
-                                    "L3MissGetR", "L3WriteCommit", "L3WriteLazyClr", "L4PageBuild", "L4PageBuildExt", "L4PageModify", "L4PageModifyExt", "L4PageRead", "L4PageReadExt", "L4PageCommitStart",
-                                    "L4LazyClearInt", "L4LazyClearIntExt", "L4LazyClear", "L4LazyClearExt", "L4ForceUpdate", "L4DetachChild", "L4LookupCommit", "L4LookupLazyClr", "L4LookupGet" ,"L4LookupGetR",
-                                    "L4HitCommit", "L4HitLazyClr", "L4HitGet", "L4HitGetR", "L4MissCommit", "L4MissLazyClr", "L4MissGet", "L4MissGetR", "L4WriteCommit", "L4WriteLazyClr", "L5PageBuild",
-                                    "L5PageBuildExt", "L5PageModify", "L5PageModifyExt", "L5PageRead", "L5PageReadExt", "L5PageCommitStart", "L5LazyClearInt", "L5LazyClearIntExt", "L5LazyClear", "L5LazyClearExt",
-                                    "L5ForceUpdate", "L5DetachChild", "L5LookupCommit", "L5LookupLazyClr", "L5LookupGet", "L5LookupGetR", "L5HitCommit", "L5HitLazyClr", "L5HitGet", "L5HitGetR",
-                                    "L5MissCommit", "L5MissLazyClr", "L5MissGet", "L5MissGetR", "L5WriteCommit", "L5WriteLazyClr"));
-                            break;
-                        }
-                        default: {
-                            break;
-                        }
-                    }
-                }
-                Node severity = map.getNamedItem("Severity");
-                if (severity != null) {
-                    Counter counter = severityMetrics.get(severity.getNodeValue());
-                    if (counter != null) {
-                        counter.inc();
+            if (file != null && rollHandler != null) {
+                rollHandler.accept(file);
+            }
+        } else if (TraceLineScanner.startsWith(line, "<Event ")) {
+            handleEventLine(line, false);
+        } else if (TraceLineScanner.startsWith(line, "{")) {
+            handleEventLine(line, true);
+        }
+    }
+
+    private void handleEventLine(CharSequence line, boolean json) {
+        // Most events are of no interest; unless the cluster file is still being looked for, they are only counted.
+        if (pendingClusterFile == null &&
+                (json ? typeFilter.checkJson(line) : typeFilter.check(line)) == EventTypeFilter.REJECTED) {
+            skippedLines.inc();
+            severities.count(json ? EventTypeFilter.jsonSeverity(line) : EventTypeFilter.severity(line));
+            return;
+        }
+        try {
+            TraceEvent event;
+            if ((++parsedEvents & (TIMING_SAMPLE - 1)) == 0) {
+                long start = System.nanoTime();
+                event = parseEvent(line, json);
+                parseTime.update(System.nanoTime() - start);
+            } else {
+                event = parseEvent(line, json);
+            }
+            handleEvent(event);
+        } catch (ParserConfigurationException | SAXException | IOException | IllegalArgumentException e) {
+            logger.log(Level.SEVERE, "Failed to parse log line: " + line, e);
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Takes the metrics from a parsed event, and counts the event by its severity.
+     */
+    @VisibleForTesting
+    void handleEvent(TraceEvent map) throws IOException {
+        if (pendingClusterFile != null) {
+            String clusterFile = map.getAttribute("ClusterFile");
+            if (clusterFile != null) {
+                setClusterFile(pendingClusterFile, clusterFile);
+            }
+        }
+        String type = map.getInternedAttribute("Type");
+        MetricRules.Rule[] rules = type == null ? null : rulesByType.get(type);
+        if (rules != null) {
+            countType(type);
+            // The Time is read for the lag even when points are stamped when they are sent.
+            Long time = eventTime ? getTimestamp(map) : getTime(map);
+            if (time != null) {
+                lastEventMillis = time;
+            }
+            timestamp = eventTime ? time : null;
+            late = false;
+            if (timestamp != null && maxLatenessMillis > 0) {
+                long now = System.currentTimeMillis();
+                if (now - timestamp > maxLatenessMillis) {
+                    latePoints.inc();
+                    if (latePointPolicy == FDBMetricsReporterArguments.LatePointPolicy.CLAMP) {
+                        timestamp = now;
+                    } else {
+                        late = true;
                     }
                 }
-            } catch (ParserConfigurationException | SAXException | IOException | IllegalArgumentException e) {
-                logger.log(Level.SEVERE, "Failed to parse log line: " + line, e);
-                throw new RuntimeException(e);
+            }
+            for (MetricRules.Rule rule : rules) {
+                apply(map, rule);
             }
         }
+        severities.count(map.getInternedAttribute("Severity"));
     }
 
-    private void addDoubleGauges(NamedNodeMap map, String port, List<String> list) throws IOException {
-        for (int i = 0; i < map.getLength(); ++i) {
-            String name = map.item(i).getNodeName();
-            for (String prefix : list) {
-                if (name.startsWith(prefix)) {
-                    addDoubleGauge(map, port, name);
+    private void countType(String type) {
+        Counter count = typeCounts.get(type);
+        if (count == null) {
+            count = SharedMetricRegistries.getDefault().counter(addPrefix("events." + type));
+            typeCounts.put(type, count);
+        }
+        count.inc();
+    }
+
+    private void apply(TraceEvent map, MetricRules.Rule rule) throws IOException {
+        String wildcard = null;
+        for (int i = 0; i < rule.whenAttributes.length; ++i) {
+            String value = map.getInternedAttribute(rule.whenAttributes[i]);
+            if (value == null || !rule.matches(i, value)) {
+                return;
+            }
+            if (i == rule.wildcard) {
+                wildcard = names.tail(value, rule.wildcardStart());
+            }
+        }
+        String scope = resolve(map, rule.scope, wildcard);
+        if (rule.name != null) {
+            boolean matches = rule.testValue.equals(map.getInternedAttribute(rule.testAttribute));
+            update(names.handle(scope, resolve(map, rule.name, wildcard)), matches ? 1 : 0);
+            return;
+        }
+        if (rule.attributes != null) {
+            for (int i = 0; i < map.getAttributeCount(); ++i) {
+                if (MetricRules.Rule.isIncluded(rule.attributes.classify(map.getAttributeName(i)))) {
+                    addDoubleGauge(map, scope, map.getAttributeName(i), i, rule.value);
                 }
             }
         }
+        for (String name : rule.exactAttributes) {
+            addDoubleGauge(map, scope, name, map.indexOf(name), rule.value);
+        }
+    }
+
+    /**
+     * @return The template filled in from the event, built only the first time the same parts are asked for.
+     */
+    private String resolve(TraceEvent map, MetricRules.Template template, String wildcard) {
+        String resolved = null;
+        for (int i = 0; i < template.kinds.length; ++i) {
+            String part;
+            switch (template.kinds[i]) {
+                case MetricRules.Template.PORT:
+                    part = getPort(map);
+                    break;
+                case MetricRules.Template.WILDCARD:
+                    part = wildcard;
+                    break;
+                case MetricRules.Template.ATTRIBUTE:
+                    part = map.getInternedAttribute(template.texts[i]);
+                    if (part == null) {
+                        throw new IllegalArgumentException("'" + template.texts[i] + "' attribute is missing");
+                    }
+                    break;
+                default:
+                    part = template.texts[i];
+                    break;
+            }
+            resolved = resolved == null ? part : names.scope(resolved, part);
+        }
+        return resolved;
     }
 
-    private void addDoubleGauge(NamedNodeMap map, String prefix, String name) throws IOException {
-        String metricName = addPrefix(prefix + "." + encode(name));
-        if (this.wavefrontSender == null) {
-            gauges.getUnchecked(metricName);
-        } else {
-            this.wavefrontSender.sendMetric(metricName,
-                    values.getUnchecked(metricName).doubleValue(),
-                    null,
-                    null,
-                    tags);
+    private TraceEvent parseEvent(CharSequence line, boolean json)
+            throws ParserConfigurationException, SAXException, IOException {
+        if (json) {
+            if (jsonEvent == null) {
+                jsonEvent = new JsonTraceEvent();
+            }
+            jsonEvent.parse(line);
+            return jsonEvent;
         }
-        AtomicDouble value = values.getUnchecked(metricName);
-        Node nodeValue = map.getNamedItem(name);
-        if (nodeValue != null) {
-            extractDoubleFromNodeValue(value, nodeValue);
+        if (!domParsing && scanner.scan(line)) {
+            return scanner;
         }
+        return DomTraceEvent.parse(line.toString());
     }
 
-    private void extractDoubleFromNodeValue(AtomicDouble value, Node nodeValue) {
-        try {
-            value.set(Double.parseDouble(nodeValue.getNodeValue()));
-        } catch (NumberFormatException ex) {
-            // It is possible that the number has multiple parts and the last part is the actual value.
-            value.set(Double.parseDouble(Iterables.getLast(Splitter.on(" ").split(nodeValue.getNodeValue()))));
+    /**
+     * Sets and sends the metric for one attribute of the event.
+     *
+     * @param index The index of the attribute in the event, or -1 if the event does not have it.
+     * @param value Which part of the attribute's value to report, one of the {@code MetricRules.VALUE_} constants.
+     */
+    @VisibleForTesting
+    void addDoubleGauge(TraceEvent map, String scope, String name, int index, int value) throws IOException {
+        MetricNameCache.MetricHandle handle = names.handle(scope, name);
+        if (index == -1) {
+            if (timestamp == null) {
+                send(handle);
+            }
+            return;
+        }
+        // It is possible that the number has multiple parts and the last part is the actual value.
+        double total = map.decodeAttributeValue(index, decoder);
+        if (value != MetricRules.VALUE_TOTAL) {
+            // The rate or roughness of a counter, which a plain number does not have.
+            if (decoder.getComponentCount() == TraceValueDecoder.MAX_COMPONENTS) {
+                update(handle, decoder.getComponent(value == MetricRules.VALUE_RATE ? 0 : 1));
+            }
+            return;
+        }
+        update(handle, total);
+        if (counterComponents && decoder.getComponentCount() == TraceValueDecoder.MAX_COMPONENTS) {
+            for (int component = 0; component < TraceValueDecoder.MAX_COMPONENTS - 1; ++component) {
+                update(names.component(handle, component), decoder.getComponent(component));
+            }
+        }
+    }
+
+    private void update(MetricNameCache.MetricHandle handle, double value) throws IOException {
+        // A series the store has just evicted, or has rejected, has no value to send.
+        if (metrics.set(handle.reference(), value)) {
+            send(handle);
         }
     }
 
-    private String getPort(NamedNodeMap map) {
-        Node machineNode = map.getNamedItem("Machine");
-        if (machineNode == null) {
+    private void send(MetricNameCache.MetricHandle handle) throws IOException {
+        if (this.wavefrontSender != null && !late && !MetricStore.isRejected(handle.reference())) {
+            if ((++sentPoints & (TIMING_SAMPLE - 1)) == 0) {
+                long start = System.nanoTime();
+                sendPoint(handle);
+                sendTime.update(System.nanoTime() - start);
+            } else {
+                sendPoint(handle);
+            }
+        }
+    }
+
+    private void sendPoint(MetricNameCache.MetricHandle handle) throws IOException {
+        this.wavefrontSender.sendMetric(handle.name,
+                metrics.get(handle.reference()),
+                timestamp,
+                null,
+                tags);
+    }
+
+    /**
+     * @return The event's Time attribute, or failing that its DateTime, in milliseconds, or null if it has neither.
+     */
+    private Long getTimestamp(TraceEvent map) {
+        Long time = getTime(map);
+        if (time != null) {
+            return time;
+        }
+        String dateTime = map.getAttribute("DateTime");
+        if (dateTime != null) {
+            try {
+                return Instant.parse(dateTime).toEpochMilli();
+            } catch (DateTimeParseException e) {
+                throw new IllegalArgumentException("Cannot parse DateTime '" + dateTime + "'", e);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return The event's Time attribute in milliseconds, or null if it has none.
+     */
+    private Long getTime(TraceEvent map) {
+        int index = map.indexOf("Time");
+        return index == -1 ? null : Math.round(map.decodeAttributeValue(index, decoder) * 1000);
+    }
+
+    private String getPort(TraceEvent map) {
+        String machine = map.getInternedAttribute("Machine");
+        if (machine == null) {
             throw new IllegalArgumentException("'Machine' attribute is missing");
         }
-        String machine = machineNode.getNodeValue();
-        return machine.substring(machine.indexOf(":") + 1);
+        return names.port(machine);
     }
 
+    /**
+     * Only called once per type, when the listener is created.
+     */
     private boolean enableMetricReporting(String nodeValue) {
         boolean enabled = true;
         if (disabledMetrics.toString().toLowerCase().contains(nodeValue.toLowerCase())) {
@@ -424,19 +681,6 @@ public class FDBLogListener extends TailerListenerAdapter {
 
     @VisibleForTesting
     String encode(String name) {
-        StringBuilder sb = new StringBuilder();
-        for (int i = 0; i < name.length(); ++i) {
-            char ch = name.charAt(i);
-            if (isUpperCase(ch)) {
-                if ((i != 0 && i + 1 < name.length() && isLowerCase(name.charAt(i + 1))) ||
-                        (i > 0 && isLowerCase(name.charAt(i - 1)))) {
-                    sb.append("_");
-                }
-            }
-            if (ch != '_') {
-                sb.append(toLowerCase(ch));
-            }
-        }
-        return sb.toString();
+        return MetricNameCache.encode(name);
     }
 }
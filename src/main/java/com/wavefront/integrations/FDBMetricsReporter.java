@@ -3,23 +3,26 @@ package com.wavefront.integrations;
 import com.codahale.metrics.*;
 import com.codahale.metrics.graphite.Graphite;
 import com.codahale.metrics.graphite.GraphiteReporter;
-import com.google.common.cache.CacheBuilder;
-import com.google.common.cache.CacheLoader;
-import com.google.common.cache.LoadingCache;
-import com.google.common.util.concurrent.AtomicDouble;
+import com.google.common.base.Charsets;
 import com.wavefront.dropwizard.metrics.DropwizardMetricsReporter;
 import com.wavefront.sdk.common.WavefrontSender;
 import com.wavefront.sdk.common.clients.WavefrontClientFactory;
-import org.apache.commons.io.input.Tailer;
 
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
+import java.time.Instant;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Pattern;
@@ -35,6 +38,8 @@ public class FDBMetricsReporter {
 
     private final static int FILE_PARSING_PERIOD = 30;
 
+    private final static int RECONCILIATION_PERIOD = 300;
+
     private final static int METRICS_REPORTING_PERIOD = 60;
 
     private final static int BATCH_SIZE = 100_000;
@@ -43,6 +48,15 @@ public class FDBMetricsReporter {
 
     private final static int FLUSH_INTERVAL_SECONDS = 60;
 
+    private final static int CHECKPOINT_PERIOD = 5;
+
+    private final static int METRIC_SWEEP_PERIOD = 60;
+
+    /**
+     * How long every step of shutting down may wait for the one before to finish.
+     */
+    private final static int SHUTDOWN_STEP_SECONDS = 10;
+
     static {
         SharedMetricRegistries.setDefault("defaultFDBMetrics", new MetricRegistry());
     }
@@ -51,54 +65,79 @@ public class FDBMetricsReporter {
 
     private WavefrontSender wavefrontSender;
 
+    /**
+     * The sender of the points read from trace files, which writes straight to the proxy in PROXY mode.
+     */
+    private WavefrontSender pointSender;
+
+    /**
+     * The sender of the points of tailed files, which coalesces them unless that is disabled.
+     */
+    private WavefrontSender listenerSender;
+
+    private CoalescingSender coalescingSender;
+
     private String directory;
 
     private String matching;
 
     private String prefix;
 
-    private LoadingCache<String, AtomicDouble> values;
+    private MetricStore metrics;
 
-    private LoadingCache<String, Gauge<Double>> gauges;
+    private MetricRules metricRules;
 
     private String SERVICE_NAME = "fdbtailer";
 
     private List<String> disabledMetrics = new ArrayList<>();
 
+    private boolean counterComponents;
+
+    private TailingEngine tailingEngine;
+
+    private CheckpointStore checkpoints;
+
+    private ParsePipeline parsePipeline;
+
+    private FDBMetricsReporterArguments arguments;
+
+    private Pattern pattern;
+
+    private final ConcurrentSkipListMap<File, TailedFile> files = new ConcurrentSkipListMap<>();
+
+    /**
+     * The listener of every tailed file.
+     */
+    private final Map<File, FDBLogListener> listeners = new ConcurrentHashMap<>();
+
+    /**
+     * The severity counts of the files no longer tailed.
+     */
+    private final SeverityCounts retiredSeverities = new SeverityCounts();
+
+    /**
+     * The last finished file of every process whose next file has not appeared yet, keyed by process.
+     */
+    private final Map<String, TraceFileName> rolledFiles = new ConcurrentHashMap<>();
+
     String metricName(String name) {
         return prefix + name;
     }
 
+    private MetricStore newMetricStore(boolean registerGauges) {
+        int idleSweeps = (int) Math.max(1, (arguments.getSeriesIdleSeconds() + METRIC_SWEEP_PERIOD - 1) /
+                METRIC_SWEEP_PERIOD);
+        return new MetricStore(SharedMetricRegistries.getDefault(), prefix, registerGauges, arguments.getMaxSeries(),
+                idleSweeps);
+    }
+
     public FDBMetricsReporter(FDBMetricsReporterArguments arguments) throws UnknownHostException {
+        this.arguments = arguments;
         this.directory = arguments.getDirectory();
         this.matching = arguments.getMatching();
+        this.pattern = Pattern.compile(matching);
         this.prefix = arguments.getPrefix();
 
-        this.values = CacheBuilder.newBuilder().build(
-                new CacheLoader<String, AtomicDouble>() {
-                    @Override
-                    public AtomicDouble load(String key) {
-                        return new AtomicDouble();
-                    }
-                });
-
-        this.gauges = CacheBuilder.newBuilder().build(
-                new CacheLoader<String, Gauge<Double>>() {
-                    @Override
-                    public Gauge load(final String key) {
-                        return SharedMetricRegistries.getDefault().gauge(metricName(key),
-                                () -> new Gauge() {
-                                    AtomicDouble value = values.getUnchecked(key);
-
-                                    @Override
-                                    public Double getValue() {
-                                        return value.get();
-                                    }
-                                });
-                    }
-                }
-        );
-
         if (arguments.getServiceName() != null) {
             SERVICE_NAME = arguments.getServiceName();
         }
@@ -107,6 +146,20 @@ public class FDBMetricsReporter {
             disabledMetrics = arguments.getDisabledMetrics();
         }
 
+        this.counterComponents = arguments.isCounterComponents();
+        this.metricRules = arguments.getMetricRules() == null ? MetricRules.defaults() :
+                MetricRules.compile(arguments.getMetricRules());
+        this.tailingEngine = new TailingEngine(arguments.getTailerThreads(), SharedMetricRegistries.getDefault(),
+                prefix);
+        if (arguments.getParseThreads() > 0) {
+            this.parsePipeline = new ParsePipeline(arguments.getParseThreads(), arguments.getParseQueueSize(),
+                    arguments.getParseBackpressure(), SharedMetricRegistries.getDefault(), prefix);
+        }
+        if (arguments.getCheckpointFile() != null) {
+            this.checkpoints = new CheckpointStore(arguments.getCheckpointFile(),
+                    TimeUnit.SECONDS.toMillis(arguments.getMaxCatchUpSeconds()));
+        }
+
         if (arguments.getReporterType() == FDBMetricsReporterArguments.ReporterType.PROXY) {
             initProxy(arguments.getProxyHost(), arguments.getProxyPort());
         } else if (arguments.getReporterType() == FDBMetricsReporterArguments.ReporterType.DIRECT) {
@@ -114,22 +167,97 @@ public class FDBMetricsReporter {
         } else if (arguments.getReporterType() == FDBMetricsReporterArguments.ReporterType.GRAPHITE) {
             initGraphite(arguments.getGraphiteServer(), arguments.getGraphitePort());
         }
+
+        // Values are only published through registry gauges when there is no sender to send them directly.
+        this.metrics = newMetricStore(wavefrontSender == null);
+
+        this.listenerSender = pointSender;
+        if (pointSender != null && arguments.getCoalesceSeconds() > 0) {
+            this.coalescingSender = new CoalescingSender(pointSender,
+                    TimeUnit.SECONDS.toMillis(arguments.getCoalesceSeconds()), SharedMetricRegistries.getDefault().counter(metricName("coalesced_points")));
+            this.listenerSender = coalescingSender;
+            SharedMetricRegistries.getDefault().register(metricName("pending_points"),
+                    (Gauge<Integer>) coalescingSender::getPendingCount);
+        }
+        registerTailerMetrics();
+        if (listenerSender == null) {
+            // Without a sender, severities can only be reported as totals over every file.
+            for (int level : SeverityCounts.LEVELS) {
+                SharedMetricRegistries.getDefault().register(metricName("severity_" + level),
+                        (Gauge<Long>) () -> severityTotal(level));
+            }
+        }
     }
 
-    private void initDirect(String server, String token, List<Map<String, String>> endPoints) {
-        WavefrontClientFactory wavefrontClientFactory = new WavefrontClientFactory();
+    /**
+     * Registers the totals of the files' own metrics, and the depth of the point sender's queue.
+     */
+    private void registerTailerMetrics() {
+        MetricRegistry registry = SharedMetricRegistries.getDefault();
+        registry.remove(metricName("tailer.bytes_behind"));
+        registry.register(metricName("tailer.bytes_behind"), (Gauge<Long>) () -> {
+            long total = 0;
+            for (FDBLogListener listener : listeners.values()) {
+                total += listener.getBytesBehind();
+            }
+            return total;
+        });
+        // The file furthest behind, which includes files of processes that stopped logging.
+        registry.remove(metricName("tailer.event_lag_ms"));
+        registry.register(metricName("tailer.event_lag_ms"), (Gauge<Long>) () -> {
+            long now = System.currentTimeMillis();
+            long max = 0;
+            for (FDBLogListener listener : listeners.values()) {
+                max = Math.max(max, listener.getEventLagMillis(now));
+            }
+            return max;
+        });
+        if (pointSender instanceof ProxyLineSender || pointSender instanceof FanOutSender) {
+            registry.remove(metricName("sender.queue_depth"));
+            registry.register(metricName("sender.queue_depth"), (Gauge<Integer>) () ->
+                    pointSender instanceof ProxyLineSender ? ((ProxyLineSender) pointSender).getQueueDepth() :
+                            ((FanOutSender) pointSender).getQueueDepth());
+        }
+    }
 
+    private long severityTotal(int level) {
+        long total = retiredSeverities.get(level);
+        for (FDBLogListener listener : listeners.values()) {
+            total += listener.getSeverityCounts().get(level);
+        }
+        return total;
+    }
+
+    private void sendFileMetrics() {
+        long now = System.currentTimeMillis();
+        for (FDBLogListener listener : listeners.values()) {
+            try {
+                listener.sendSeverityCounts(now);
+                listener.sendFileMetrics(now);
+            } catch (Throwable e) {
+                logger.log(Level.WARNING, "Exception while sending file metrics", e);
+            }
+        }
+    }
+
+    private void initDirect(String server, String token, List<Map<String, String>> endPoints) {
+        // Every endpoint gets a sender of its own, so that a slow one cannot hold back the others.  The fan-out's
+        // queues hold and retry the points, so the senders do neither.
+        Map<String, WavefrontSender> senders = new LinkedHashMap<>();
         if (endPoints != null) {
             for (Map<String, String> endPointMap : endPoints) {
                 for (Map.Entry<String, String> entry : endPointMap.entrySet()) {
                     String endPoint = "https://" + entry.getValue();
-                    this.wavefrontSender = addWavefrontClient(wavefrontClientFactory, endPoint);
+                    senders.put(entry.getKey(), new ReportingSender(endPoint, getHostName()));
                 }
             }
         } else {
             String endPoint = "https://" + token + "@" + server;
-            this.wavefrontSender = addWavefrontClient(wavefrontClientFactory, endPoint);
+            senders.put("default", new ReportingSender(endPoint, getHostName()));
         }
+        this.wavefrontSender = new FanOutSender(SharedMetricRegistries.getDefault(), prefix, senders, MAX_QUEUE_SIZE,
+                BATCH_SIZE);
+        this.pointSender = wavefrontSender;
 
         this.reporter = DropwizardMetricsReporter.forRegistry(SharedMetricRegistries.getDefault()).
                 withSource(getHostName()).
@@ -142,6 +270,10 @@ public class FDBMetricsReporter {
         String proxyURL = "proxy://" + proxyHostname + ":" + proxyPort;
         WavefrontClientFactory wavefrontClientFactory = new WavefrontClientFactory();
         this.wavefrontSender = addWavefrontClient(wavefrontClientFactory, proxyURL);
+        // The points read from trace files are by far the most, and go straight to the proxy.
+        this.pointSender = new ProxyLineSender(proxyHostname, proxyPort, getHostName(), FLUSH_INTERVAL_SECONDS,
+                SharedMetricRegistries.getDefault().counter(metricName("sender.dropped")),
+                SharedMetricRegistries.getDefault().timer(metricName("sender.send_latency")));
 
         this.reporter = DropwizardMetricsReporter.forRegistry(SharedMetricRegistries.getDefault()).
                 withSource(getHostName()).
@@ -184,98 +316,397 @@ public class FDBMetricsReporter {
         collectMetrics();
     }
 
-    private void collectMetrics() {
-        final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1);
-        final ScheduledFuture<?> handle = scheduler.scheduleAtFixedRate(new Runnable() {
+    /**
+     * Replays the trace files selected by the backfill arguments as fast as the disk allows, using several threads
+     * across files, and stamps every point with the Time of its event.  Returns once all of them have been read and
+     * their points sent, waiting for failing endpoints to recover, or throws if points could not be sent.
+     */
+    void backfill() throws Exception {
+        if (wavefrontSender == null) {
+            throw new IllegalStateException("Backfill requires a proxy or direct ingestion reporter");
+        }
+        List<File> logFiles = selectBackfillFiles();
+        logger.info("Backfilling " + logFiles.size() + " files");
 
-            final Pattern pattern = Pattern.compile(matching);
-            final ConcurrentSkipListMap<File, Tailer> files = new ConcurrentSkipListMap<>();
-            final ExecutorService es = Executors.newCachedThreadPool();
+        if (pointSender instanceof FanOutSender) {
+            // Rather than run ahead of a failing endpoint and drop the history it has yet to send.
+            ((FanOutSender) pointSender).setWaitForRecovery(true);
+        }
+        FlushingSender sender = new FlushingSender(pointSender, BATCH_SIZE);
+        TailingEngine engine = new TailingEngine(arguments.getBackfillThreads() > 0 ? arguments.getBackfillThreads() :
+                Runtime.getRuntime().availableProcessors());
+        LongAdder lines = new LongAdder();
+        List<TailedFile> replayed = new ArrayList<>();
+        long start = System.nanoTime();
+        for (File logFile : logFiles) {
+            // Each file gets its own values, so that files replayed in parallel cannot report each other's.
+            FDBLogListener listener = new FDBLogListener(prefix, newMetricStore(false), sender, SERVICE_NAME,
+                    disabledMetrics, metricRules);
+            listener.setCounterComponents(counterComponents);
+            listener.setEventTime(true);
+            replayed.add(engine.replay(logFile, new TailListener() {
+                @Override
+                public void init(TailedFile tailedFile) {
+                    listener.init(tailedFile);
+                }
 
-            @Override
-            public void run() {
-                try {
-                    disableInactiveTailers();
-                    sendFDBTailerVersionMetric();
-
-                    File[] logFiles = new File(directory).listFiles(pathname -> pattern.matcher(pathname.getName()).matches());
-                    if (logFiles == null) {
-                        logger.warning("Unable to list files in " + directory +
-                            " - verify that the directory exists");
-                        return;
-                    }
+                @Override
+                public void fileNotFound() {
+                    listener.fileNotFound();
+                }
 
-                    for (File logFile : logFiles) {
-                        if (files.containsKey(logFile) &&
-                                logFile.lastModified() < System.currentTimeMillis() - TimeUnit.HOURS.toMillis(1)) {
-                            disableTailer(logFile, "Disabling listener for file due to inactivity: ");
-                        } else if (logFile.lastModified() > (System.currentTimeMillis() - TimeUnit.HOURS.toMillis(1)) &&
-                                !files.containsKey(logFile)) {
-                            createTailer(logFile);
-                        }
-                    }
-                } catch (Throwable e) {
-                    logger.log(Level.WARNING, "Exception in listener creation", e);
-                    // Keep running
+                @Override
+                public void fileRotated() {
+                    listener.fileRotated();
                 }
+
+                @Override
+                public void handle(CharSequence line) {
+                    lines.increment();
+                    listener.handle(line);
+                }
+
+                @Override
+                public void handle(Exception ex) {
+                    listener.handle(ex);
+                }
+            }));
+        }
+        engine.awaitIdle();
+        engine.shutdown();
+        sender.flush();
+        double seconds = Math.max(System.nanoTime() - start, 1) / 1e9;
+
+        long bytes = 0;
+        for (TailedFile tailedFile : replayed) {
+            bytes += Math.max(tailedFile.getPosition(), 0);
+        }
+        logger.info(String.format("Backfilled %d files in %.1f s: %d lines (%.0f lines/s), %.1f MB (%.1f MB/s), " +
+                        "%d points sent, %d failures", logFiles.size(), seconds, lines.sum(), lines.sum() / seconds,
+                bytes / 1e6, bytes / 1e6 / seconds, sender.getSentCount(), sender.getFailureCount()));
+    }
+
+    private List<File> selectBackfillFiles() throws IOException {
+        List<File> logFiles = new ArrayList<>();
+        if (arguments.getBackfillFiles() != null) {
+            for (String path : arguments.getBackfillFiles()) {
+                logFiles.add(new File(path));
+            }
+            return logFiles;
+        }
+
+        long from = arguments.getBackfillFrom() == null ? 0 : Instant.parse(arguments.getBackfillFrom()).toEpochMilli();
+        long to = arguments.getBackfillTo() == null ? Long.MAX_VALUE :
+                Instant.parse(arguments.getBackfillTo()).toEpochMilli();
+        File[] candidates = new File(directory).listFiles(pathname -> pattern.matcher(pathname.getName()).matches());
+        if (candidates == null) {
+            throw new IOException("Unable to list files in " + directory);
+        }
+        for (File logFile : candidates) {
+            // A file covers the time from its first event until it was last written to.
+            if (logFile.lastModified() >= from && firstEventMillis(logFile) <= to) {
+                logFiles.add(logFile);
             }
+        }
+        return logFiles;
+    }
 
-            private void disableInactiveTailers() {
-                for (File logFile : files.keySet()) {
-                    if (logFile.exists()) {
-                        continue;
+    /**
+     * @return The Time of the first event in a trace file, in milliseconds, or 0 if it cannot be found.
+     */
+    private static long firstEventMillis(File logFile) throws IOException {
+        TraceLineScanner scanner = new TraceLineScanner();
+        JsonTraceEvent jsonEvent = new JsonTraceEvent();
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(logFile), Charsets.UTF_8))) {
+            String line;
+            for (int i = 0; i < 100 && (line = reader.readLine()) != null; ++i) {
+                TraceEvent event = null;
+                if (line.startsWith("<Event ") && scanner.scan(line)) {
+                    event = scanner;
+                } else if (line.startsWith("{")) {
+                    try {
+                        jsonEvent.parse(line);
+                        event = jsonEvent;
+                    } catch (IOException e) {
+                        // Not an event after all.
                     }
-                    disableTailer(logFile, "Disabling listener for the file since it no longer exists: ");
+                }
+                String time = event == null ? null : event.getAttribute("Time");
+                if (time != null) {
+                    return Math.round(Double.parseDouble(time) * 1000);
                 }
             }
+        }
+        return 0;
+    }
 
-            private void disableTailer(File logFile, String msg) {
-                logger.info(msg + logFile);
-                Tailer tailer = files.remove(logFile);
-                if (tailer != null) {
-                    tailer.stop();
+    private void collectMetrics() {
+        final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1);
+        if (checkpoints != null) {
+            scheduler.scheduleWithFixedDelay(() -> {
+                try {
+                    checkpoints.flush();
+                } catch (Throwable e) {
+                    logger.log(Level.WARNING, "Exception while saving checkpoints", e);
                 }
+            }, CHECKPOINT_PERIOD, CHECKPOINT_PERIOD, TimeUnit.SECONDS);
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> shutdown(scheduler), "fdb-shutdown"));
+        if (coalescingSender != null) {
+            scheduler.scheduleAtFixedRate(() -> {
+                try {
+                    coalescingSender.flush();
+                } catch (Throwable e) {
+                    logger.log(Level.WARNING, "Exception while sending coalesced points", e);
+                }
+            }, arguments.getCoalesceSeconds(), arguments.getCoalesceSeconds(), TimeUnit.SECONDS);
+        }
+        scheduler.scheduleAtFixedRate(this::sendFDBTailerVersionMetric, 0, FILE_PARSING_PERIOD, TimeUnit.SECONDS);
+        if (listenerSender != null) {
+            scheduler.scheduleAtFixedRate(this::sendFileMetrics, METRICS_REPORTING_PERIOD, METRICS_REPORTING_PERIOD,
+                    TimeUnit.SECONDS);
+        }
+        scheduler.scheduleAtFixedRate(() -> {
+            try {
+                metrics.sweep();
+            } catch (Throwable e) {
+                logger.log(Level.WARNING, "Exception while evicting metric series", e);
             }
+        }, METRIC_SWEEP_PERIOD, METRIC_SWEEP_PERIOD, TimeUnit.SECONDS);
 
-            private void createTailer(File logFile) {
-                logger.info("Creating new listener for file: " + logFile);
-                if (!logFile.exists()) {
-                    logger.warning(logFile + " not found");
-                    return;
+        // New and deleted files are picked up as they happen.  The scan remains as a safety net, and catches files
+        // going inactive.
+        int scanPeriod = FILE_PARSING_PERIOD;
+        try {
+            DirectoryWatcher watcher = new DirectoryWatcher(new File(directory), pattern, new DirectoryWatcher.Handler() {
+                @Override
+                public void created(File logFile) {
+                    // Everything in a file that was just created is new.
+                    TraceFileName name = TraceFileName.parse(logFile);
+                    if (name != null) {
+                        rolledFiles.remove(name.getProcessKey());
+                    }
+                    createTailer(logFile, 0);
                 }
 
-                if (!logFile.canRead()) {
-                    logger.warning(logFile + " is not readable");
-                    return;
+                @Override
+                public void modified(File logFile) {
+                    if (!files.containsKey(logFile)) {
+                        createTailer(logFile, startPosition(logFile));
+                    }
                 }
 
-                Tailer tailer = new Tailer(logFile, new FDBLogListener(prefix, values, gauges, wavefrontSender, SERVICE_NAME, disabledMetrics), 1000, true);
-                es.submit(tailer);
-                if (files.putIfAbsent(logFile, tailer) != null) {
-                    // The put didn't succeed, stop the tailer.
-                    tailer.stop();
+                @Override
+                public void deleted(File logFile) {
+                    disableTailer(logFile, "Disabling listener for the file since it no longer exists: ");
                 }
+
+                @Override
+                public void overflowed() {
+                    scheduler.execute(FDBMetricsReporter.this::scanFiles);
+                }
+            });
+            watcher.start();
+            scanPeriod = RECONCILIATION_PERIOD;
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Cannot watch " + directory + " - new files will be found by scanning only", e);
+        }
+        scheduler.scheduleAtFixedRate(this::scanFiles, 0, scanPeriod, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Stops tailing and sends the points of everything read before saving the read positions, so that lines read
+     * before shutting down are neither lost nor read again: the tailers are stopped, the lines queued for the parse
+     * workers are handled, the coalesced points are sent, the senders are flushed and closed, and the checkpoints are
+     * saved last.
+     */
+    private void shutdown(ScheduledExecutorService scheduler) {
+        try {
+            scheduler.shutdown();
+            tailingEngine.shutdown();
+            if (!scheduler.awaitTermination(SHUTDOWN_STEP_SECONDS, TimeUnit.SECONDS) ||
+                    !tailingEngine.awaitTermination(SHUTDOWN_STEP_SECONDS, TimeUnit.SECONDS)) {
+                logger.warning("Timed out waiting for tailing to stop");
+            }
+            if (parsePipeline != null && !parsePipeline.drain(SHUTDOWN_STEP_SECONDS, TimeUnit.SECONDS)) {
+                logger.warning("Timed out waiting for the parse workers to handle the lines read");
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // The coalescing sender closes the point sender after sending it what it holds.  In DIRECT mode that is also
+        // the reporter's sender, so the reporter is only stopped afterwards.
+        close(coalescingSender != null ? coalescingSender : pointSender);
+        reporter.stop();
+        if (wavefrontSender != pointSender) {
+            close(wavefrontSender);
+        }
+        if (checkpoints != null) {
+            checkpoints.flush();
+        }
+    }
 
-            /*  
-            **  This method fetches the fdbtailer version number,
-            **  creates a custom metric and pushes it to the wavefront for monitoring.
-            */
-            private void sendFDBTailerVersionMetric() throws Exception {
-                try {
-                    String metricName = SERVICE_NAME.concat(".version");
-                    ImmutableMap<String, String> metrictags = ImmutableMap.<String, String>builder().put(SERVICE_NAME, "version_number").build();
-                    String fdbVersion = getClass().getPackage().getImplementationVersion();
-                    String metricValue = fdbVersion.substring(0, 4);
-                    String pointTagValue = fdbVersion.substring(5, fdbVersion.length());
+    private static void close(WavefrontSender sender) {
+        if (sender == null) {
+            return;
+        }
+        try {
+            sender.flush();
+        } catch (Throwable e) {
+            logger.log(Level.WARNING, "Exception while sending the last points", e);
+        }
+        try {
+            sender.close();
+        } catch (Throwable e) {
+            logger.log(Level.WARNING, "Exception while closing a sender", e);
+        }
+    }
+
+    private void scanFiles() {
+        try {
+            disableInactiveTailers();
+
+            File[] logFiles = new File(directory).listFiles(pathname -> pattern.matcher(pathname.getName()).matches());
+            if (logFiles == null) {
+                logger.warning("Unable to list files in " + directory +
+                    " - verify that the directory exists");
+                return;
+            }
 
-                    metrictags = ImmutableMap.<String, String>builder().put("minor_version", pointTagValue).build();
-                    wavefrontSender.sendMetric(metricName, Double.parseDouble(metricValue), null, getHostName(), metrictags);
+            for (File logFile : logFiles) {
+                if (files.containsKey(logFile) &&
+                        logFile.lastModified() < System.currentTimeMillis() - TimeUnit.HOURS.toMillis(1)) {
+                    disableTailer(logFile, "Disabling listener for file due to inactivity: ");
+                } else if (logFile.lastModified() > (System.currentTimeMillis() - TimeUnit.HOURS.toMillis(1)) &&
+                        !files.containsKey(logFile)) {
+                    createTailer(logFile, startPosition(logFile));
+                }
+            }
+            if (checkpoints != null) {
+                // Every file that existed at startup has been looked at.
+                checkpoints.recovered();
+            }
+        } catch (Throwable e) {
+            logger.log(Level.WARNING, "Exception in listener creation", e);
+            // Keep running
+        }
+    }
+
+    private void disableInactiveTailers() {
+        for (File logFile : files.keySet()) {
+            if (logFile.exists()) {
+                continue;
+            }
+            disableTailer(logFile, "Disabling listener for the file since it no longer exists: ");
+        }
+    }
 
-                } catch (Exception e) {
-                    logger.log(Level.WARNING, "failed to fetch the FDBTailer version number metric", e);
+    private void disableTailer(File logFile, String msg) {
+        TailedFile tailer = files.remove(logFile);
+        if (tailer != null) {
+            logger.info(msg + logFile);
+            tailer.stop();
+        }
+        FDBLogListener listener = listeners.remove(logFile);
+        if (listener != null) {
+            listener.getSeverityCounts().addTo(retiredSeverities);
+        }
+    }
+
+    private long startPosition(File logFile) {
+        TraceFileName name = TraceFileName.parse(logFile);
+        if (name != null) {
+            TraceFileName rolled = rolledFiles.get(name.getProcessKey());
+            if (rolled != null && rolled.isFollowedBy(name) && rolledFiles.remove(name.getProcessKey(), rolled)) {
+                // The successor of a file that was read to its end: nothing in it has been read yet.
+                return 0;
+            }
+        }
+        return checkpoints == null ? TailedFile.FROM_END : checkpoints.startPosition(logFile);
+    }
+
+    /**
+     * Moves on from a trace file that has been read to its end to the next file of the same process, reading it from
+     * the start so nothing written across the roll is missed.  If the next file does not exist yet, it is read from
+     * the start when it is discovered.
+     */
+    private void rolled(File logFile) {
+        TraceFileName finished = TraceFileName.parse(logFile);
+        if (finished == null) {
+            return;
+        }
+        TraceFileName successor = null;
+        File[] candidates = logFile.getAbsoluteFile().getParentFile().listFiles(
+                pathname -> pattern.matcher(pathname.getName()).matches());
+        if (candidates != null) {
+            for (File candidate : candidates) {
+                TraceFileName name = TraceFileName.parse(candidate);
+                if (name != null && finished.isFollowedBy(name) && (successor == null || name.compareTo(successor) < 0)) {
+                    successor = name;
                 }
             }
-        }, 0, FILE_PARSING_PERIOD, TimeUnit.SECONDS);
+        }
+        if (successor == null) {
+            rolledFiles.put(finished.getProcessKey(), finished);
+        } else {
+            logger.info("Handing off from " + logFile + " to " + successor.getFile());
+            createTailer(new File(logFile.getParentFile(), successor.getFile().getName()), 0);
+        }
+    }
+
+    private synchronized void createTailer(File logFile, long startPosition) {
+        if (files.containsKey(logFile)) {
+            return;
+        }
+        logger.info("Creating new listener for file: " + logFile);
+        if (!logFile.exists()) {
+            logger.warning(logFile + " not found");
+            return;
+        }
+
+        if (!logFile.canRead()) {
+            logger.warning(logFile + " is not readable");
+            return;
+        }
+
+        FDBLogListener listener = new FDBLogListener(prefix, metrics, listenerSender, SERVICE_NAME, disabledMetrics,
+                metricRules);
+        listener.setCounterComponents(counterComponents);
+        listener.setEventTime(!arguments.isWallClockTime());
+        listener.setMaxLateness(TimeUnit.SECONDS.toMillis(arguments.getMaxLatenessSeconds()),
+                arguments.getLatePoints());
+        listener.setRollHandler(this::rolled);
+        TailedFile tailer = tailingEngine.tail(logFile,
+                parsePipeline == null ? listener : parsePipeline.wrap(logFile.getPath(), listener), startPosition);
+        if (files.putIfAbsent(logFile, tailer) != null) {
+            // The put didn't succeed, stop the tailer.
+            tailer.stop();
+            return;
+        }
+        listeners.put(logFile, listener);
+        if (checkpoints != null) {
+            checkpoints.track(tailer);
+        }
+    }
+
+    /*
+    **  This method fetches the fdbtailer version number,
+    **  creates a custom metric and pushes it to the wavefront for monitoring.
+    */
+    private void sendFDBTailerVersionMetric() {
+        try {
+            String metricName = SERVICE_NAME.concat(".version");
+            ImmutableMap<String, String> metrictags = ImmutableMap.<String, String>builder().put(SERVICE_NAME, "version_number").build();
+            String fdbVersion = getClass().getPackage().getImplementationVersion();
+            String metricValue = fdbVersion.substring(0, 4);
+            String pointTagValue = fdbVersion.substring(5, fdbVersion.length());
+
+            metrictags = ImmutableMap.<String, String>builder().put("minor_version", pointTagValue).build();
+            wavefrontSender.sendMetric(metricName, Double.parseDouble(metricValue), null, getHostName(), metrictags);
+
+        } catch (Exception e) {
+            logger.log(Level.WARNING, "failed to fetch the FDBTailer version number metric", e);
+        }
     }
-}
\ No newline at end of file
+}
@@ -15,6 +15,14 @@ public class FDBMetricsReporterArguments {
         DIRECT, PROXY, GRAPHITE;
     }
 
+    enum LatePointPolicy {
+        DROP, CLAMP;
+    }
+
+    enum Backpressure {
+        BLOCK, DROP;
+    }
+
     private static final String ALL_FILES = ".*";
 
     private static final String DEFAULT_HOST = "localhost";
@@ -128,6 +136,132 @@ public class FDBMetricsReporterArguments {
      */
     private List<String> disabledMetrics;
 
+    /**
+     * @param metricRules The rules metrics are taken from trace events by, replacing the built-in ones.  Only read from
+     *                    the configuration file.
+     */
+    private List<MetricRule> metricRules;
+
+    /**
+     * @param counterComponents Whether the rate and roughness of FDB's "rate roughness total" counters are reported as
+     *                          separate metrics next to the total.
+     */
+    @Parameter(names = {"--counterComponents"},
+            description = "Also report the rate and roughness of \"rate roughness total\" counters as <metric>.rate and <metric>.roughness.")
+    private boolean counterComponents = false;
+
+    /**
+     * @param tailerThreads The number of threads polling log files.  Defaults to the number of processors, up to 4.
+     */
+    @Parameter(names = {"--tailerThreads"},
+            description = "The number of threads polling log files.  Defaults to the number of processors, up to 4.")
+    private int tailerThreads = 0;
+
+    /**
+     * @param checkpointFile The file read positions are saved in, so that a restart resumes where the last run left off.
+     */
+    @Parameter(names = {"--checkpointFile"}, converter = FDBMetricsReporterInit.FileConverter.class,
+            description = "Save how far each log file has been read to this file, and resume from it on restart.  By default, logs are tailed from their end on every start.")
+    private File checkpointFile;
+
+    /**
+     * @param maxCatchUpSeconds How old a checkpoint may be and still be resumed from.
+     */
+    @Parameter(names = {"--maxCatchUpSeconds"},
+            description = "Resume from checkpoints saved at most this many seconds ago; older ones are ignored and logs are tailed from their end.  The default is 3600.")
+    private long maxCatchUpSeconds = 3600;
+
+    /**
+     * @param maxSeries The maximum number of metric series held at once.
+     */
+    @Parameter(names = {"--maxSeries"},
+            description = "The maximum number of metric series held at once.  Once reached, new series are rejected until the least updated ones have been evicted.  The default is 100000.")
+    private int maxSeries = 100_000;
+
+    /**
+     * @param seriesIdleSeconds How long a metric series may go without an update before it is evicted.
+     */
+    @Parameter(names = {"--seriesIdleSeconds"},
+            description = "Evict metric series that have not been updated for this many seconds, and stop reporting them.  The default is 900.")
+    private long seriesIdleSeconds = 900;
+
+    /**
+     * @param wallClockTime Whether points are stamped when they are sent instead of with the time of their event.
+     */
+    @Parameter(names = {"--wallClockTime"},
+            description = "Stamp points with the time they are sent instead of the Time of their event.")
+    private boolean wallClockTime = false;
+
+    /**
+     * @param maxLatenessSeconds How far behind the wall clock an event may be before its points are late.
+     */
+    @Parameter(names = {"--maxLatenessSeconds"},
+            description = "How many seconds behind the wall clock an event may be before its points are dropped or clamped, or 0 for no limit.  The default is 3600.")
+    private long maxLatenessSeconds = 3600;
+
+    /**
+     * @param latePoints What to do with late points: drop them, or clamp their timestamp to the time they are sent.
+     */
+    @Parameter(names = {"--latePoints"},
+            description = "What to do with the points of events later than --maxLatenessSeconds: DROP them, or CLAMP their timestamp to the time they are sent.  The default is DROP.")
+    private LatePointPolicy latePoints = LatePointPolicy.DROP;
+
+    /**
+     * @param coalesceSeconds How often the latest point of every series is sent, or 0 to send every point.
+     */
+    @Parameter(names = {"--coalesceSeconds"},
+            description = "Send only the latest point of every series per this many seconds of event time, once per as many seconds, or 0 to send every point as it is read.  The default is 60.")
+    private long coalesceSeconds = 60;
+
+    /**
+     * @param parseThreads The number of threads parsing lines, or 0 to parse them on the threads polling log files.
+     */
+    @Parameter(names = {"--parseThreads"},
+            description = "The number of threads parsing lines, each handling the lines of some of the files, or 0 to parse lines on the threads polling log files.  The default is 0.")
+    private int parseThreads = 0;
+
+    /**
+     * @param parseQueueSize The number of batches of lines, of up to 64 KB each, queued for each parse thread.
+     */
+    @Parameter(names = {"--parseQueueSize"},
+            description = "The number of batches of lines, of up to 64 KB each, that may be queued for each parse thread.  The default is 64.")
+    private int parseQueueSize = 64;
+
+    /**
+     * @param parseBackpressure What to do when a parse thread's queue is full.
+     */
+    @Parameter(names = {"--parseBackpressure"},
+            description = "What to do when a parse thread's queue is full: BLOCK reading until it catches up, or DROP the lines.  The default is BLOCK.")
+    private Backpressure parseBackpressure = Backpressure.BLOCK;
+
+    /**
+     * @param backfillFiles Trace files to replay instead of tailing the log directory.
+     */
+    @Parameter(names = {"--backfill"},
+            description = "Replay these trace files (comma separated) as fast as possible, stamping points with the time of their events, then exit.")
+    private List<String> backfillFiles;
+
+    /**
+     * @param backfillFrom The start of the time range to replay trace files from, e.g. 2020-01-01T00:00:00Z.
+     */
+    @Parameter(names = {"--backfillFrom"},
+            description = "Replay the trace files in the log directory that cover the time from this instant (e.g. 2020-01-01T00:00:00Z), then exit.")
+    private String backfillFrom;
+
+    /**
+     * @param backfillTo The end of the time range to replay trace files from.
+     */
+    @Parameter(names = {"--backfillTo"},
+            description = "Replay the trace files in the log directory that cover the time up to this instant (e.g. 2020-01-01T06:00:00Z), then exit.")
+    private String backfillTo;
+
+    /**
+     * @param backfillThreads The number of files replayed in parallel.  Defaults to the number of processors.
+     */
+    @Parameter(names = {"--backfillThreads"},
+            description = "The number of files replayed in parallel.  Defaults to the number of processors.")
+    private int backfillThreads = 0;
+
 
     @Parameter(description = "")
     private List<String> unparsedParams;
@@ -178,6 +312,76 @@ public class FDBMetricsReporterArguments {
 
     public void setDisabledMetrics(List<String> disabledMetrics) { this.disabledMetrics = disabledMetrics; }
 
+    public void setMetricRules(List<MetricRule> metricRules) { this.metricRules = metricRules; }
+
+    public void setCounterComponents(boolean counterComponents) {
+        this.counterComponents = counterComponents;
+    }
+
+    public void setTailerThreads(int tailerThreads) {
+        this.tailerThreads = tailerThreads;
+    }
+
+    public void setCheckpointFile(File checkpointFile) {
+        this.checkpointFile = checkpointFile;
+    }
+
+    public void setMaxCatchUpSeconds(long maxCatchUpSeconds) {
+        this.maxCatchUpSeconds = maxCatchUpSeconds;
+    }
+
+    public void setMaxSeries(int maxSeries) {
+        this.maxSeries = maxSeries;
+    }
+
+    public void setSeriesIdleSeconds(long seriesIdleSeconds) {
+        this.seriesIdleSeconds = seriesIdleSeconds;
+    }
+
+    public void setWallClockTime(boolean wallClockTime) {
+        this.wallClockTime = wallClockTime;
+    }
+
+    public void setMaxLatenessSeconds(long maxLatenessSeconds) {
+        this.maxLatenessSeconds = maxLatenessSeconds;
+    }
+
+    public void setLatePoints(LatePointPolicy latePoints) {
+        this.latePoints = latePoints;
+    }
+
+    public void setCoalesceSeconds(long coalesceSeconds) {
+        this.coalesceSeconds = coalesceSeconds;
+    }
+
+    public void setParseThreads(int parseThreads) {
+        this.parseThreads = parseThreads;
+    }
+
+    public void setParseQueueSize(int parseQueueSize) {
+        this.parseQueueSize = parseQueueSize;
+    }
+
+    public void setParseBackpressure(Backpressure parseBackpressure) {
+        this.parseBackpressure = parseBackpressure;
+    }
+
+    public void setBackfillFiles(List<String> backfillFiles) {
+        this.backfillFiles = backfillFiles;
+    }
+
+    public void setBackfillFrom(String backfillFrom) {
+        this.backfillFrom = backfillFrom;
+    }
+
+    public void setBackfillTo(String backfillTo) {
+        this.backfillTo = backfillTo;
+    }
+
+    public void setBackfillThreads(int backfillThreads) {
+        this.backfillThreads = backfillThreads;
+    }
+
     public String getDirectory() {
         return directory;
     }
@@ -247,4 +451,81 @@ public class FDBMetricsReporterArguments {
     public String getServiceName() { return serviceName; }
 
     public List<String> getDisabledMetrics() { return disabledMetrics; }
+
+    public List<MetricRule> getMetricRules() { return metricRules; }
+
+    public boolean isCounterComponents() {
+        return counterComponents;
+    }
+
+    public int getTailerThreads() {
+        return tailerThreads;
+    }
+
+    public File getCheckpointFile() {
+        return checkpointFile;
+    }
+
+    public long getMaxCatchUpSeconds() {
+        return maxCatchUpSeconds;
+    }
+
+    public int getMaxSeries() {
+        return maxSeries;
+    }
+
+    public long getSeriesIdleSeconds() {
+        return seriesIdleSeconds;
+    }
+
+    public boolean isWallClockTime() {
+        return wallClockTime;
+    }
+
+    public long getMaxLatenessSeconds() {
+        return maxLatenessSeconds;
+    }
+
+    public LatePointPolicy getLatePoints() {
+        return latePoints;
+    }
+
+    public long getCoalesceSeconds() {
+        return coalesceSeconds;
+    }
+
+    public int getParseThreads() {
+        return parseThreads;
+    }
+
+    public int getParseQueueSize() {
+        return parseQueueSize;
+    }
+
+    public Backpressure getParseBackpressure() {
+        return parseBackpressure;
+    }
+
+    public List<String> getBackfillFiles() {
+        return backfillFiles;
+    }
+
+    public String getBackfillFrom() {
+        return backfillFrom;
+    }
+
+    public String getBackfillTo() {
+        return backfillTo;
+    }
+
+    public int getBackfillThreads() {
+        return backfillThreads;
+    }
+
+    /**
+     * @return Whether trace files should be replayed instead of tailed.
+     */
+    public boolean isBackfill() {
+        return backfillFiles != null || backfillFrom != null || backfillTo != null;
+    }
 }
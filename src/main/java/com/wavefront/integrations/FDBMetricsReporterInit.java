@@ -7,7 +7,6 @@ import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Joiner;
 
 import java.io.File;
-import java.net.UnknownHostException;
 import java.util.concurrent.Semaphore;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -57,6 +56,11 @@ public class FDBMetricsReporterInit {
         } else {
             return false;
         }
+        if (arguments.isBackfill() &&
+                arguments.getReporterType() == FDBMetricsReporterArguments.ReporterType.GRAPHITE) {
+            // Graphite is only reported to on a timer, which cannot carry the time of replayed events.
+            return false;
+        }
         return true;
     }
 
@@ -89,7 +93,7 @@ public class FDBMetricsReporterInit {
         JCommander CLIOverride = new JCommander(init.arguments, args);
     }
 
-    public static void main(String[] args) throws UnknownHostException {
+    public static void main(String[] args) throws Exception {
         logger.info("Arguments: " + Joiner.on(", ").join(args));
         FDBMetricsReporterInit init = new FDBMetricsReporterInit();
 
@@ -101,6 +105,10 @@ public class FDBMetricsReporterInit {
         }
 
         FDBMetricsReporter reporter = new FDBMetricsReporter(init.arguments);
+        if (init.arguments.isBackfill()) {
+            reporter.backfill();
+            System.exit(0);
+        }
         reporter.start();
 
         // Block indefinitely while the reporter continues to run.
@@ -0,0 +1,350 @@
+package com.wavefront.integrations;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.google.common.annotations.VisibleForTesting;
+import com.wavefront.sdk.common.Pair;
+import com.wavefront.sdk.common.WavefrontSender;
+import com.wavefront.sdk.entities.histograms.HistogramGranularity;
+import com.wavefront.sdk.entities.tracing.SpanLog;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Sends every point to several senders, each of them on its own.
+ *
+ * Every endpoint has a bounded queue and a thread that sends what is queued in batches, flushing its sender after
+ * each batch.  The senders must neither buffer points beyond a flush nor retry them, and must throw when a flush
+ * fails, as {@link ReportingSender} does: the queue is then the only place points wait, and a failed batch is sent
+ * again exactly once per retry.  The thread retries it after a backoff that doubles up to a limit, while new points
+ * for that endpoint are dropped once its queue is full; the other endpoints go on as before.  For every endpoint, the
+ * depth of its queue, the points dropped and the time taken to send each batch are reported as
+ * {@code endpoint.<name>.queue_depth}, {@code endpoint.<name>.dropped} and {@code endpoint.<name>.send_latency}.
+ *
+ * A flush waits for every endpoint, failing ones included, and throws if one of them has not sent what was queued
+ * before it.  It only waits for as long as an endpoint makes progress, unless it is told to {@link
+ * #setWaitForRecovery wait for failing endpoints to recover}, as a backfill must not run ahead of an endpoint.
+ *
+ * Distributions and spans, which only the tailer's own reporter sends, are passed to every sender directly.
+ */
+class FanOutSender implements WavefrontSender {
+
+    private static final Logger logger = Logger.getLogger(FanOutSender.class.getCanonicalName());
+
+    private static final long INITIAL_BACKOFF_MILLIS = 1_000;
+
+    private static final long MAX_BACKOFF_MILLIS = 60_000;
+
+    /**
+     * How long a flush waits for an endpoint that is not getting anywhere.
+     */
+    private static final long STALL_MILLIS = 5_000;
+
+    private static final class Point {
+
+        final String name;
+
+        final double value;
+
+        final Long timestamp;
+
+        final String source;
+
+        final Map<String, String> tags;
+
+        Point(String name, double value, Long timestamp, String source, Map<String, String> tags) {
+            this.name = name;
+            this.value = value;
+            this.timestamp = timestamp;
+            this.source = source;
+            this.tags = tags;
+        }
+    }
+
+    private final class Endpoint implements Runnable {
+
+        final String name;
+
+        final WavefrontSender sender;
+
+        final BlockingQueue<Point> queue;
+
+        final Counter dropped;
+
+        final Timer latency;
+
+        final Thread thread;
+
+        /**
+         * Whether the endpoint is waiting to retry a failed batch.
+         */
+        volatile boolean backingOff;
+
+        /**
+         * The points queued so far, and the points sent or given up on so far.
+         */
+        final AtomicLong queued = new AtomicLong();
+
+        final AtomicLong done = new AtomicLong();
+
+        Endpoint(String name, WavefrontSender sender, MetricRegistry registry, String prefix) {
+            this.name = name;
+            this.sender = sender;
+            this.queue = new ArrayBlockingQueue<>(queueSize);
+            String metricPrefix = prefix + "endpoint." + name + ".";
+            this.dropped = registry.counter(metricPrefix + "dropped");
+            this.latency = registry.timer(metricPrefix + "send_latency");
+            registry.remove(metricPrefix + "queue_depth");
+            registry.register(metricPrefix + "queue_depth", (Gauge<Integer>) queue::size);
+            this.thread = new Thread(this, "fdb-sender-" + name);
+            thread.setDaemon(true);
+        }
+
+        void offer(Point point) {
+            if (queue.offer(point)) {
+                queued.incrementAndGet();
+            } else {
+                dropped.inc();
+            }
+        }
+
+        @Override
+        public void run() {
+            List<Point> batch = new ArrayList<>(batchSize);
+            long backoff = INITIAL_BACKOFF_MILLIS;
+            while (!closed || !queue.isEmpty() || !batch.isEmpty()) {
+                try {
+                    if (batch.isEmpty()) {
+                        Point first = queue.poll(100, TimeUnit.MILLISECONDS);
+                        if (first == null) {
+                            continue;
+                        }
+                        batch.add(first);
+                        queue.drainTo(batch, batchSize - 1);
+                    }
+                    try (Timer.Context ignored = latency.time()) {
+                        for (Point point : batch) {
+                            sender.sendMetric(point.name, point.value, point.timestamp, point.source, point.tags);
+                        }
+                        sender.flush();
+                    }
+                    done.addAndGet(batch.size());
+                    batch.clear();
+                    backoff = INITIAL_BACKOFF_MILLIS;
+                    backingOff = false;
+                } catch (InterruptedException e) {
+                    return;
+                } catch (Exception e) {
+                    if (closed) {
+                        dropped.inc(batch.size());
+                        done.addAndGet(batch.size());
+                        return;
+                    }
+                    logger.log(Level.WARNING, "Failed to send " + batch.size() + " points to " + name +
+                            ", retrying in " + backoff + " ms", e);
+                    backingOff = true;
+                    try {
+                        Thread.sleep(backoff);
+                    } catch (InterruptedException interrupted) {
+                        return;
+                    }
+                    backoff = Math.min(backoff * 2, MAX_BACKOFF_MILLIS);
+                }
+            }
+        }
+
+        /**
+         * Waits until everything queued has been sent, unless the endpoint has stopped making progress, which a failing
+         * endpoint is only considered to have when not waiting for recovery.
+         *
+         * @return Whether everything queued has been sent.
+         */
+        boolean awaitDrained() throws InterruptedException {
+            long target = queued.get();
+            long progress = done.get();
+            long progressMillis = System.currentTimeMillis();
+            while (progress < target && thread.isAlive()) {
+                Thread.sleep(10);
+                long current = done.get();
+                if (current != progress) {
+                    progress = current;
+                    progressMillis = System.currentTimeMillis();
+                } else if (!(waitForRecovery && backingOff) &&
+                        System.currentTimeMillis() - progressMillis > STALL_MILLIS) {
+                    return false;
+                }
+            }
+            return done.get() >= target;
+        }
+    }
+
+    private final List<Endpoint> endpoints = new ArrayList<>();
+
+    private final int queueSize;
+
+    private final int batchSize;
+
+    private volatile boolean closed;
+
+    private volatile boolean waitForRecovery;
+
+    /**
+     * @param registry  The registry the endpoints' metrics are registered in.
+     * @param prefix    The prefix of their names.
+     * @param senders   The sender of every endpoint, keyed by the endpoint's name.
+     * @param queueSize The number of points each endpoint may have queued.
+     * @param batchSize The largest number of points sent to an endpoint between flushes.
+     */
+    FanOutSender(MetricRegistry registry, String prefix, Map<String, WavefrontSender> senders, int queueSize,
+                 int batchSize) {
+        this.queueSize = queueSize;
+        this.batchSize = batchSize;
+        for (Map.Entry<String, WavefrontSender> sender : senders.entrySet()) {
+            endpoints.add(new Endpoint(sender.getKey(), sender.getValue(), registry, prefix));
+        }
+        for (Endpoint endpoint : endpoints) {
+            endpoint.thread.start();
+        }
+    }
+
+    @Override
+    public void sendMetric(String name, double value, Long timestamp, String source, Map<String, String> tags) {
+        Point point = new Point(name, value, timestamp, source, tags);
+        for (Endpoint endpoint : endpoints) {
+            endpoint.offer(point);
+        }
+    }
+
+    @Override
+    public void sendFormattedMetric(String point) throws IOException {
+        for (Endpoint endpoint : endpoints) {
+            endpoint.sender.sendFormattedMetric(point);
+        }
+    }
+
+    @Override
+    public void sendDistribution(String name, List<Pair<Double, Integer>> centroids,
+                                 Set<HistogramGranularity> histogramGranularities, Long timestamp, String source,
+                                 Map<String, String> tags) throws IOException {
+        for (Endpoint endpoint : endpoints) {
+            endpoint.sender.sendDistribution(name, centroids, histogramGranularities, timestamp, source, tags);
+        }
+    }
+
+    @Override
+    public void sendSpan(String name, long startMillis, long durationMillis, String source, UUID traceId, UUID spanId,
+                         List<UUID> parents, List<UUID> followsFrom, List<Pair<String, String>> tags,
+                         List<SpanLog> spanLogs) throws IOException {
+        for (Endpoint endpoint : endpoints) {
+            endpoint.sender.sendSpan(name, startMillis, durationMillis, source, traceId, spanId, parents, followsFrom,
+                    tags, spanLogs);
+        }
+    }
+
+    @Override
+    public String getClientId() {
+        StringBuilder clientId = new StringBuilder("fan-out:");
+        for (Endpoint endpoint : endpoints) {
+            clientId.append(endpoint.name).append(',');
+        }
+        return clientId.substring(0, clientId.length() - 1);
+    }
+
+    /**
+     * Makes flushes wait for as long as a failing endpoint takes to recover, rather than only while it makes progress.
+     */
+    void setWaitForRecovery(boolean waitForRecovery) {
+        this.waitForRecovery = waitForRecovery;
+    }
+
+    /**
+     * Waits until every endpoint has sent what was queued before.
+     *
+     * @throws IOException If an endpoint stopped making progress, or has been closed, before it did.
+     */
+    @Override
+    public void flush() throws IOException {
+        List<String> behind = new ArrayList<>();
+        try {
+            for (Endpoint endpoint : endpoints) {
+                if (!endpoint.awaitDrained()) {
+                    behind.add(endpoint.name);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while flushing", e);
+        }
+        if (!behind.isEmpty()) {
+            throw new IOException("Points are still queued for " + String.join(", ", behind));
+        }
+    }
+
+    @Override
+    public int getFailureCount() {
+        int failures = 0;
+        for (Endpoint endpoint : endpoints) {
+            failures += endpoint.sender.getFailureCount();
+        }
+        return failures;
+    }
+
+    /**
+     * @return The number of points queued for all endpoints.
+     */
+    int getQueueDepth() {
+        int depth = 0;
+        for (Endpoint endpoint : endpoints) {
+            depth += endpoint.queue.size();
+        }
+        return depth;
+    }
+
+    /**
+     * @return The number of points queued for the endpoint.
+     */
+    @VisibleForTesting
+    int getQueueDepth(String name) {
+        for (Endpoint endpoint : endpoints) {
+            if (endpoint.name.equals(name)) {
+                return endpoint.queue.size();
+            }
+        }
+        throw new IllegalArgumentException("No endpoint named " + name);
+    }
+
+    /**
+     * Sends what is still queued to the endpoints that are not failing, and closes the senders.
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        for (Endpoint endpoint : endpoints) {
+            if (endpoint.backingOff) {
+                endpoint.thread.interrupt();
+            }
+            try {
+                endpoint.thread.join(TimeUnit.SECONDS.toMillis(30));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        for (Endpoint endpoint : endpoints) {
+            endpoint.sender.close();
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package com.wavefront.integrations;
+
+import com.wavefront.sdk.common.Pair;
+import com.wavefront.sdk.common.WavefrontSender;
+import com.wavefront.sdk.entities.histograms.HistogramGranularity;
+import com.wavefront.sdk.entities.tracing.SpanLog;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A sender that flushes its delegate after every batch of points.
+ *
+ * The SDK's clients buffer points in a bounded queue that is drained on a timer, and drop points once it is full.
+ * That is fine for live tailing, but a replay produces points far faster than the timer drains them; flushing in line
+ * makes the replay wait for the network instead.  A flush that fails in line is remembered, and makes the last
+ * {@link #flush()} fail too, since the points sent meanwhile may not have been.
+ */
+class FlushingSender implements WavefrontSender {
+
+    private final WavefrontSender delegate;
+
+    private final int batchSize;
+
+    private final AtomicLong sent = new AtomicLong();
+
+    private volatile IOException failure;
+
+    /**
+     * @param batchSize The number of points to send between flushes.  It should not exceed the delegate's queue size.
+     */
+    FlushingSender(WavefrontSender delegate, int batchSize) {
+        this.delegate = delegate;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * @return The number of points sent so far.
+     */
+    long getSentCount() {
+        return sent.get();
+    }
+
+    private void sent() throws IOException {
+        if (sent.incrementAndGet() % batchSize == 0) {
+            try {
+                delegate.flush();
+            } catch (IOException e) {
+                failure = e;
+                throw e;
+            }
+        }
+    }
+
+    @Override
+    public void sendMetric(String name, double value, Long timestamp, String source, Map<String, String> tags)
+            throws IOException {
+        delegate.sendMetric(name, value, timestamp, source, tags);
+        sent();
+    }
+
+    @Override
+    public void sendFormattedMetric(String point) throws IOException {
+        delegate.sendFormattedMetric(point);
+        sent();
+    }
+
+    @Override
+    public void sendDistribution(String name, List<Pair<Double, Integer>> centroids,
+                                 Set<HistogramGranularity> histogramGranularities, Long timestamp, String source,
+                                 Map<String, String> tags) throws IOException {
+        delegate.sendDistribution(name, centroids, histogramGranularities, timestamp, source, tags);
+        sent();
+    }
+
+    @Override
+    public void sendSpan(String name, long startMillis, long durationMillis, String source, UUID traceId, UUID spanId,
+                         List<UUID> parents, List<UUID> followsFrom, List<Pair<String, String>> tags,
+                         List<SpanLog> spanLogs) throws IOException {
+        delegate.sendSpan(name, startMillis, durationMillis, source, traceId, spanId, parents, followsFrom, tags,
+                spanLogs);
+        sent();
+    }
+
+    @Override
+    public String getClientId() {
+        return delegate.getClientId();
+    }
+
+    @Override
+    public void flush() throws IOException {
+        delegate.flush();
+        if (failure != null) {
+            throw new IOException("A flush failed while sending", failure);
+        }
+    }
+
+    @Override
+    public int getFailureCount() {
+        return delegate.getFailureCount();
+    }
+
+    @Override
+    public void close() throws IOException {
+        delegate.close();
+    }
+}
@@ -0,0 +1,201 @@
+package com.wavefront.integrations;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.IOException;
+import java.nio.CharBuffer;
+import java.util.Arrays;
+
+/**
+ * A reusable reader for the one-object-per-line events FoundationDB writes to its JSON trace files
+ * ({@code --trace_format json}), e.g. {@code {  "Severity": "10", "Time": "1706276733.451520", ... }}.
+ *
+ * Each line is read in a single pass with Jackson's streaming parser, without building a tree.  The text of every
+ * value is copied into one buffer and only materialized as a String when it is asked for, and attribute names come
+ * from the parser's canonicalized field names, so steady-state lookups allocate little.  FDB writes every value as a
+ * string; other scalars are kept as their text, and nested objects and arrays are skipped.
+ *
+ * Instances are not thread-safe; each listener owns its own reader.
+ */
+class JsonTraceEvent implements TraceEvent {
+
+    private static final JsonFactory factory = new JsonFactory();
+
+    private static final int MAX_INTERNED_STRINGS = 4096;
+
+    private byte[] bytes = new byte[4096];
+
+    private char[] chars = new char[4096];
+
+    private CharBuffer view = CharBuffer.wrap(chars);
+
+    private int length;
+
+    private int count;
+
+    private String[] names = new String[64];
+
+    // For attribute i, bounds[2 * i] and bounds[2 * i + 1] hold the start and end of its value in chars.
+    private int[] bounds = new int[2 * 64];
+
+    private String[] interned = new String[256];
+
+    private int internedCount;
+
+    /**
+     * Reads a JSON trace line, replacing whatever the reader held before.
+     *
+     * @throws IOException If the line is not a well-formed JSON object.
+     */
+    void parse(CharSequence line) throws IOException {
+        length = 0;
+        count = 0;
+        JsonParser parser;
+        if (line instanceof TraceLine) {
+            // The line is still UTF-8 bytes, which the parser decodes itself.
+            if (line.length() > bytes.length) {
+                bytes = new byte[Math.max(bytes.length * 2, line.length())];
+            }
+            parser = factory.createParser(bytes, 0, ((TraceLine) line).copyTo(bytes, 0));
+        } else {
+            parser = factory.createParser(line.toString());
+        }
+        try {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new JsonParseException(parser, "Trace event is not a JSON object");
+            }
+            JsonToken token;
+            while ((token = parser.nextToken()) == JsonToken.FIELD_NAME) {
+                String name = parser.getCurrentName();
+                JsonToken value = parser.nextToken();
+                if (value == JsonToken.START_OBJECT || value == JsonToken.START_ARRAY) {
+                    parser.skipChildren();
+                } else if (value != JsonToken.VALUE_NULL) {
+                    addAttribute(name, parser.getTextCharacters(), parser.getTextOffset(), parser.getTextLength());
+                }
+            }
+            if (token != JsonToken.END_OBJECT) {
+                throw new JsonParseException(parser, "Trace event is not a JSON object");
+            }
+        } finally {
+            parser.close();
+        }
+    }
+
+    @Override
+    public int getAttributeCount() {
+        return count;
+    }
+
+    @Override
+    public String getAttributeName(int index) {
+        checkIndex(index);
+        return names[index];
+    }
+
+    @Override
+    public String getAttributeValue(int index) {
+        checkIndex(index);
+        return new String(chars, bounds[2 * index], bounds[2 * index + 1] - bounds[2 * index]);
+    }
+
+    @Override
+    public double decodeAttributeValue(int index, TraceValueDecoder decoder) {
+        checkIndex(index);
+        return decoder.decode(view, bounds[2 * index], bounds[2 * index + 1]);
+    }
+
+    @Override
+    public int indexOf(String name) {
+        for (int i = 0; i < count; ++i) {
+            if (name.equals(names[i])) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public String getInternedAttribute(String name) {
+        int index = indexOf(name);
+        return index == -1 ? null : intern(bounds[2 * index], bounds[2 * index + 1]);
+    }
+
+    private void addAttribute(String name, char[] text, int offset, int textLength) {
+        if (count == names.length) {
+            names = Arrays.copyOf(names, count * 2);
+            bounds = Arrays.copyOf(bounds, 4 * count);
+        }
+        if (length + textLength > chars.length) {
+            chars = Arrays.copyOf(chars, Math.max(chars.length * 2, length + textLength));
+            view = CharBuffer.wrap(chars);
+        }
+        System.arraycopy(text, offset, chars, length, textLength);
+        names[count] = name;
+        bounds[2 * count] = length;
+        bounds[2 * count + 1] = length + textLength;
+        length += textLength;
+        ++count;
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= count) {
+            throw new IndexOutOfBoundsException("Attribute index " + index + " out of range for " + count);
+        }
+    }
+
+    /**
+     * Returns the canonical String for the given range of the values, as {@link TraceLineScanner} does for a line.
+     */
+    private String intern(int start, int end) {
+        int hash = 0;
+        for (int i = start; i < end; ++i) {
+            hash = 31 * hash + chars[i];
+        }
+        int mask = interned.length - 1;
+        int slot = (hash ^ (hash >>> 16)) & mask;
+        String candidate;
+        while ((candidate = interned[slot]) != null) {
+            if (candidate.hashCode() == hash && candidate.length() == end - start && regionMatches(start, candidate)) {
+                return candidate;
+            }
+            slot = (slot + 1) & mask;
+        }
+        String value = new String(chars, start, end - start);
+        if (internedCount < MAX_INTERNED_STRINGS) {
+            interned[slot] = value;
+            if (++internedCount * 2 > interned.length) {
+                rehash();
+            }
+        }
+        return value;
+    }
+
+    private void rehash() {
+        String[] old = interned;
+        interned = new String[old.length * 2];
+        int mask = interned.length - 1;
+        for (String value : old) {
+            if (value != null) {
+                int hash = value.hashCode();
+                int slot = (hash ^ (hash >>> 16)) & mask;
+                while (interned[slot] != null) {
+                    slot = (slot + 1) & mask;
+                }
+                interned[slot] = value;
+            }
+        }
+    }
+
+    private boolean regionMatches(int start, String other) {
+        for (int i = 0; i < other.length(); ++i) {
+            if (chars[start + i] != other.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,170 @@
+package com.wavefront.integrations;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static java.lang.Character.*;
+
+/**
+ * Memoizes metric names and the values behind them for a single listener.
+ *
+ * The set of distinct (event type, port, attribute) combinations in a trace file is small and stable, so every metric
+ * name is built once and then found with nested lookups on canonical strings, without concatenating a key.
+ *
+ * Instances are not thread-safe; each listener owns its own cache.
+ */
+class MetricNameCache {
+
+    /**
+     * Suffixes for the leading components of FDB's "rate roughness total" counters.
+     */
+    private static final String[] COMPONENT_SUFFIXES = {".rate", ".roughness"};
+
+    /**
+     * A resolved metric: its full name and the store's reference to its value.
+     */
+    static final class MetricHandle {
+
+        final String name;
+
+        private long reference;
+
+        private MetricHandle[] components;
+
+        MetricHandle(String name, long reference) {
+            this.name = name;
+            this.reference = reference;
+        }
+
+        long reference() {
+            return reference;
+        }
+    }
+
+    private final String prefix;
+
+    private final MetricStore store;
+
+    private final Map<String, String> ports = new HashMap<>();
+
+    private final Map<String, Map<String, String>> scopes = new HashMap<>();
+
+    private final Map<String, Map<String, MetricHandle>> handles = new HashMap<>();
+
+    private final Map<Integer, Map<String, String>> tails = new HashMap<>();
+
+    /**
+     * @param prefix The prefix for all metric names.
+     * @param store  The shared metric values.
+     */
+    MetricNameCache(String prefix, MetricStore store) {
+        this.prefix = prefix;
+        this.store = store;
+    }
+
+    /**
+     * @param machine The value of a Machine attribute, e.g. "10.0.0.1:4500".
+     * @return The port part of the address.
+     */
+    String port(String machine) {
+        String port = ports.get(machine);
+        if (port == null) {
+            port = machine.substring(machine.indexOf(":") + 1);
+            ports.put(machine, port);
+        }
+        return port;
+    }
+
+    /**
+     * @return The concatenation of {@code base} and {@code suffix}, built only the first time it is asked for.
+     */
+    String scope(String base, String suffix) {
+        Map<String, String> bySuffix = scopes.computeIfAbsent(base, k -> new HashMap<>());
+        String scope = bySuffix.get(suffix);
+        if (scope == null) {
+            scope = base + suffix;
+            bySuffix.put(suffix, scope);
+        }
+        return scope;
+    }
+
+    /**
+     * @return {@code value} from {@code start} on, built only the first time it is asked for.
+     */
+    String tail(String value, int start) {
+        Map<String, String> byValue = tails.computeIfAbsent(start, k -> new HashMap<>());
+        String tail = byValue.get(value);
+        if (tail == null) {
+            tail = value.substring(start);
+            byValue.put(value, tail);
+        }
+        return tail;
+    }
+
+    /**
+     * @param scope The metric scope, e.g. a port or "machine".
+     * @param name  The un-encoded attribute name.
+     * @return The handle for the metric named {@code prefix + scope + "." + encode(name)}.
+     */
+    MetricHandle handle(String scope, String name) {
+        Map<String, MetricHandle> byName = handles.computeIfAbsent(scope, k -> new HashMap<>());
+        MetricHandle handle = byName.get(name);
+        if (handle == null) {
+            String metricName = prefix + scope + "." + encode(name);
+            handle = new MetricHandle(metricName, store.acquire(metricName));
+            byName.put(name, handle);
+        } else {
+            refresh(handle);
+        }
+        return handle;
+    }
+
+    /**
+     * @param handle    The handle of a counter metric.
+     * @param component 0 for the counter's rate, 1 for its roughness.
+     * @return The handle for the metric named after {@code handle} with the component's suffix.
+     */
+    MetricHandle component(MetricHandle handle, int component) {
+        if (handle.components == null) {
+            handle.components = new MetricHandle[COMPONENT_SUFFIXES.length];
+        }
+        MetricHandle componentHandle = handle.components[component];
+        if (componentHandle == null) {
+            String metricName = handle.name + COMPONENT_SUFFIXES[component];
+            componentHandle = new MetricHandle(metricName, store.acquire(metricName));
+            handle.components[component] = componentHandle;
+        } else {
+            refresh(componentHandle);
+        }
+        return componentHandle;
+    }
+
+    /**
+     * Acquires the handle's series again if the store has evicted it, or has rejected it before its last sweep.
+     */
+    private void refresh(MetricHandle handle) {
+        if (!store.isCurrent(handle.reference)) {
+            handle.reference = store.acquire(handle.name);
+        }
+    }
+
+    @VisibleForTesting
+    static String encode(String name) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < name.length(); ++i) {
+            char ch = name.charAt(i);
+            if (isUpperCase(ch)) {
+                if ((i != 0 && i + 1 < name.length() && isLowerCase(name.charAt(i + 1))) ||
+                        (i > 0 && isLowerCase(name.charAt(i - 1)))) {
+                    sb.append("_");
+                }
+            }
+            if (ch != '_') {
+                sb.append(toLowerCase(ch));
+            }
+        }
+        return sb.toString();
+    }
+}
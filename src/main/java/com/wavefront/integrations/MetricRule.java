@@ -0,0 +1,109 @@
+package com.wavefront.integrations;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A rule for taking metrics from trace events of one type, as given in the {@code metricRules} section of the YAML
+ * configuration file.  The rules the tailer ships with are in {@code metric-rules.yaml}, next to this class.
+ *
+ * Attribute patterns are either an exact name, or a prefix followed by {@code *}.  Templates are literal text with
+ * placeholders: {@code {port}} for the port of the event's Machine, {@code {*}} for what the wildcard of a
+ * {@link #setWhen(Map) when} pattern matched, and {@code {<attribute>}} for the value of any other attribute.
+ */
+public class MetricRule {
+
+    /**
+     * @param type The Type of the events the rule applies to.
+     */
+    private String type;
+
+    /**
+     * @param when Patterns the values of the given attributes have to match for the rule to apply.
+     */
+    private Map<String, String> when;
+
+    /**
+     * @param scope The template of the part of the metric names between the prefix and the attribute, e.g. "{port}".
+     */
+    private String scope;
+
+    /**
+     * @param include Patterns of the attributes reported, each as {@code <prefix><scope>.<attribute>}.
+     */
+    private List<String> include;
+
+    /**
+     * @param exclude Patterns of attributes not reported even though they match an include pattern.
+     */
+    private List<String> exclude;
+
+    /**
+     * @param name The template of the name of the one metric the rule reports instead of attributes, which must then
+     *             have a test for its value.
+     */
+    private String name;
+
+    /**
+     * @param value How values are decoded: "total" (the default) for plain numbers and the total of FDB's "rate
+     *              roughness total" counters, "rate" or "roughness" for the other parts of those counters, or
+     *              "<attribute>=<value>" for 1 if the attribute has the value and 0 if not.
+     */
+    private String value;
+
+    public String getType() {
+        return type;
+    }
+
+    public void setType(String type) {
+        this.type = type;
+    }
+
+    public Map<String, String> getWhen() {
+        return when;
+    }
+
+    public void setWhen(Map<String, String> when) {
+        this.when = when;
+    }
+
+    public String getScope() {
+        return scope;
+    }
+
+    public void setScope(String scope) {
+        this.scope = scope;
+    }
+
+    public List<String> getInclude() {
+        return include;
+    }
+
+    public void setInclude(List<String> include) {
+        this.include = include;
+    }
+
+    public List<String> getExclude() {
+        return exclude;
+    }
+
+    public void setExclude(List<String> exclude) {
+        this.exclude = exclude;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    public String getValue() {
+        return value;
+    }
+
+    public void setValue(String value) {
+        this.value = value;
+    }
+}
@@ -0,0 +1,312 @@
+package com.wavefront.integrations;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.yaml.YAMLFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * {@link MetricRule}s compiled for the listeners, which look up the rules for an event by its type and then apply
+ * them without parsing anything about them again.
+ *
+ * The include and exclude patterns of a rule are compiled into an {@link AttributeClassifier}, which memoizes its
+ * verdict for every attribute name, and its templates into their literal and placeholder parts.
+ */
+final class MetricRules {
+
+    private static final String RESOURCE = "metric-rules.yaml";
+
+    /**
+     * The groups of a rule's classifier.
+     */
+    static final int INCLUDED = 1;
+
+    private static final int EXCLUDED = 2 | 4;
+
+    static final int VALUE_TOTAL = 0;
+
+    static final int VALUE_RATE = 1;
+
+    static final int VALUE_ROUGHNESS = 2;
+
+    static final int VALUE_TEST = 3;
+
+    /**
+     * A template, split into literal text and placeholders.
+     */
+    static final class Template {
+
+        static final int LITERAL = 0;
+
+        static final int PORT = 1;
+
+        static final int WILDCARD = 2;
+
+        static final int ATTRIBUTE = 3;
+
+        final int[] kinds;
+
+        /**
+         * The text of every literal part, and the name of every attribute.
+         */
+        final String[] texts;
+
+        private Template(int[] kinds, String[] texts) {
+            this.kinds = kinds;
+            this.texts = texts;
+        }
+
+        static Template parse(String template) {
+            List<Integer> kinds = new ArrayList<>();
+            List<String> texts = new ArrayList<>();
+            int start = 0;
+            while (start < template.length()) {
+                int open = template.indexOf('{', start);
+                if (open == -1) {
+                    open = template.length();
+                }
+                if (open > start) {
+                    kinds.add(LITERAL);
+                    texts.add(template.substring(start, open));
+                }
+                if (open == template.length()) {
+                    break;
+                }
+                int close = template.indexOf('}', open);
+                if (close == -1 || close == open + 1) {
+                    throw new IllegalArgumentException("Malformed placeholder in '" + template + "'");
+                }
+                String placeholder = template.substring(open + 1, close);
+                kinds.add(placeholder.equals("port") ? PORT : placeholder.equals("*") ? WILDCARD : ATTRIBUTE);
+                texts.add(placeholder);
+                start = close + 1;
+            }
+            if (kinds.isEmpty()) {
+                throw new IllegalArgumentException("Empty template");
+            }
+            return new Template(kinds.stream().mapToInt(Integer::intValue).toArray(), texts.toArray(new String[0]));
+        }
+
+        boolean hasWildcard() {
+            for (int kind : kinds) {
+                if (kind == WILDCARD) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    static final class Rule {
+
+        final String[] whenAttributes;
+
+        final String[] whenPatterns;
+
+        /**
+         * The index of the when pattern ending in a wildcard, or -1 if there is none.
+         */
+        final int wildcard;
+
+        final Template scope;
+
+        /**
+         * Classifies attributes against the include prefixes and the exclude patterns, or null if there are no include
+         * prefixes.
+         */
+        final AttributeClassifier attributes;
+
+        /**
+         * The attributes included by name, reported in this order after those matched by prefix.
+         */
+        final String[] exactAttributes;
+
+        final Template name;
+
+        final int value;
+
+        final String testAttribute;
+
+        final String testValue;
+
+        private Rule(MetricRule rule) {
+            if (rule.getScope() == null) {
+                throw new IllegalArgumentException("A scope is required");
+            }
+            Map<String, String> when = rule.getWhen() == null ? Collections.emptyMap() : rule.getWhen();
+            whenAttributes = when.keySet().toArray(new String[0]);
+            whenPatterns = when.values().toArray(new String[0]);
+            int wildcard = -1;
+            for (int i = 0; i < whenPatterns.length; ++i) {
+                if (whenPatterns[i].endsWith("*")) {
+                    if (wildcard != -1) {
+                        throw new IllegalArgumentException("At most one when pattern may end in *");
+                    }
+                    wildcard = i;
+                }
+            }
+            this.wildcard = wildcard;
+            scope = Template.parse(rule.getScope());
+            name = rule.getName() == null ? null : Template.parse(rule.getName());
+            if ((scope.hasWildcard() || (name != null && name.hasWildcard())) && wildcard == -1) {
+                throw new IllegalArgumentException("{*} needs a when pattern ending in *");
+            }
+
+            String value = rule.getValue() == null ? "total" : rule.getValue();
+            int equals = value.indexOf('=');
+            if (equals != -1) {
+                this.value = VALUE_TEST;
+                testAttribute = value.substring(0, equals);
+                testValue = value.substring(equals + 1);
+            } else {
+                testAttribute = null;
+                testValue = null;
+                switch (value) {
+                    case "total":
+                        this.value = VALUE_TOTAL;
+                        break;
+                    case "rate":
+                        this.value = VALUE_RATE;
+                        break;
+                    case "roughness":
+                        this.value = VALUE_ROUGHNESS;
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown value '" + value + "'");
+                }
+            }
+            if ((name != null) != (this.value == VALUE_TEST)) {
+                throw new IllegalArgumentException("A name needs a value test, and a value test needs a name");
+            }
+
+            List<String> prefixes = new ArrayList<>();
+            List<String> exact = new ArrayList<>();
+            if (rule.getInclude() != null) {
+                for (String pattern : rule.getInclude()) {
+                    (pattern.endsWith("*") ? prefixes : exact).add(pattern);
+                }
+            }
+            if (name == null && prefixes.isEmpty() && exact.isEmpty()) {
+                throw new IllegalArgumentException("Either attributes to include or a name is required");
+            }
+            List<String> excludedPrefixes = new ArrayList<>();
+            List<String> excluded = new ArrayList<>();
+            if (rule.getExclude() != null) {
+                for (String pattern : rule.getExclude()) {
+                    (pattern.endsWith("*") ? excludedPrefixes : excluded).add(pattern);
+                }
+            }
+            AttributeClassifier classifier = AttributeClassifier.prefixes(strip(prefixes))
+                    .orPrefixes(strip(excludedPrefixes))
+                    .orExact(excluded.toArray(new String[0]));
+            attributes = prefixes.isEmpty() ? null : classifier;
+            // Names already matched by a prefix are reported with it, and names excluded are not reported at all.
+            exact.removeIf(attribute -> classifier.classify(attribute) != 0);
+            exactAttributes = exact.toArray(new String[0]);
+        }
+
+        private static String[] strip(List<String> prefixes) {
+            return prefixes.stream().map(prefix -> prefix.substring(0, prefix.length() - 1)).toArray(String[]::new);
+        }
+
+        /**
+         * @return Whether an attribute matched by the classifier is reported.
+         */
+        static boolean isIncluded(int groups) {
+            return (groups & INCLUDED) != 0 && (groups & EXCLUDED) == 0;
+        }
+
+        /**
+         * @param index The index of a when pattern.
+         * @return Whether the attribute value matches the pattern.
+         */
+        boolean matches(int index, String value) {
+            String pattern = whenPatterns[index];
+            return index == wildcard ? value.startsWith(pattern.substring(0, pattern.length() - 1)) :
+                    value.equals(pattern);
+        }
+
+        /**
+         * @return The length of the literal part of the wildcard pattern, where what it matched starts.
+         */
+        int wildcardStart() {
+            return whenPatterns[wildcard].length() - 1;
+        }
+    }
+
+    private static final MetricRules DEFAULTS = compile(defaultRules());
+
+    private final Map<String, Rule[]> byType;
+
+    private MetricRules(Map<String, Rule[]> byType) {
+        this.byType = byType;
+    }
+
+    /**
+     * @throws IllegalArgumentException If a rule is not valid.
+     */
+    static MetricRules compile(List<MetricRule> rules) {
+        Map<String, List<Rule>> byType = new LinkedHashMap<>();
+        for (int i = 0; i < rules.size(); ++i) {
+            MetricRule rule = rules.get(i);
+            if (rule.getType() == null) {
+                throw new IllegalArgumentException("Metric rule " + (i + 1) + ": a type is required");
+            }
+            try {
+                byType.computeIfAbsent(rule.getType(), type -> new ArrayList<>()).add(new Rule(rule));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Metric rule " + (i + 1) + " (" + rule.getType() + "): " +
+                        e.getMessage(), e);
+            }
+        }
+        Map<String, Rule[]> compiled = new LinkedHashMap<>();
+        for (Map.Entry<String, List<Rule>> entry : byType.entrySet()) {
+            compiled.put(entry.getKey(), entry.getValue().toArray(new Rule[0]));
+        }
+        return new MetricRules(compiled);
+    }
+
+    /**
+     * @return The rules the tailer ships with.
+     */
+    static List<MetricRule> defaultRules() {
+        try (InputStream in = MetricRules.class.getResourceAsStream(RESOURCE)) {
+            if (in == null) {
+                throw new IllegalStateException(RESOURCE + " is missing");
+            }
+            return new ObjectMapper(new YAMLFactory()).readValue(in, new TypeReference<List<MetricRule>>() {});
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * @return {@link #defaultRules()}, compiled.
+     */
+    static MetricRules defaults() {
+        return DEFAULTS;
+    }
+
+    /**
+     * @return The types of events there are rules for.
+     */
+    Set<String> getTypes() {
+        return Collections.unmodifiableSet(byType.keySet());
+    }
+
+    /**
+     * @return The rules for the type, in the order they were given, or null if there are none.
+     */
+    Rule[] forType(String type) {
+        return byType.get(type);
+    }
+}
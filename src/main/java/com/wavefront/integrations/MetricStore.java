@@ -0,0 +1,331 @@
+package com.wavefront.integrations;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.annotations.VisibleForTesting;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Logger;
+
+/**
+ * Holds the latest value of every metric series the listeners report, and, when metrics are reported through the
+ * registry rather than sent directly, the gauge that publishes it.
+ *
+ * Every series is given an integer id when it is first acquired, and its value lives in a slot of a primitive array,
+ * so updating or reading it is an array access rather than a map lookup on a freshly built name.  Callers hold a
+ * reference: the id together with the generation of its slot, which changes whenever the slot is freed, so that a
+ * reference to an evicted series can be told apart from the series that reuses its slot.
+ *
+ * Series come and go: processes move ports, machines are excluded, new MemSample hashes appear.  The store keeps them
+ * from accumulating forever in two ways.  A series that has not been updated for the idle timeout is evicted, and its
+ * gauge removed from the registry.  And the number of series is capped: once the cap is reached, new series are
+ * rejected, and the next sweep evicts the least updated series down to {@link #RETAINED_FRACTION} of the cap, so that
+ * the busiest series are always retained and new ones can get in.  A series is only ranked once it has been held for a
+ * whole sweep, so that new series are not evicted before they have had the chance to be updated, and a series evicted
+ * for the cap is not admitted again until the next sweep.
+ *
+ * A rejection holds until the next sweep: the reference returned for a rejected series records the sweep, so that
+ * callers only try to acquire it again once there may be room, and each rejected series is counted once per sweep.
+ */
+class MetricStore {
+
+    private static final Logger logger = Logger.getLogger(MetricStore.class.getCanonicalName());
+
+    static final double RETAINED_FRACTION = 0.9;
+
+    private static final int SEGMENT_BITS = 12;
+
+    private static final int SEGMENT_SIZE = 1 << SEGMENT_BITS;
+
+    private static final int SEGMENT_MASK = SEGMENT_SIZE - 1;
+
+    /**
+     * A fixed-size block of slots.  Blocks are only ever added, so a slot never moves.
+     */
+    private static final class Segment {
+
+        final AtomicLongArray values = new AtomicLongArray(SEGMENT_SIZE);
+
+        /**
+         * The sweep in which each slot was last updated in the high half, and the number of updates since the last
+         * sweep in the low half.  Written without synchronization: a lost update only affects ranking.
+         */
+        final AtomicLongArray activity = new AtomicLongArray(SEGMENT_SIZE);
+
+        final AtomicIntegerArray generations = new AtomicIntegerArray(SEGMENT_SIZE);
+
+        final String[] names = new String[SEGMENT_SIZE];
+
+        /**
+         * The sweep in which each slot's series was admitted.  Only used while synchronized.
+         */
+        final long[] admitted = new long[SEGMENT_SIZE];
+    }
+
+    private final ConcurrentMap<String, Long> references = new ConcurrentHashMap<>();
+
+    /**
+     * The series rejected, and those evicted for the cap, since the last sweep.  Only used while synchronized.
+     */
+    private final Set<String> rejectedNames = new HashSet<>();
+
+    private final Set<String> cappedNames = new HashSet<>();
+
+    private volatile Segment[] segments = new Segment[0];
+
+    private int[] freeIds = new int[16];
+
+    private int freeCount;
+
+    private int nextId;
+
+    private int size;
+
+    private final MetricRegistry registry;
+
+    private final String registryPrefix;
+
+    private final boolean registerGauges;
+
+    private final int maxSeries;
+
+    private final int idleSweeps;
+
+    private final Counter evicted;
+
+    private final Counter rejected;
+
+    private volatile long sweep;
+
+    /**
+     * @param registry       The registry gauges and the store's own counters are registered in.
+     * @param registryPrefix The prefix of registry names.
+     * @param registerGauges Whether a gauge is registered for every series, to be reported through the registry.
+     * @param maxSeries      The maximum number of series.
+     * @param idleSweeps     The number of sweeps a series may go without an update before it is evicted.
+     */
+    MetricStore(MetricRegistry registry, String registryPrefix, boolean registerGauges, int maxSeries,
+                int idleSweeps) {
+        this.registry = registry;
+        this.registryPrefix = registryPrefix;
+        this.registerGauges = registerGauges;
+        this.maxSeries = maxSeries;
+        this.idleSweeps = idleSweeps;
+        this.evicted = registry.counter(registryPrefix + "series_evicted");
+        this.rejected = registry.counter(registryPrefix + "series_rejected");
+    }
+
+    /**
+     * @return A reference to the series with the given name, added if it is new, or, if the store is full, a rejected
+     * reference, which {@link #isRejected} tells apart.
+     */
+    long acquire(String name) {
+        Long reference = references.get(name);
+        if (reference != null) {
+            return reference;
+        }
+        return add(name);
+    }
+
+    private synchronized long add(String name) {
+        Long reference = references.get(name);
+        if (reference != null) {
+            return reference;
+        }
+        if (size >= maxSeries || cappedNames.contains(name)) {
+            if (rejectedNames.add(name)) {
+                rejected.inc();
+            }
+            return -1 - sweep;
+        }
+        int id = freeCount > 0 ? freeIds[--freeCount] : nextId++;
+        Segment segment = segment(id);
+        int slot = id & SEGMENT_MASK;
+        segment.names[slot] = name;
+        segment.values.set(slot, Double.doubleToRawLongBits(0));
+        segment.activity.set(slot, sweep << 32);
+        segment.admitted[slot] = sweep;
+        long created = reference(id, segment.generations.get(slot));
+        references.put(name, created);
+        ++size;
+        if (registerGauges) {
+            registry.remove(registryPrefix + name);
+            registry.register(registryPrefix + name, (Gauge<Double>) () -> get(created));
+        }
+        return created;
+    }
+
+    /**
+     * @return The segment holding the id, added if it does not exist yet.  Only called while synchronized.
+     */
+    private Segment segment(int id) {
+        int index = id >>> SEGMENT_BITS;
+        Segment[] current = segments;
+        if (index >= current.length) {
+            current = Arrays.copyOf(current, index + 1);
+            current[index] = new Segment();
+            segments = current;
+        }
+        return current[index];
+    }
+
+    /**
+     * @return Whether the reference is one returned for a rejected series.
+     */
+    static boolean isRejected(long reference) {
+        return reference < 0;
+    }
+
+    /**
+     * @return Whether the reference still stands: it is to a series the store still holds, or its series was rejected
+     * since the last sweep.  Otherwise, the series should be acquired again.
+     */
+    boolean isCurrent(long reference) {
+        return isRejected(reference) ? -1 - reference == sweep : isLive(reference);
+    }
+
+    /**
+     * @return Whether the reference is to a series the store still holds.
+     */
+    boolean isLive(long reference) {
+        if (isRejected(reference)) {
+            return false;
+        }
+        int id = id(reference);
+        return isLive(segments[id >>> SEGMENT_BITS], id & SEGMENT_MASK, reference);
+    }
+
+    private static boolean isLive(Segment segment, int slot, long reference) {
+        return segment.generations.get(slot) == (int) (reference >>> 32);
+    }
+
+    /**
+     * @return The latest value of the series, or 0 if the store no longer holds it.
+     */
+    double get(long reference) {
+        if (isRejected(reference)) {
+            return 0;
+        }
+        int id = id(reference);
+        Segment segment = segments[id >>> SEGMENT_BITS];
+        int slot = id & SEGMENT_MASK;
+        return isLive(segment, slot, reference) ? Double.longBitsToDouble(segment.values.get(slot)) : 0;
+    }
+
+    /**
+     * Sets the value of a series, marking it as active.  A reference to a series the store no longer holds is ignored,
+     * so that a value meant for an evicted series never lands on the series that reuses its slot.
+     *
+     * @return Whether the value was set.
+     */
+    boolean set(long reference, double value) {
+        if (isRejected(reference)) {
+            return false;
+        }
+        int id = id(reference);
+        Segment segment = segments[id >>> SEGMENT_BITS];
+        int slot = id & SEGMENT_MASK;
+        if (!isLive(segment, slot, reference)) {
+            return false;
+        }
+        segment.values.set(slot, Double.doubleToRawLongBits(value));
+        long activity = segment.activity.get(slot);
+        int updates = (int) activity + 1;
+        segment.activity.lazySet(slot, sweep << 32 | (updates & 0xffffffffL));
+        return true;
+    }
+
+    /**
+     * Evicts idle series and, if the store is full, the least updated ones.  Meant to be called periodically; the idle
+     * timeout is counted in calls.
+     */
+    synchronized void sweep() {
+        long current = ++sweep;
+        rejectedNames.clear();
+        cappedNames.clear();
+        Segment[] currentSegments = segments;
+        // The update count in the high half and the id in the low half, so that sorting ranks by activity.
+        long[] ranking = new long[size];
+        int ranked = 0;
+        for (int id = 0; id < nextId; ++id) {
+            Segment segment = currentSegments[id >>> SEGMENT_BITS];
+            int slot = id & SEGMENT_MASK;
+            if (segment.names[slot] == null) {
+                continue;
+            }
+            long activity = segment.activity.get(slot);
+            if (current - (activity >>> 32) > idleSweeps) {
+                evict(id);
+            } else {
+                // Series admitted since the last sweep have not been held for a whole sweep yet.
+                if (segment.admitted[slot] < current - 1) {
+                    ranking[ranked++] = (activity & 0xffffffffL) << 32 | id;
+                }
+                segment.activity.lazySet(slot, activity & 0xffffffff00000000L);
+            }
+        }
+        if (size >= maxSeries) {
+            int evictions = Math.min(size - (int) (maxSeries * RETAINED_FRACTION), ranked);
+            Arrays.sort(ranking, 0, ranked);
+            logger.warning("Metric series cap of " + maxSeries + " reached, evicting the " + evictions +
+                    " least updated series");
+            for (int i = 0; i < evictions; ++i) {
+                cappedNames.add(evict((int) ranking[i]));
+            }
+        }
+    }
+
+    /**
+     * @return The name of the series evicted.
+     */
+    private String evict(int id) {
+        Segment segment = segments[id >>> SEGMENT_BITS];
+        int slot = id & SEGMENT_MASK;
+        String name = segment.names[slot];
+        references.remove(name);
+        segment.names[slot] = null;
+        // Generations stay positive, so that references to held series do too.
+        segment.generations.set(slot, (segment.generations.get(slot) + 1) & Integer.MAX_VALUE);
+        if (freeCount == freeIds.length) {
+            freeIds = Arrays.copyOf(freeIds, freeCount * 2);
+        }
+        freeIds[freeCount++] = id;
+        --size;
+        evicted.inc();
+        if (registerGauges) {
+            registry.remove(registryPrefix + name);
+        }
+        return name;
+    }
+
+    /**
+     * @return The number of series held.
+     */
+    synchronized int size() {
+        return size;
+    }
+
+    /**
+     * @return The latest value of the named series, or null if the store does not hold it.
+     */
+    @VisibleForTesting
+    Double getValue(String name) {
+        Long reference = references.get(name);
+        return reference == null ? null : get(reference);
+    }
+
+    private static long reference(int id, int generation) {
+        return (long) generation << 32 | id;
+    }
+
+    private static int id(long reference) {
+        return (int) reference;
+    }
+}
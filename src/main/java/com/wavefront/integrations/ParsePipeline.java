@@ -0,0 +1,327 @@
+package com.wavefront.integrations;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.google.common.base.Charsets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Moves the handling of tailed lines off the tailing threads, onto a pool of parse workers.
+ *
+ * The tailing threads only frame lines: they copy them into batches of up to {@link #BATCH_BYTES} bytes, and hand
+ * every batch to a bounded queue when it is full or when the poll that read it is over.  Every file is assigned to one
+ * worker, which handles its batches and events in order, so a listener still sees its file's lines in order and from
+ * one thread at a time.  Points are emitted from the workers into the sender's bounded queue, from which its own
+ * threads batch and send them, so the workers never wait for the network and only share the locks of the striped
+ * {@link CoalescingSender} and the short one the proxy sender renders points under.  The depth of that queue and the
+ * time points wait in it are reported by the sender, as {@code sender.} or {@code endpoint.<name>.} metrics.
+ *
+ * When a worker's queue is full, the tailing thread either waits for room ({@link
+ * FDBMetricsReporterArguments.Backpressure#BLOCK}), which stops reading until the workers catch up, or drops the
+ * batch ({@link FDBMetricsReporterArguments.Backpressure#DROP}).  Events other than lines are never dropped.  The
+ * depth of the queues, the time batches wait in them and take to handle, the lines dropped and the time the tailing
+ * threads are held up are reported under {@code pipeline.}.
+ *
+ * A file's read position advances when its lines are queued, so its handled position, which checkpoints record, is
+ * only advanced by the worker, once it has handled a poll's lines.  The handled position stops at the first batch a
+ * file has dropped, so that a restart reads the dropped lines again.  At shutdown the pipeline is {@link #drain
+ * drained} before the positions are saved.
+ */
+class ParsePipeline {
+
+    private static final Logger logger = Logger.getLogger(ParsePipeline.class.getCanonicalName());
+
+    static final int BATCH_BYTES = 64 * 1024;
+
+    private interface Task {
+
+        void run(TraceLine view);
+    }
+
+    /**
+     * Lines copied out of the read buffer, back to back.  It starts small and grows up to {@link #BATCH_BYTES}, since
+     * most polls of a live file only read a few lines.
+     */
+    private final class Batch implements Task {
+
+        final TailedFile tailedFile;
+
+        final TailListener listener;
+
+        /**
+         * The file's position just past the batch's last line, if the batch ends a poll, or {@link TailedFile#FROM_END}.
+         */
+        long endPosition = TailedFile.FROM_END;
+
+        byte[] bytes = new byte[4096];
+
+        int[] ends = new int[64];
+
+        int lines;
+
+        int size;
+
+        long queuedNanos;
+
+        Batch(TailedFile tailedFile, TailListener listener) {
+            this.tailedFile = tailedFile;
+            this.listener = listener;
+        }
+
+        boolean fits(int length) {
+            return size + length <= BATCH_BYTES;
+        }
+
+        void add(TraceLine line) {
+            if (size + line.length() > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + line.length()));
+            }
+            if (lines == ends.length) {
+                ends = Arrays.copyOf(ends, lines * 2);
+            }
+            size += line.copyTo(bytes, size);
+            ends[lines++] = size;
+        }
+
+        @Override
+        public void run(TraceLine view) {
+            queueLatency.update(System.nanoTime() - queuedNanos, TimeUnit.NANOSECONDS);
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            try (Timer.Context ignored = parseLatency.time()) {
+                int start = 0;
+                for (int i = 0; i < lines; ++i) {
+                    try {
+                        listener.handle(view.set(buffer, start, ends[i] - start));
+                    } catch (RuntimeException e) {
+                        // A bad line should not stop the rest of the file from being handled.
+                        listener.handle(e);
+                    }
+                    start = ends[i];
+                }
+            }
+            if (endPosition != TailedFile.FROM_END) {
+                tailedFile.setHandledPosition(endPosition);
+            }
+        }
+    }
+
+    /**
+     * The listener the tailing threads call for one file.
+     */
+    private final class Source implements TailListener {
+
+        private final TailListener listener;
+
+        private final BlockingQueue<Task> queue;
+
+        private TailedFile tailedFile;
+
+        private Batch batch;
+
+        /**
+         * The position handed to the worker to record last, and whether a batch has been dropped, after which no
+         * position is.
+         */
+        private long submittedPosition = TailedFile.FROM_END;
+
+        private boolean dropped;
+
+        Source(TailListener listener, BlockingQueue<Task> queue) {
+            this.listener = listener;
+            this.queue = queue;
+        }
+
+        @Override
+        public void init(TailedFile tailedFile) {
+            // Nothing has been queued for the file yet.
+            this.tailedFile = tailedFile;
+            tailedFile.setHandledPosition(tailedFile.getStartPosition());
+            listener.init(tailedFile);
+        }
+
+        @Override
+        public void fileNotFound() {
+            submitEvent(view -> listener.fileNotFound());
+        }
+
+        @Override
+        public void fileRotated() {
+            submitEvent(view -> listener.fileRotated());
+        }
+
+        @Override
+        public void handle(CharSequence line) {
+            TraceLine traceLine;
+            if (line instanceof TraceLine) {
+                traceLine = (TraceLine) line;
+            } else {
+                byte[] encoded = line.toString().getBytes(Charsets.UTF_8);
+                traceLine = new TraceLine().set(ByteBuffer.wrap(encoded), 0, encoded.length);
+            }
+            if (batch != null && !batch.fits(traceLine.length())) {
+                submitBatch();
+            }
+            if (batch == null) {
+                batch = new Batch(tailedFile, listener);
+            }
+            batch.add(traceLine);
+        }
+
+        @Override
+        public void handle(Exception ex) {
+            submitEvent(view -> listener.handle(ex));
+        }
+
+        @Override
+        public void polled() {
+            long position = tailedFile.getPosition();
+            if (!dropped && position != submittedPosition) {
+                submittedPosition = position;
+                if (batch != null && batch.lines > 0) {
+                    batch.endPosition = position;
+                } else {
+                    // Nothing to handle, but the position moved, e.g. past a file's content when tailing from its end.
+                    submitEvent(view -> tailedFile.setHandledPosition(position));
+                    return;
+                }
+            }
+            submitBatch();
+        }
+
+        private void submitBatch() {
+            if (batch == null || batch.lines == 0) {
+                return;
+            }
+            Batch full = batch;
+            batch = null;
+            full.queuedNanos = System.nanoTime();
+            if (queue.offer(full)) {
+                return;
+            }
+            if (backpressure == FDBMetricsReporterArguments.Backpressure.DROP) {
+                droppedLines.inc(full.lines);
+                if (!dropped) {
+                    dropped = true;
+                    logger.warning("Dropping lines of " + tailedFile.getFile() + ", which will be read again on " +
+                            "restart from its last checkpoint");
+                }
+                return;
+            }
+            put(full);
+        }
+
+        private void submitEvent(Task event) {
+            submitBatch();
+            if (!queue.offer(event)) {
+                put(event);
+            }
+        }
+
+        private void put(Task task) {
+            try (Timer.Context ignored = blocked.time()) {
+                queue.put(task);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private final List<BlockingQueue<Task>> queues = new ArrayList<>();
+
+    private final FDBMetricsReporterArguments.Backpressure backpressure;
+
+    private final Timer queueLatency;
+
+    private final Timer parseLatency;
+
+    private final Timer blocked;
+
+    private final Counter droppedLines;
+
+    /**
+     * @param workers      The number of parse workers.
+     * @param queueBatches The number of batches, of up to {@link #BATCH_BYTES} each, a worker may have queued.
+     * @param backpressure What to do with a batch when its worker's queue is full.
+     * @param registry     The registry the pipeline's metrics are registered in.
+     * @param prefix       The prefix of their names.
+     */
+    ParsePipeline(int workers, int queueBatches, FDBMetricsReporterArguments.Backpressure backpressure,
+                  MetricRegistry registry, String prefix) {
+        this.backpressure = backpressure;
+        this.queueLatency = registry.timer(prefix + "pipeline.queue_latency");
+        this.parseLatency = registry.timer(prefix + "pipeline.parse_latency");
+        this.blocked = registry.timer(prefix + "pipeline.blocked");
+        this.droppedLines = registry.counter(prefix + "pipeline.dropped_lines");
+        registry.remove(prefix + "pipeline.queue_depth");
+        registry.register(prefix + "pipeline.queue_depth", (Gauge<Integer>) () -> {
+            int depth = 0;
+            for (BlockingQueue<Task> queue : queues) {
+                depth += queue.size();
+            }
+            return depth;
+        });
+
+        ThreadFactory threads = new ThreadFactoryBuilder().setNameFormat("fdb-parser-%d").setDaemon(true).build();
+        for (int i = 0; i < workers; ++i) {
+            BlockingQueue<Task> queue = new ArrayBlockingQueue<>(queueBatches);
+            queues.add(queue);
+            threads.newThread(() -> work(queue)).start();
+        }
+    }
+
+    private static void work(BlockingQueue<Task> queue) {
+        TraceLine view = new TraceLine();
+        while (true) {
+            Task task;
+            try {
+                task = queue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            try {
+                task.run(view);
+            } catch (Throwable e) {
+                logger.log(Level.WARNING, "Exception while handling lines", e);
+            }
+        }
+    }
+
+    /**
+     * Waits until the workers have handled everything queued so far.  Tailing must have stopped, or lines queued
+     * meanwhile may or may not have been handled.
+     *
+     * @return Whether everything was handled before the timeout.
+     */
+    boolean drain(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        // Every worker handles its queue in order, so once it reaches the marker, what came before has been handled.
+        CountDownLatch drained = new CountDownLatch(queues.size());
+        for (BlockingQueue<Task> queue : queues) {
+            if (!queue.offer(view -> drained.countDown(), deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+                return false;
+            }
+        }
+        return drained.await(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @return A listener that queues the file's lines and events for the listener, to be handled by a worker.
+     */
+    TailListener wrap(String key, TailListener listener) {
+        return new Source(listener, queues.get(Math.floorMod(key.hashCode(), queues.size())));
+    }
+}
@@ -0,0 +1,523 @@
+package com.wavefront.integrations;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Timer;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Charsets;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.wavefront.sdk.common.Pair;
+import com.wavefront.sdk.common.Utils;
+import com.wavefront.sdk.common.WavefrontSender;
+import com.wavefront.sdk.entities.histograms.HistogramGranularity;
+import com.wavefront.sdk.entities.tracing.SpanLog;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.UnresolvedAddressException;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Sends metric points to a Wavefront proxy in its line protocol, over one persistent connection.
+ *
+ * Points are rendered straight into a reusable buffer, which is handed to a writer thread whenever it fills up and
+ * on every flush, so that sending a point never waits for the network.  The rendered name of a metric and the
+ * rendered source and tags of a tag map are cached: a listener's tags only change when its cluster file is found, so
+ * each point only costs rendering its value and timestamp.  Tag maps are cached by identity, so they must not be
+ * changed once they have been sent with.
+ *
+ * The buffers waiting for the writer are bounded.  When they are all in use, because the proxy is slow or not
+ * reading, the points of a full buffer are dropped and counted instead.  The writer connects and writes with
+ * timeouts; if the connection fails or a write times out, the points being written are dropped and counted as a
+ * failure, and the next write reconnects, as the SDK's proxy client does.  A flush waits, for a bounded time, until
+ * the points sent before it have been written.  The time from a buffer being handed to the writer until it has been
+ * written is timed, so the buffers waiting for the writer are the stage points are emitted through, with their own
+ * depth and latency.
+ *
+ * Distributions and spans, which are few, are rendered as the SDK renders them and written to the same connection;
+ * the proxy's port accepts histogram and span lines as well as metrics.
+ */
+class ProxyLineSender implements WavefrontSender {
+
+    private static final Logger logger = Logger.getLogger(ProxyLineSender.class.getCanonicalName());
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * The number of buffers that may be filled or waiting for the writer, enough for a backfill's batch of points.
+     */
+    private static final int MAX_BUFFERS = 256;
+
+    private static final int CONNECT_TIMEOUT_MILLIS = 10_000;
+
+    private static final int WRITE_TIMEOUT_MILLIS = 30_000;
+
+    private static final int MAX_NAMES = 100_000;
+
+    private final String host;
+
+    private final int port;
+
+    private final String address;
+
+    private final String defaultSource;
+
+    /**
+     * A buffer of rendered points.
+     */
+    private static final class Batch {
+
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+        int points;
+
+        /**
+         * When the buffer was handed to the writer.
+         */
+        long handedOffNanos;
+    }
+
+    private final Cache<String, byte[]> names = CacheBuilder.newBuilder().maximumSize(MAX_NAMES).build();
+
+    // Weak keys are compared by identity.
+    private final Cache<Map<String, String>, byte[]> suffixes = CacheBuilder.newBuilder().weakKeys().build();
+
+    private final byte[] digits = new byte[20];
+
+    private final AtomicInteger failures = new AtomicInteger();
+
+    private final Counter dropped;
+
+    private final Timer sendLatency;
+
+    private final int maxBuffers;
+
+    private final int writeTimeoutMillis;
+
+    /**
+     * The buffer points are rendered into, and its {@link Batch#buffer}.
+     */
+    private Batch current;
+
+    private ByteBuffer buffer;
+
+    /**
+     * The number of buffers allocated so far.
+     */
+    private int allocated;
+
+    /**
+     * Whether points have been dropped since a buffer was last handed to the writer, so that only the first is logged.
+     */
+    private boolean overflowing;
+
+    private final Queue<Batch> free = new ConcurrentLinkedQueue<>();
+
+    private final BlockingQueue<Batch> pending = new LinkedBlockingQueue<>();
+
+    /**
+     * The number of buffers handed to the writer, and the number it is done with.
+     */
+    private long handedOff;
+
+    private final AtomicLong completed = new AtomicLong();
+
+    /**
+     * The points sent and neither written nor dropped yet.
+     */
+    private final AtomicInteger queuedPoints = new AtomicInteger();
+
+    private final Thread writer;
+
+    private final ScheduledExecutorService flusher;
+
+    private volatile boolean closed;
+
+    // Only used by the writer.
+    private SocketChannel channel;
+
+    private Selector selector;
+
+    /**
+     * @param defaultSource        The source of points sent without one.
+     * @param flushIntervalSeconds How often buffered points are written out even if the buffer is not full.
+     * @param dropped              Counts the points dropped because they could not be written.
+     * @param sendLatency          Times buffers from being handed to the writer until they have been written.
+     */
+    ProxyLineSender(String host, int port, String defaultSource, int flushIntervalSeconds, Counter dropped,
+                    Timer sendLatency) {
+        this(host, port, defaultSource, flushIntervalSeconds, dropped, sendLatency, MAX_BUFFERS, WRITE_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * @param maxBuffers         The number of buffers that may be filled or waiting for the writer.
+     * @param writeTimeoutMillis How long writing a buffer may take before the connection is given up on.
+     */
+    @VisibleForTesting
+    ProxyLineSender(String host, int port, String defaultSource, int flushIntervalSeconds, Counter dropped,
+                    Timer sendLatency, int maxBuffers, int writeTimeoutMillis) {
+        this.host = host;
+        this.port = port;
+        this.address = host + ":" + port;
+        this.defaultSource = defaultSource;
+        this.dropped = dropped;
+        this.sendLatency = sendLatency;
+        this.maxBuffers = maxBuffers;
+        this.writeTimeoutMillis = writeTimeoutMillis;
+        this.current = new Batch();
+        this.buffer = current.buffer;
+        this.allocated = 1;
+        this.writer = new Thread(this::write, "fdb-proxy-writer");
+        writer.setDaemon(true);
+        writer.start();
+        this.flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "fdb-proxy-flusher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        flusher.scheduleAtFixedRate(() -> {
+            try {
+                flush();
+            } catch (Throwable e) {
+                logger.log(Level.WARNING, "Exception while flushing points to " + address, e);
+            }
+        }, flushIntervalSeconds, flushIntervalSeconds, TimeUnit.SECONDS);
+    }
+
+    @Override
+    public synchronized void sendMetric(String name, double value, Long timestamp, String source,
+                                        Map<String, String> tags) throws IOException {
+        byte[] renderedName = names.getIfPresent(name);
+        if (renderedName == null) {
+            renderedName = utf8(Utils.sanitize(name) + ' ');
+            names.put(name, renderedName);
+        }
+        byte[] suffix;
+        if (source == null && tags != null) {
+            suffix = suffixes.getIfPresent(tags);
+            if (suffix == null) {
+                suffix = renderSuffix(null, tags);
+                suffixes.put(tags, suffix);
+            }
+        } else {
+            suffix = renderSuffix(source, tags);
+        }
+
+        // The longest value and timestamp fit in 64 bytes.
+        reserve(renderedName.length + 64 + suffix.length);
+        buffer.put(renderedName);
+        putValue(value);
+        if (timestamp != null) {
+            buffer.put((byte) ' ');
+            putLong(timestamp);
+        }
+        buffer.put(suffix);
+        ++current.points;
+        queuedPoints.incrementAndGet();
+    }
+
+    private byte[] renderSuffix(String source, Map<String, String> tags) {
+        StringBuilder suffix = new StringBuilder(" source=");
+        suffix.append(Utils.sanitizeValue(source == null ? defaultSource : source));
+        if (tags != null) {
+            for (Map.Entry<String, String> tag : tags.entrySet()) {
+                suffix.append(' ').append(Utils.sanitize(tag.getKey())).append('=')
+                        .append(Utils.sanitizeValue(tag.getValue()));
+            }
+        }
+        return utf8(suffix.append('\n').toString());
+    }
+
+    private static byte[] utf8(String rendered) {
+        return rendered.getBytes(Charsets.UTF_8);
+    }
+
+    /**
+     * Writes values that are whole numbers, as most FDB values are, as integers, without going through a string.
+     */
+    private void putValue(double value) {
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            putLong((long) value);
+        } else {
+            buffer.put(utf8(Double.toString(value)));
+        }
+    }
+
+    private void putLong(long value) {
+        if (value == Long.MIN_VALUE) {
+            buffer.put(utf8(Long.toString(value)));
+            return;
+        }
+        if (value < 0) {
+            buffer.put((byte) '-');
+            value = -value;
+        }
+        int start = digits.length;
+        do {
+            digits[--start] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value != 0);
+        buffer.put(digits, start, digits.length - start);
+    }
+
+    /**
+     * Makes room for a point of the given length, handing the buffer to the writer if needed.
+     */
+    private void reserve(int length) throws IOException {
+        if (buffer.remaining() < length) {
+            handOff();
+        }
+        if (buffer.remaining() < length) {
+            throw new IOException("A point of " + length + " bytes does not fit in the send buffer");
+        }
+    }
+
+    /**
+     * Hands the buffer to the writer and carries on with a free one, or, if none is free, drops its points.  Only
+     * called while synchronized.
+     */
+    private void handOff() {
+        if (buffer.position() == 0) {
+            return;
+        }
+        Batch next = free.poll();
+        if (next == null && allocated < maxBuffers) {
+            next = new Batch();
+            ++allocated;
+        }
+        if (next == null) {
+            if (!overflowing) {
+                logger.warning("Dropping points: the proxy at " + address + " is not keeping up");
+                overflowing = true;
+            }
+            dropped.inc(current.points);
+            queuedPoints.addAndGet(-current.points);
+            ((Buffer) buffer).clear();
+            current.points = 0;
+            return;
+        }
+        overflowing = false;
+        current.handedOffNanos = System.nanoTime();
+        pending.add(current);
+        ++handedOff;
+        current = next;
+        buffer = next.buffer;
+    }
+
+    /**
+     * Writes the buffers handed off until the sender is closed.  Runs on the writer thread.
+     */
+    private void write() {
+        try {
+            while (!closed || !pending.isEmpty()) {
+                Batch batch = pending.poll(100, TimeUnit.MILLISECONDS);
+                if (batch != null) {
+                    write(batch);
+                }
+            }
+        } catch (InterruptedException e) {
+            // Closed while the proxy is not keeping up.
+            for (Batch batch; (batch = pending.poll()) != null; ) {
+                dropped.inc(batch.points);
+                done(batch);
+            }
+        } finally {
+            closeChannel();
+        }
+    }
+
+    private void write(Batch batch) {
+        ByteBuffer data = batch.buffer;
+        ((Buffer) data).flip();
+        try {
+            if (channel == null) {
+                connect();
+            }
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(writeTimeoutMillis);
+            while (data.hasRemaining()) {
+                if (channel.write(data) == 0) {
+                    long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                    if (remaining <= 0) {
+                        throw new SocketTimeoutException("Timed out writing to " + address);
+                    }
+                    selector.select(remaining);
+                    selector.selectedKeys().clear();
+                }
+            }
+            sendLatency.update(System.nanoTime() - batch.handedOffNanos, TimeUnit.NANOSECONDS);
+        } catch (IOException | UnresolvedAddressException e) {
+            failures.incrementAndGet();
+            dropped.inc(batch.points);
+            logger.log(Level.WARNING, "Dropping points that could not be sent to " + address, e);
+            closeChannel();
+        } finally {
+            done(batch);
+        }
+    }
+
+    private void done(Batch batch) {
+        queuedPoints.addAndGet(-batch.points);
+        ((Buffer) batch.buffer).clear();
+        batch.points = 0;
+        free.add(batch);
+        completed.incrementAndGet();
+        synchronized (completed) {
+            completed.notifyAll();
+        }
+    }
+
+    private void connect() throws IOException {
+        SocketChannel opened = SocketChannel.open();
+        try {
+            opened.setOption(StandardSocketOptions.SO_KEEPALIVE, true);
+            // Resolved on every connection, in case the proxy has moved.
+            opened.socket().connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MILLIS);
+            opened.configureBlocking(false);
+            selector = Selector.open();
+            opened.register(selector, SelectionKey.OP_WRITE);
+        } catch (IOException | RuntimeException e) {
+            opened.close();
+            closeSelector();
+            throw e;
+        }
+        channel = opened;
+        logger.info("Connected to proxy at " + address);
+    }
+
+    private void closeChannel() {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // It is being discarded anyway.
+            }
+            channel = null;
+        }
+        closeSelector();
+    }
+
+    private void closeSelector() {
+        if (selector != null) {
+            try {
+                selector.close();
+            } catch (IOException e) {
+                // It is being discarded anyway.
+            }
+            selector = null;
+        }
+    }
+
+    @Override
+    public void sendFormattedMetric(String point) throws IOException {
+        putLine(point);
+    }
+
+    @Override
+    public void sendDistribution(String name, List<Pair<Double, Integer>> centroids,
+                                 Set<HistogramGranularity> histogramGranularities, Long timestamp, String source,
+                                 Map<String, String> tags) throws IOException {
+        // One line per granularity.
+        putLine(Utils.histogramToLineData(name, centroids, histogramGranularities, timestamp, source, tags,
+                defaultSource));
+    }
+
+    @Override
+    public void sendSpan(String name, long startMillis, long durationMillis, String source, UUID traceId, UUID spanId,
+                         List<UUID> parents, List<UUID> followsFrom, List<Pair<String, String>> tags,
+                         List<SpanLog> spanLogs) throws IOException {
+        putLine(Utils.tracingSpanToLineData(name, startMillis, durationMillis, source, traceId, spanId, parents,
+                followsFrom, tags, spanLogs, defaultSource));
+    }
+
+    /**
+     * Buffers lines rendered elsewhere, as one point.
+     */
+    private void putLine(String lines) throws IOException {
+        byte[] rendered = utf8(lines.endsWith("\n") ? lines : lines + "\n");
+        synchronized (this) {
+            reserve(rendered.length);
+            buffer.put(rendered);
+            ++current.points;
+            queuedPoints.incrementAndGet();
+        }
+    }
+
+    @Override
+    public String getClientId() {
+        return "proxy-line:" + address;
+    }
+
+    /**
+     * Hands the buffered points to the writer, and waits until everything sent before has been written or dropped, or
+     * until the writer has had the time to connect and write once.
+     */
+    @Override
+    public void flush() {
+        long target;
+        synchronized (this) {
+            handOff();
+            target = handedOff;
+        }
+        long deadline = System.currentTimeMillis() + CONNECT_TIMEOUT_MILLIS + writeTimeoutMillis;
+        synchronized (completed) {
+            long remaining;
+            while (completed.get() < target && (remaining = deadline - System.currentTimeMillis()) > 0) {
+                try {
+                    completed.wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return The number of points sent and neither written to the proxy nor dropped yet.
+     */
+    int getQueueDepth() {
+        return queuedPoints.get();
+    }
+
+    @Override
+    public int getFailureCount() {
+        return failures.get();
+    }
+
+    /**
+     * Writes what was sent before, for as long as a flush waits, and stops the writer.
+     */
+    @Override
+    public void close() {
+        flusher.shutdownNow();
+        flush();
+        closed = true;
+        writer.interrupt();
+        try {
+            writer.join(TimeUnit.SECONDS.toMillis(1));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package com.wavefront.integrations;
+
+import com.google.common.base.Charsets;
+import com.wavefront.sdk.common.Constants;
+import com.wavefront.sdk.common.Pair;
+import com.wavefront.sdk.common.Utils;
+import com.wavefront.sdk.common.WavefrontSender;
+import com.wavefront.sdk.common.clients.service.ReportAPI;
+import com.wavefront.sdk.common.clients.service.ReportingService;
+import com.wavefront.sdk.entities.histograms.HistogramGranularity;
+import com.wavefront.sdk.entities.tracing.SpanLog;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Sends points to a Wavefront service, or to a proxy over HTTP, without buffering or retrying anything itself.
+ *
+ * Points are held until the next flush, which posts them in one request.  A request that does not succeed is counted
+ * as a failure and thrown, and its points are discarded rather than kept for the next flush, as the SDK's client would:
+ * the caller, which still has them, decides whether to send them again.  Distributions and spans, which are few, are
+ * posted as they are sent.
+ */
+class ReportingSender implements WavefrontSender {
+
+    private final String server;
+
+    private final ReportAPI api;
+
+    private final String defaultSource;
+
+    private final StringBuilder points = new StringBuilder();
+
+    private final AtomicInteger failures = new AtomicInteger();
+
+    /**
+     * @param endpoint      The URL of the service, with the API token as its user info, e.g.
+     *                      {@code https://<token>@<server>}, or of a proxy, without one.
+     * @param defaultSource The source of points sent without one.
+     */
+    ReportingSender(String endpoint, String defaultSource) {
+        URI uri = URI.create(endpoint);
+        this.server = uri.getScheme() + "://" + uri.getHost() + (uri.getPort() == -1 ? "" : ":" + uri.getPort()) +
+                (uri.getRawPath() == null ? "" : uri.getRawPath());
+        this.api = new ReportingService(server, uri.getUserInfo());
+        this.defaultSource = defaultSource;
+    }
+
+    @Override
+    public synchronized void sendMetric(String name, double value, Long timestamp, String source,
+                                        Map<String, String> tags) {
+        points.append(Utils.metricToLineData(name, value, timestamp, source, tags, defaultSource));
+    }
+
+    @Override
+    public synchronized void sendFormattedMetric(String point) {
+        points.append(point);
+        if (!point.endsWith("\n")) {
+            points.append('\n');
+        }
+    }
+
+    @Override
+    public void sendDistribution(String name, List<Pair<Double, Integer>> centroids,
+                                 Set<HistogramGranularity> histogramGranularities, Long timestamp, String source,
+                                 Map<String, String> tags) throws IOException {
+        post(Constants.WAVEFRONT_HISTOGRAM_FORMAT, Utils.histogramToLineData(name, centroids, histogramGranularities,
+                timestamp, source, tags, defaultSource));
+    }
+
+    @Override
+    public void sendSpan(String name, long startMillis, long durationMillis, String source, UUID traceId, UUID spanId,
+                         List<UUID> parents, List<UUID> followsFrom, List<Pair<String, String>> tags,
+                         List<SpanLog> spanLogs) throws IOException {
+        post(Constants.WAVEFRONT_TRACING_SPAN_FORMAT, Utils.tracingSpanToLineData(name, startMillis, durationMillis,
+                source, traceId, spanId, parents, followsFrom, tags, spanLogs, defaultSource));
+    }
+
+    @Override
+    public String getClientId() {
+        return server;
+    }
+
+    /**
+     * Posts the points sent since the last flush.
+     *
+     * @throws IOException If the request did not succeed, in which case the points are discarded.
+     */
+    @Override
+    public synchronized void flush() throws IOException {
+        if (points.length() == 0) {
+            return;
+        }
+        String data = points.toString();
+        points.setLength(0);
+        post(Constants.WAVEFRONT_METRIC_FORMAT, data);
+    }
+
+    private void post(String format, String data) throws IOException {
+        int status = api.send(format, new ByteArrayInputStream(data.getBytes(Charsets.UTF_8)));
+        if (status < 200 || status >= 300) {
+            failures.incrementAndGet();
+            throw new IOException(server + " responded to a report of " + format + " with " + status);
+        }
+    }
+
+    @Override
+    public int getFailureCount() {
+        return failures.get();
+    }
+
+    @Override
+    public synchronized void close() {
+        // Whatever was not flushed is still the caller's to send.
+        points.setLength(0);
+    }
+}
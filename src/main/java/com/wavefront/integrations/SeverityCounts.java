@@ -0,0 +1,57 @@
+package com.wavefront.integrations;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The number of events of a trace file at every severity FDB logs at.
+ *
+ * The thread handling the file adds to the counts while the reporter reads them, so they are kept in {@link
+ * LongAdder}s rather than behind a lock.  Severities other than {@link #LEVELS} are not counted.
+ */
+final class SeverityCounts {
+
+    static final int[] LEVELS = {10, 20, 30, 40, 50};
+
+    private final LongAdder[] counts = new LongAdder[LEVELS.length];
+
+    SeverityCounts() {
+        for (int i = 0; i < counts.length; ++i) {
+            counts[i] = new LongAdder();
+        }
+    }
+
+    private static int index(int severity) {
+        return severity % 10 == 0 && severity >= LEVELS[0] && severity <= LEVELS[LEVELS.length - 1] ?
+                severity / 10 - 1 : -1;
+    }
+
+    void count(int severity) {
+        int index = index(severity);
+        if (index != -1) {
+            counts[index].increment();
+        }
+    }
+
+    /**
+     * Counts an event by its Severity attribute, which is ignored unless it is one of the {@link #LEVELS}.
+     */
+    void count(String severity) {
+        if (severity != null && severity.length() == 2 && severity.charAt(1) == '0') {
+            count((severity.charAt(0) - '0') * 10);
+        }
+    }
+
+    long get(int severity) {
+        int index = index(severity);
+        return index == -1 ? 0 : counts[index].sum();
+    }
+
+    /**
+     * Adds these counts to others, such as those of a file no longer tailed to a running total.
+     */
+    void addTo(SeverityCounts other) {
+        for (int i = 0; i < counts.length; ++i) {
+            other.counts[i].add(counts[i].sum());
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package com.wavefront.integrations;
+
+/**
+ * Receives the lines of a file tailed by a {@link TailingEngine}.
+ *
+ * All callbacks for a given file are made from one task at a time, in file order.
+ */
+interface TailListener {
+
+    /**
+     * Called once, before any lines are read.
+     *
+     * @param tailedFile The file being tailed, which the listener may stop.
+     */
+    void init(TailedFile tailedFile);
+
+    /**
+     * Called when the file cannot be found.
+     */
+    void fileNotFound();
+
+    /**
+     * Called when the file has been truncated or replaced and is being read again from the start.
+     */
+    void fileRotated();
+
+    /**
+     * @param line A complete line, without its line terminator.  This is a view over the read buffer that is only valid
+     *             for the duration of the call; call {@code toString()} on it to keep it.
+     */
+    void handle(CharSequence line);
+
+    /**
+     * Called at the end of every poll that read the file, once the lines it read have been handed over.
+     */
+    default void polled() {
+    }
+
+    /**
+     * @param ex An exception raised while reading the file or handling one of its lines.
+     */
+    void handle(Exception ex);
+}
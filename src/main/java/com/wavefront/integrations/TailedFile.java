@@ -0,0 +1,363 @@
+package com.wavefront.integrations;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.logging.Logger;
+
+/**
+ * A single file tailed by a {@link TailingEngine}.
+ *
+ * Each poll reads whatever has been appended since the last one through a {@link FileChannel}.  Lines are framed on
+ * '\n' in place and handed to the listener as {@link TraceLine} views over the read buffer, so they are never copied
+ * or decoded on the way.  A large backlog, such as when catching up on a file, is memory-mapped rather than read; the
+ * mapping is kept across polls, each of which frames up to the same number of bytes as a read.  A trailing partial line
+ * is left in the file and picked up again once its terminator arrives.
+ *
+ * The delay before the next poll adapts to the file's activity: it drops to the minimum while the file is being
+ * written and doubles, up to the maximum, while it is quiet.  A file with a backlog is polled again immediately, but
+ * only after other files have had a turn.
+ */
+class TailedFile {
+
+    private static final Logger logger = Logger.getLogger(TailedFile.class.getCanonicalName());
+
+    static final long MIN_DELAY_MILLIS = 50;
+
+    static final long MAX_DELAY_MILLIS = 2000;
+
+    /**
+     * The start position of a file tailed from its end.
+     */
+    static final long FROM_END = -1;
+
+    private static final long HANDLED_WHEN_READ = Long.MIN_VALUE;
+
+    private static final int BUFFER_SIZE = 1024 * 1024;
+
+    private static final int MAX_LINE_LENGTH = 16 * 1024 * 1024;
+
+    private static final int MAX_BYTES_PER_POLL = 4 * 1024 * 1024;
+
+    private static final long MAP_THRESHOLD = 8 * 1024 * 1024;
+
+    private static final int MAP_SIZE = 64 * 1024 * 1024;
+
+    private final TailingEngine engine;
+
+    private final File file;
+
+    private final TailListener listener;
+
+    private final long startPosition;
+
+    private final boolean stopAtEnd;
+
+    private final TraceLine line = new TraceLine();
+
+    private FileChannel channel;
+
+    private ByteBuffer buffer;
+
+    /**
+     * The mapping a backlog is being read from, if any, and the offset in the file it starts at.
+     */
+    private MappedByteBuffer mapped;
+
+    private long mappedStart;
+
+    private volatile long position;
+
+    /**
+     * The offset just past the last line the listener has finished handling, when it hands lines over to other
+     * threads, or {@link #HANDLED_WHEN_READ}.
+     */
+    private volatile long handledPosition = HANDLED_WHEN_READ;
+
+    private boolean opened;
+
+    private long delayMillis = MIN_DELAY_MILLIS;
+
+    private volatile boolean stopped;
+
+    /**
+     * The number of lines handed to the listener in the current poll.
+     */
+    private int polledLines;
+
+    /**
+     * @param startPosition The offset to start reading from, or {@link #FROM_END} to only read what is appended from
+     *                      now on.
+     * @param stopAtEnd     Whether to stop once everything in the file has been read, rather than wait for more.
+     */
+    TailedFile(TailingEngine engine, File file, TailListener listener, long startPosition, boolean stopAtEnd) {
+        this.engine = engine;
+        this.file = file;
+        this.listener = listener;
+        this.startPosition = startPosition;
+        this.stopAtEnd = stopAtEnd;
+        this.position = startPosition;
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    TailListener getListener() {
+        return listener;
+    }
+
+    /**
+     * @return The offset reading started from, or {@link #FROM_END}.
+     */
+    long getStartPosition() {
+        return startPosition;
+    }
+
+    /**
+     * @return The offset just past the last complete line handed to the listener, or {@link #FROM_END} if the file has
+     * not been opened yet.
+     */
+    long getPosition() {
+        return position;
+    }
+
+    /**
+     * @return The offset just past the last line the listener has finished handling, which is {@link #getPosition()}
+     * unless the listener handles lines on other threads, or {@link #FROM_END} if there is none yet.  This is the
+     * position that is safe to resume from.
+     */
+    long getHandledPosition() {
+        long handled = handledPosition;
+        return handled == HANDLED_WHEN_READ ? position : handled;
+    }
+
+    /**
+     * Records how far the lines handed to a listener that handles them on other threads have been handled.  From the
+     * first call on, {@link #getHandledPosition()} only reports what is recorded here.
+     */
+    void setHandledPosition(long handledPosition) {
+        this.handledPosition = handledPosition;
+    }
+
+    /**
+     * @return How far the file extends beyond the last line handed to the listener, or 0 once it is no longer tailed.
+     * Safe to call from any thread.
+     */
+    long getBytesBehind() {
+        long current = position;
+        if (current < 0 || stopped) {
+            return 0;
+        }
+        return Math.max(file.length() - current, 0);
+    }
+
+    boolean isStopped() {
+        return stopped;
+    }
+
+    /**
+     * Stops tailing.  Lines already being handled are finished, but no further lines are read.
+     */
+    void stop() {
+        stopped = true;
+    }
+
+    /**
+     * Reads and dispatches new lines, then schedules the next poll unless the file has been stopped.
+     */
+    void poll() {
+        if (stopped) {
+            close();
+            return;
+        }
+        long nextDelay;
+        long before = position;
+        polledLines = 0;
+        try {
+            nextDelay = readLines();
+        } catch (IOException e) {
+            listener.handle(e);
+            closeChannel();
+            nextDelay = MAX_DELAY_MILLIS;
+        } catch (RuntimeException e) {
+            listener.handle(e);
+            nextDelay = delayMillis;
+        }
+        listener.polled();
+        // A truncated file is read again from the start, which is not counted.
+        engine.read(polledLines, before < 0 ? 0 : position - before);
+        if (stopped) {
+            close();
+        } else {
+            engine.schedule(this, nextDelay);
+        }
+    }
+
+    /**
+     * @return The delay before the next poll.
+     */
+    private long readLines() throws IOException {
+        if (channel == null) {
+            if (!file.exists()) {
+                listener.fileNotFound();
+                return MAX_DELAY_MILLIS;
+            }
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            if (startPosition == FROM_END && !opened) {
+                position = channel.size();
+            }
+            opened = true;
+        }
+        long length = channel.size();
+        if (length < position) {
+            logger.info("File truncated, reading from the start: " + file);
+            listener.fileRotated();
+            position = 0;
+            mapped = null;
+        }
+
+        long backlog = length - position;
+        if (backlog >= MAP_THRESHOLD || mapped != null) {
+            return readMapped(length);
+        }
+        if (backlog == 0) {
+            if (stopAtEnd) {
+                stop();
+            }
+            delayMillis = Math.min(delayMillis * 2, MAX_DELAY_MILLIS);
+            return delayMillis;
+        }
+        if (buffer == null) {
+            buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        }
+
+        int budget = MAX_BYTES_PER_POLL;
+        ((Buffer) buffer).clear();
+        while (!stopped && budget > 0) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read <= 0) {
+                break;
+            }
+            budget -= read;
+            int filled = buffer.position();
+            int consumed = dispatchLines(buffer, 0, filled, Integer.MAX_VALUE);
+            if (consumed == 0 && filled == buffer.capacity()) {
+                if (buffer.capacity() >= MAX_LINE_LENGTH) {
+                    // Give up on framing an unreasonably long line and hand over what we have.
+                    dispatch(buffer, 0, filled);
+                    consumed = filled;
+                } else {
+                    ByteBuffer larger = ByteBuffer.allocateDirect(buffer.capacity() * 2);
+                    ((Buffer) buffer).flip();
+                    larger.put(buffer);
+                    buffer = larger;
+                    continue;
+                }
+            }
+            position += consumed;
+            ((Buffer) buffer).limit(filled);
+            ((Buffer) buffer).position(consumed);
+            buffer.compact();
+        }
+
+        delayMillis = MIN_DELAY_MILLIS;
+        // If the budget ran out there is a backlog; let other files have a turn and come straight back.
+        return budget <= 0 ? 0 : delayMillis;
+    }
+
+    /**
+     * Catches up on a large backlog by framing lines directly in a read-only mapping of the file, up to the budget of a
+     * poll at a time, carrying on from where the last poll stopped.
+     *
+     * @param length The length of the file.
+     */
+    private long readMapped(long length) throws IOException {
+        if (mapped == null || position < mappedStart || position >= mappedStart + mapped.capacity()) {
+            map(length);
+        }
+        int from = (int) (position - mappedStart);
+        int end = dispatchLines(mapped, from, mapped.capacity(), MAX_BYTES_PER_POLL);
+        if (end == from && !stopped) {
+            // The rest of the mapping holds no complete line.
+            long backlog = length - position;
+            if (backlog < MAP_THRESHOLD) {
+                // What is left is small enough to read.
+                mapped = null;
+                return 0;
+            }
+            if (from > 0 || mapped.capacity() < Math.min(backlog, MAP_SIZE)) {
+                // Map again from here, taking in what has been appended since.
+                map(length);
+                from = 0;
+                end = dispatchLines(mapped, 0, mapped.capacity(), MAX_BYTES_PER_POLL);
+            }
+            if (end == 0) {
+                if (mapped.capacity() < MAP_SIZE) {
+                    // The backlog is one partial line; wait for the rest of it.
+                    delayMillis = MIN_DELAY_MILLIS;
+                    return delayMillis;
+                }
+                // Give up on framing an unreasonably long line and hand over what we have.
+                dispatch(mapped, 0, MAP_SIZE);
+                end = MAP_SIZE;
+            }
+        }
+        position = mappedStart + end;
+        if (end == mapped.capacity()) {
+            mapped = null;
+        }
+        delayMillis = MIN_DELAY_MILLIS;
+        return length > position ? 0 : delayMillis;
+    }
+
+    private void map(long length) throws IOException {
+        mappedStart = position;
+        mapped = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(length - position, MAP_SIZE));
+    }
+
+    /**
+     * Hands the complete lines in {@code bytes[start, limit)} to the listener, until they add up to the budget.
+     *
+     * @return The offset just past the last line handed over.
+     */
+    private int dispatchLines(ByteBuffer bytes, int start, int limit, int budget) {
+        int lineStart = start;
+        for (int i = start; i < limit && lineStart - start < budget && !stopped; ++i) {
+            if (bytes.get(i) == '\n') {
+                int lineEnd = i > lineStart && bytes.get(i - 1) == '\r' ? i - 1 : i;
+                dispatch(bytes, lineStart, lineEnd);
+                lineStart = i + 1;
+            }
+        }
+        return lineStart;
+    }
+
+    private void dispatch(ByteBuffer bytes, int start, int end) {
+        ++polledLines;
+        try {
+            listener.handle(line.set(bytes, start, end - start));
+        } catch (RuntimeException e) {
+            // A bad line should not stop the rest of the file from being read.
+            listener.handle(e);
+        }
+    }
+
+    private void close() {
+        closeChannel();
+        buffer = null;
+        engine.remove(this);
+    }
+
+    private void closeChannel() {
+        IOUtils.closeQuietly(channel);
+        channel = null;
+        mapped = null;
+    }
+}
@@ -0,0 +1,155 @@
+package com.wavefront.integrations;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.io.File;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tails any number of files from a small, fixed pool of threads.
+ *
+ * Every file is polled by a task that reschedules itself with a delay adapted to how busy the file is (see
+ * {@link TailedFile}), so mostly idle files cost almost nothing.  A file never has more than one task outstanding,
+ * which keeps its lines in order without any locking.
+ *
+ * The lines and bytes read are reported as the meters {@code tailer.lines} and {@code tailer.bytes}, marked once per
+ * poll, and the number of files being tailed as {@code tailer.active_files}.
+ */
+class TailingEngine {
+
+    private final ScheduledExecutorService executor;
+
+    private final Set<TailedFile> active = ConcurrentHashMap.newKeySet();
+
+    private final Meter lines;
+
+    private final Meter bytes;
+
+    /**
+     * @param threads The number of polling threads, or 0 to size the pool from the number of processors.
+     */
+    TailingEngine(int threads) {
+        this(threads, new MetricRegistry(), "");
+    }
+
+    /**
+     * @param threads  The number of polling threads, or 0 to size the pool from the number of processors.
+     * @param registry The registry the engine's metrics are registered in.
+     * @param prefix   The prefix of their names.
+     */
+    TailingEngine(int threads, MetricRegistry registry, String prefix) {
+        this.lines = registry.meter(prefix + "tailer.lines");
+        this.bytes = registry.meter(prefix + "tailer.bytes");
+        registry.remove(prefix + "tailer.active_files");
+        registry.register(prefix + "tailer.active_files", (Gauge<Integer>) this::getActiveCount);
+        if (threads <= 0) {
+            threads = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+        }
+        this.executor = Executors.newScheduledThreadPool(threads,
+                new ThreadFactoryBuilder().setNameFormat("fdb-tailer-%d").setDaemon(true).build());
+    }
+
+    /**
+     * Starts tailing a file.  The listener is initialized before this returns, and may stop the file straight away.
+     *
+     * @param fromEnd Whether to skip the file's current content and only read lines appended from now on.
+     */
+    TailedFile tail(File file, TailListener listener, boolean fromEnd) {
+        return tail(file, listener, fromEnd ? TailedFile.FROM_END : 0);
+    }
+
+    /**
+     * Starts tailing a file from the given offset, e.g. one restored from a checkpoint.
+     *
+     * @param startPosition The offset to start reading from, or {@link TailedFile#FROM_END}.
+     */
+    TailedFile tail(File file, TailListener listener, long startPosition) {
+        return start(new TailedFile(this, file, listener, startPosition, false));
+    }
+
+    /**
+     * Reads a file from the start as fast as possible, stopping once everything it contained has been read.
+     */
+    TailedFile replay(File file, TailListener listener) {
+        return start(new TailedFile(this, file, listener, 0, true));
+    }
+
+    private TailedFile start(TailedFile tailedFile) {
+        tailedFile.getListener().init(tailedFile);
+        if (!tailedFile.isStopped()) {
+            active.add(tailedFile);
+            schedule(tailedFile, 0);
+        }
+        return tailedFile;
+    }
+
+    /**
+     * @return The number of files currently being tailed.
+     */
+    int getActiveCount() {
+        return active.size();
+    }
+
+    /**
+     * Called at the end of every poll with what it read.
+     */
+    void read(int lineCount, long byteCount) {
+        if (lineCount > 0) {
+            lines.mark(lineCount);
+        }
+        if (byteCount > 0) {
+            bytes.mark(byteCount);
+        }
+    }
+
+    void schedule(TailedFile tailedFile, long delayMillis) {
+        try {
+            executor.schedule(tailedFile::poll, delayMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // The engine is shutting down.
+            remove(tailedFile);
+        }
+    }
+
+    void remove(TailedFile tailedFile) {
+        active.remove(tailedFile);
+        synchronized (active) {
+            active.notifyAll();
+        }
+    }
+
+    /**
+     * Waits until no files are being tailed, e.g. until every replayed file has been read.
+     */
+    void awaitIdle() throws InterruptedException {
+        synchronized (active) {
+            while (!active.isEmpty()) {
+                active.wait(1000);
+            }
+        }
+    }
+
+    void shutdown() {
+        for (TailedFile tailedFile : active) {
+            tailedFile.stop();
+        }
+        executor.shutdown();
+    }
+
+    /**
+     * Waits, after {@link #shutdown()}, until the polls under way are over and nothing more will be read.
+     *
+     * @return Whether they were over before the timeout.
+     */
+    boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return executor.awaitTermination(timeout, unit);
+    }
+}
@@ -0,0 +1,69 @@
+package com.wavefront.integrations;
+
+/**
+ * A read-only view over the attributes of a single FoundationDB trace event.
+ */
+interface TraceEvent {
+
+    /**
+     * @return The number of attributes in the event.
+     */
+    int getAttributeCount();
+
+    /**
+     * @param index The attribute index, from 0 to {@link #getAttributeCount()} - 1.
+     * @return The attribute name at the given index.
+     */
+    String getAttributeName(int index);
+
+    /**
+     * @param index The attribute index, from 0 to {@link #getAttributeCount()} - 1.
+     * @return The unescaped attribute value at the given index.
+     */
+    String getAttributeValue(int index);
+
+    /**
+     * @param name The attribute name.
+     * @return The index of the named attribute, or -1 if the event does not have it.
+     */
+    default int indexOf(String name) {
+        for (int i = 0; i < getAttributeCount(); ++i) {
+            if (name.equals(getAttributeName(i))) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @param name The attribute name.
+     * @return The unescaped value of the named attribute, or null if the event does not have it.
+     */
+    default String getAttribute(String name) {
+        int index = indexOf(name);
+        return index == -1 ? null : getAttributeValue(index);
+    }
+
+    /**
+     * Looks up an attribute whose values come from a small, stable set, such as Type or Machine.  Implementations may
+     * return a canonical instance so that repeated lookups do not allocate.
+     *
+     * @param name The attribute name.
+     * @return The unescaped value of the named attribute, or null if the event does not have it.
+     */
+    default String getInternedAttribute(String name) {
+        return getAttribute(name);
+    }
+
+    /**
+     * Decodes a numeric attribute value, including FDB's space-separated counter format.
+     *
+     * @param index   The attribute index, from 0 to {@link #getAttributeCount()} - 1.
+     * @param decoder The decoder, which retains the value's components.
+     * @return The last component of the value.
+     * @throws NumberFormatException If the value is not numeric.
+     */
+    default double decodeAttributeValue(int index, TraceValueDecoder decoder) {
+        return decoder.decode(getAttributeValue(index));
+    }
+}
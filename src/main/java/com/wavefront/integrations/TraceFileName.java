@@ -0,0 +1,90 @@
+package com.wavefront.integrations;
+
+import java.io.File;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The parts of an FDB trace file name: {@code trace.<ip>.<port>.<timestamp>.<id>[.<n>].(xml|json)}.
+ *
+ * Each fdbserver process writes a chain of such files, rolling to the next one when the current one is full.  All
+ * files in a chain share the address, and are ordered by timestamp and then by sequence number.
+ */
+final class TraceFileName implements Comparable<TraceFileName> {
+
+    private static final Pattern PATTERN =
+            Pattern.compile("trace\\.(.+)\\.(\\d{1,5})\\.(\\d{9,})\\.([^.]+)(?:\\.(\\d+))?\\.(xml|json)");
+
+    private final File file;
+
+    private final String processKey;
+
+    private final long timestamp;
+
+    private final int sequence;
+
+    private TraceFileName(File file, String processKey, long timestamp, int sequence) {
+        this.file = file;
+        this.processKey = processKey;
+        this.timestamp = timestamp;
+        this.sequence = sequence;
+    }
+
+    /**
+     * @return The parsed name, or null if the file is not named like an FDB trace file.
+     */
+    static TraceFileName parse(File file) {
+        Matcher matcher = PATTERN.matcher(file.getName());
+        if (!matcher.matches()) {
+            return null;
+        }
+        String process = "trace." + matcher.group(1) + "." + matcher.group(2);
+        return new TraceFileName(file, processKey(file, process), Long.parseLong(matcher.group(3)),
+                matcher.group(5) == null ? 0 : Integer.parseInt(matcher.group(5)));
+    }
+
+    /**
+     * @return A key identifying the process that writes the file: its directory and address, or, for a file not named
+     * like an FDB trace file, its path.
+     */
+    static String processKey(File file) {
+        TraceFileName name = parse(file);
+        return name == null ? file.getAbsolutePath() : name.processKey;
+    }
+
+    private static String processKey(File file, String process) {
+        return new File(file.getAbsoluteFile().getParentFile(), process).getPath();
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    String getProcessKey() {
+        return processKey;
+    }
+
+    long getTimestamp() {
+        return timestamp;
+    }
+
+    int getSequence() {
+        return sequence;
+    }
+
+    /**
+     * @return Whether the other file comes after this one in the same process's chain.
+     */
+    boolean isFollowedBy(TraceFileName other) {
+        return processKey.equals(other.processKey) && compareTo(other) < 0;
+    }
+
+    @Override
+    public int compareTo(TraceFileName other) {
+        int result = Long.compare(timestamp, other.timestamp);
+        if (result == 0) {
+            result = Integer.compare(sequence, other.sequence);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,73 @@
+package com.wavefront.integrations;
+
+import com.google.common.base.Charsets;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A {@link CharSequence} view over a line of UTF-8 bytes held in a {@link ByteBuffer}, so lines can be framed and
+ * scanned in the read buffer without being decoded or copied.
+ *
+ * {@link #charAt(int)} indexes bytes, not characters: ASCII reads back unchanged, and every byte of a multi-byte
+ * sequence reads as a char above 0x7F, which can never be mistaken for the ASCII syntax of a trace line.
+ * {@link #toString()} decodes the bytes properly.
+ *
+ * A view is only valid until the buffer it points into is reused.
+ */
+final class TraceLine implements CharSequence {
+
+    private ByteBuffer buffer;
+
+    private int offset;
+
+    private int length;
+
+    TraceLine set(ByteBuffer buffer, int offset, int length) {
+        this.buffer = buffer;
+        this.offset = offset;
+        this.length = length;
+        return this;
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public char charAt(int index) {
+        if (index < 0 || index >= length) {
+            throw new IndexOutOfBoundsException("Index " + index + " out of range for " + length);
+        }
+        return (char) (buffer.get(offset + index) & 0xff);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        if (start < 0 || end > length || start > end) {
+            throw new IndexOutOfBoundsException("Range [" + start + ", " + end + ") out of range for " + length);
+        }
+        return new TraceLine().set(buffer, offset + start, end - start);
+    }
+
+    /**
+     * Copies the bytes of the line into the array at the given offset.
+     *
+     * @return The number of bytes copied.
+     */
+    int copyTo(byte[] destination, int destinationOffset) {
+        for (int i = 0; i < length; ++i) {
+            destination[destinationOffset + i] = buffer.get(offset + i);
+        }
+        return length;
+    }
+
+    @Override
+    public String toString() {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; ++i) {
+            bytes[i] = buffer.get(offset + i);
+        }
+        return new String(bytes, Charsets.UTF_8);
+    }
+}
@@ -0,0 +1,367 @@
+package com.wavefront.integrations;
+
+import java.util.Arrays;
+
+/**
+ * A reusable scanner for the single-element {@code <Event .../>} lines FoundationDB writes to its XML trace files.
+ *
+ * Rather than building a DOM, the scanner records the offsets of each attribute name and value within the line.
+ * Attribute names, and on request low-cardinality values, are interned so steady-state lookups do not allocate.
+ * Other values are only materialized (and unescaped) when they are asked for.  Lines that use XML features the
+ * scanner does not understand are rejected, so callers can fall back to {@link DomTraceEvent} for those.
+ *
+ * Instances are not thread-safe; each listener owns its own scanner.
+ */
+class TraceLineScanner implements TraceEvent {
+
+    private static final String EVENT_START = "<Event";
+
+    private static final int MAX_INTERNED_STRINGS = 4096;
+
+    private CharSequence line;
+
+    private int count;
+
+    // For attribute i, bounds[4 * i] .. bounds[4 * i + 3] hold the name start, name end, value start and value end.
+    private int[] bounds = new int[4 * 64];
+
+    private boolean[] escaped = new boolean[64];
+
+    private String[] names = new String[64];
+
+    private String[] interned = new String[256];
+
+    private int internedCount;
+
+    private final StringBuilder unescaped = new StringBuilder();
+
+    /**
+     * Scans a trace line, replacing whatever the scanner held before.
+     *
+     * @param line The line to scan.  It must not be modified until the scanner is done with it.
+     * @return true if the line is a well-formed, self-closing {@code Event} element; false if it should be handed to a
+     *         validating parser instead.
+     */
+    boolean scan(CharSequence line) {
+        this.line = line;
+        this.count = 0;
+        int length = line.length();
+        while (length > 0 && isWhitespace(line.charAt(length - 1))) {
+            --length;
+        }
+        if (!startsWith(line, EVENT_START)) {
+            return false;
+        }
+        int pos = EVENT_START.length();
+        if (pos >= length || !(isWhitespace(line.charAt(pos)) || line.charAt(pos) == '/')) {
+            return false;
+        }
+        while (true) {
+            boolean separated = false;
+            while (pos < length && isWhitespace(line.charAt(pos))) {
+                ++pos;
+                separated = true;
+            }
+            if (pos >= length) {
+                return false;
+            }
+            char ch = line.charAt(pos);
+            if (ch == '/') {
+                return pos + 2 == length && line.charAt(pos + 1) == '>';
+            }
+            // XML requires whitespace between attributes.
+            if (!separated) {
+                return false;
+            }
+
+            int nameStart = pos;
+            while (pos < length && isNameChar(line.charAt(pos))) {
+                ++pos;
+            }
+            int nameEnd = pos;
+            if (nameStart == nameEnd) {
+                return false;
+            }
+            while (pos < length && isWhitespace(line.charAt(pos))) {
+                ++pos;
+            }
+            if (pos >= length || line.charAt(pos) != '=') {
+                return false;
+            }
+            ++pos;
+            while (pos < length && isWhitespace(line.charAt(pos))) {
+                ++pos;
+            }
+            if (pos >= length) {
+                return false;
+            }
+            char quote = line.charAt(pos);
+            if (quote != '"' && quote != '\'') {
+                return false;
+            }
+            int valueStart = ++pos;
+            boolean needsUnescape = false;
+            while (pos < length) {
+                ch = line.charAt(pos);
+                if (ch == quote) {
+                    break;
+                } else if (ch == '<') {
+                    return false;
+                } else if (ch == '&') {
+                    pos = skipReference(line, pos, length);
+                    if (pos == -1) {
+                        return false;
+                    }
+                    needsUnescape = true;
+                } else {
+                    // Literal tabs and line breaks are normalized to spaces in attribute values.
+                    needsUnescape |= ch == '\t' || ch == '\n' || ch == '\r';
+                    ++pos;
+                }
+            }
+            if (pos >= length) {
+                return false;
+            }
+            addAttribute(nameStart, nameEnd, valueStart, pos, needsUnescape);
+            ++pos;
+        }
+    }
+
+    @Override
+    public int getAttributeCount() {
+        return count;
+    }
+
+    @Override
+    public String getAttributeName(int index) {
+        checkIndex(index);
+        String name = names[index];
+        if (name == null) {
+            name = intern(bounds[4 * index], bounds[4 * index + 1]);
+            names[index] = name;
+        }
+        return name;
+    }
+
+    @Override
+    public String getAttributeValue(int index) {
+        checkIndex(index);
+        int start = bounds[4 * index + 2];
+        int end = bounds[4 * index + 3];
+        if (!escaped[index]) {
+            return line.subSequence(start, end).toString();
+        }
+        // Decode first: the line may be a byte view, and multi-byte characters must survive unescaping.
+        String raw = line.subSequence(start, end).toString();
+        unescaped.setLength(0);
+        for (int pos = 0; pos < raw.length(); ) {
+            char ch = raw.charAt(pos);
+            if (ch == '&') {
+                pos = appendReference(raw, pos, unescaped);
+            } else if (ch == '\r' && pos + 1 < raw.length() && raw.charAt(pos + 1) == '\n') {
+                unescaped.append(' ');
+                pos += 2;
+            } else {
+                unescaped.append(ch == '\t' || ch == '\n' || ch == '\r' ? ' ' : ch);
+                ++pos;
+            }
+        }
+        return unescaped.toString();
+    }
+
+    @Override
+    public double decodeAttributeValue(int index, TraceValueDecoder decoder) {
+        checkIndex(index);
+        if (escaped[index]) {
+            return decoder.decode(getAttributeValue(index));
+        }
+        return decoder.decode(line, bounds[4 * index + 2], bounds[4 * index + 3]);
+    }
+
+    @Override
+    public int indexOf(String name) {
+        int nameLength = name.length();
+        for (int i = 0; i < count; ++i) {
+            int start = bounds[4 * i];
+            if (bounds[4 * i + 1] - start == nameLength && regionMatches(line, start, name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public String getInternedAttribute(String name) {
+        int index = indexOf(name);
+        if (index == -1) {
+            return null;
+        }
+        return escaped[index] ? getAttributeValue(index) : intern(bounds[4 * index + 2], bounds[4 * index + 3]);
+    }
+
+    private void addAttribute(int nameStart, int nameEnd, int valueStart, int valueEnd, boolean needsUnescape) {
+        if (count == escaped.length) {
+            int capacity = count * 2;
+            bounds = Arrays.copyOf(bounds, 4 * capacity);
+            escaped = Arrays.copyOf(escaped, capacity);
+            names = Arrays.copyOf(names, capacity);
+        }
+        int base = 4 * count;
+        bounds[base] = nameStart;
+        bounds[base + 1] = nameEnd;
+        bounds[base + 2] = valueStart;
+        bounds[base + 3] = valueEnd;
+        escaped[count] = needsUnescape;
+        names[count] = null;
+        ++count;
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= count) {
+            throw new IndexOutOfBoundsException("Attribute index " + index + " out of range for " + count);
+        }
+    }
+
+    /**
+     * Returns the canonical String for the given range of the current line.  The set of attribute names (and of
+     * interned values) in FDB trace files is small and stable, so after warm-up every lookup is served from the table
+     * without allocating.
+     */
+    private String intern(int start, int end) {
+        int hash = 0;
+        for (int i = start; i < end; ++i) {
+            hash = 31 * hash + line.charAt(i);
+        }
+        int mask = interned.length - 1;
+        int slot = (hash ^ (hash >>> 16)) & mask;
+        String candidate;
+        while ((candidate = interned[slot]) != null) {
+            if (candidate.hashCode() == hash && candidate.length() == end - start &&
+                    regionMatches(line, start, candidate)) {
+                return candidate;
+            }
+            slot = (slot + 1) & mask;
+        }
+        String value = line.subSequence(start, end).toString();
+        // A range holding multi-byte characters decodes to a shorter string, which a later lookup could never match.
+        if (value.length() == end - start && internedCount < MAX_INTERNED_STRINGS) {
+            interned[slot] = value;
+            if (++internedCount * 2 > interned.length) {
+                rehash();
+            }
+        }
+        return value;
+    }
+
+    private void rehash() {
+        String[] old = interned;
+        interned = new String[old.length * 2];
+        int mask = interned.length - 1;
+        for (String value : old) {
+            if (value != null) {
+                int hash = value.hashCode();
+                int slot = (hash ^ (hash >>> 16)) & mask;
+                while (interned[slot] != null) {
+                    slot = (slot + 1) & mask;
+                }
+                interned[slot] = value;
+            }
+        }
+    }
+
+    static boolean startsWith(CharSequence line, String prefix) {
+        return line.length() >= prefix.length() && regionMatches(line, 0, prefix);
+    }
+
+    private static boolean regionMatches(CharSequence line, int offset, String other) {
+        for (int i = 0; i < other.length(); ++i) {
+            if (line.charAt(offset + i) != other.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isWhitespace(char ch) {
+        return ch == ' ' || ch == '\t' || ch == '\n' || ch == '\r';
+    }
+
+    private static boolean isNameChar(char ch) {
+        return !isWhitespace(ch) && ch != '=' && ch != '/' && ch != '>' && ch != '<' && ch != '"' && ch != '\'' &&
+                ch != '&';
+    }
+
+    /**
+     * Validates the entity or character reference starting at {@code pos}.
+     *
+     * @return The position just past the terminating ';', or -1 if the reference is not one the scanner can decode.
+     */
+    private static int skipReference(CharSequence line, int pos, int length) {
+        int end = pos + 1;
+        while (end < length && end - pos <= 10 && line.charAt(end) != ';') {
+            ++end;
+        }
+        if (end >= length || line.charAt(end) != ';') {
+            return -1;
+        }
+        return decodeReference(line, pos + 1, end) == -1 ? -1 : end + 1;
+    }
+
+    private static int appendReference(CharSequence line, int pos, StringBuilder sb) {
+        int end = pos + 1;
+        while (line.charAt(end) != ';') {
+            ++end;
+        }
+        sb.appendCodePoint(decodeReference(line, pos + 1, end));
+        return end + 1;
+    }
+
+    /**
+     * @return The code point for the reference between {@code start} and {@code end} (exclusive of '&amp;' and ';'),
+     *         or -1 if it is not a predefined entity or a valid character reference.
+     */
+    private static int decodeReference(CharSequence line, int start, int end) {
+        int length = end - start;
+        if (length >= 2 && line.charAt(start) == '#') {
+            int radix = 10;
+            int pos = start + 1;
+            if (line.charAt(pos) == 'x') {
+                radix = 16;
+                ++pos;
+            }
+            if (pos == end) {
+                return -1;
+            }
+            int codePoint = 0;
+            for (; pos < end; ++pos) {
+                int digit = Character.digit(line.charAt(pos), radix);
+                if (digit < 0) {
+                    return -1;
+                }
+                codePoint = codePoint * radix + digit;
+                if (codePoint > Character.MAX_CODE_POINT) {
+                    return -1;
+                }
+            }
+            boolean legal = codePoint == 0x9 || codePoint == 0xA || codePoint == 0xD ||
+                    (codePoint >= 0x20 && codePoint <= 0xD7FF) ||
+                    (codePoint >= 0xE000 && codePoint <= 0xFFFD) ||
+                    codePoint >= 0x10000;
+            return legal ? codePoint : -1;
+        }
+        if (length == 2 && line.charAt(start + 1) == 't') {
+            if (line.charAt(start) == 'l') {
+                return '<';
+            } else if (line.charAt(start) == 'g') {
+                return '>';
+            }
+        } else if (length == 3 && regionMatches(line, start, "amp")) {
+            return '&';
+        } else if (length == 4 && regionMatches(line, start, "quot")) {
+            return '"';
+        } else if (length == 4 && regionMatches(line, start, "apos")) {
+            return '\'';
+        }
+        return -1;
+    }
+}
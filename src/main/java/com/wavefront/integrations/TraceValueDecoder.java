@@ -0,0 +1,175 @@
+package com.wavefront.integrations;
+
+/**
+ * Decodes numeric trace attribute values straight from a character range.
+ *
+ * Besides plain numbers, FDB writes counters as space-separated "rate roughness total" triples, e.g.
+ * {@code QueryQueue="1533.8 8.17835 446121285"}.  The decoder splits such values up front instead of relying on a
+ * failed parse, and keeps every component so callers can report more than the total.
+ *
+ * Numbers whose significand fits in 53 bits and whose decimal exponent is small are converted exactly with a single
+ * multiplication or division, which covers nearly everything FDB writes; anything else is handed to
+ * {@link Double#parseDouble}, so results are always correctly rounded.
+ *
+ * Instances hold scratch state and are not thread-safe.
+ */
+class TraceValueDecoder {
+
+    /**
+     * The number of leading components retained in {@link #getComponent(int)}.
+     */
+    static final int MAX_COMPONENTS = 3;
+
+    private static final long MAX_EXACT_SIGNIFICAND = 1L << 53;
+
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    private final double[] components = new double[MAX_COMPONENTS];
+
+    private int count;
+
+    /**
+     * Decodes a value, remembering its components.
+     *
+     * @return The last component of the value, which for counters is the running total.
+     * @throws NumberFormatException If the last component is not a number.  Other components that are not numbers
+     *                               are recorded as NaN.
+     */
+    double decode(CharSequence value, int start, int end) {
+        while (start < end && value.charAt(start) <= ' ') {
+            ++start;
+        }
+        while (end > start && value.charAt(end - 1) <= ' ') {
+            --end;
+        }
+        count = 0;
+        int componentStart = start;
+        for (int pos = start; pos < end; ++pos) {
+            if (value.charAt(pos) == ' ') {
+                if (pos > componentStart) {
+                    addComponent(leadingComponent(value, componentStart, pos));
+                }
+                componentStart = pos + 1;
+            }
+        }
+        // Only the last component is required to be a number.
+        double last = parseDouble(value, componentStart, end);
+        addComponent(last);
+        return last;
+    }
+
+    private void addComponent(double component) {
+        if (count < MAX_COMPONENTS) {
+            components[count] = component;
+        }
+        ++count;
+    }
+
+    private static double leadingComponent(CharSequence value, int start, int end) {
+        try {
+            return parseDouble(value, start, end);
+        } catch (NumberFormatException e) {
+            return Double.NaN;
+        }
+    }
+
+    double decode(String value) {
+        return decode(value, 0, value.length());
+    }
+
+    /**
+     * @return The number of components in the last decoded value: 1 for plain numbers and 3 for counters.
+     */
+    int getComponentCount() {
+        return count;
+    }
+
+    /**
+     * @param index The component index, less than both {@link #getComponentCount()} and {@link #MAX_COMPONENTS}.
+     * @return The component of the last decoded value.
+     */
+    double getComponent(int index) {
+        return components[index];
+    }
+
+    static double parseDouble(CharSequence value, int start, int end) {
+        int pos = start;
+        boolean negative = false;
+        if (pos < end && (value.charAt(pos) == '-' || value.charAt(pos) == '+')) {
+            negative = value.charAt(pos) == '-';
+            ++pos;
+        }
+        long significand = 0;
+        int digits = 0;
+        int exponent = 0;
+        boolean seenDigit = false;
+        boolean seenPoint = false;
+        for (; pos < end; ++pos) {
+            char ch = value.charAt(pos);
+            if (ch >= '0' && ch <= '9') {
+                seenDigit = true;
+                if (significand == 0 && ch == '0') {
+                    // Leading zeros are not significant.
+                    if (seenPoint) {
+                        --exponent;
+                    }
+                    continue;
+                }
+                if (++digits > 18) {
+                    return slowParse(value, start, end);
+                }
+                significand = significand * 10 + (ch - '0');
+                if (seenPoint) {
+                    --exponent;
+                }
+            } else if (ch == '.' && !seenPoint) {
+                seenPoint = true;
+            } else {
+                break;
+            }
+        }
+        if (!seenDigit) {
+            return slowParse(value, start, end);
+        }
+        if (pos < end) {
+            char ch = value.charAt(pos);
+            if (ch != 'e' && ch != 'E') {
+                return slowParse(value, start, end);
+            }
+            ++pos;
+            boolean negativeExponent = false;
+            if (pos < end && (value.charAt(pos) == '-' || value.charAt(pos) == '+')) {
+                negativeExponent = value.charAt(pos) == '-';
+                ++pos;
+            }
+            if (pos == end) {
+                return slowParse(value, start, end);
+            }
+            int explicit = 0;
+            for (; pos < end; ++pos) {
+                ch = value.charAt(pos);
+                if (ch < '0' || ch > '9' || explicit > 10_000) {
+                    return slowParse(value, start, end);
+                }
+                explicit = explicit * 10 + (ch - '0');
+            }
+            exponent += negativeExponent ? -explicit : explicit;
+        }
+        if (significand == 0) {
+            return negative ? -0.0 : 0.0;
+        }
+        if (significand > MAX_EXACT_SIGNIFICAND || exponent < -22 || exponent > 22) {
+            return slowParse(value, start, end);
+        }
+        double result = exponent < 0 ? significand / POWERS_OF_TEN[-exponent] :
+                significand * POWERS_OF_TEN[exponent];
+        return negative ? -result : result;
+    }
+
+    private static double slowParse(CharSequence value, int start, int end) {
+        return Double.parseDouble(value.subSequence(start, end).toString());
+    }
+}
@@ -0,0 +1,35 @@
+package com.wavefront.integrations;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * This class tests the compiled attribute rules.
+ */
+public class AttributeClassifierTest {
+
+    @Test
+    public void testPrefixAndExactGroups() {
+        AttributeClassifier classifier = AttributeClassifier.prefixes("Version", "Bytes")
+                .orPrefixes("CommittedVersion")
+                .orExact("Memory");
+        assertEquals(1, classifier.classify("Version"));
+        assertEquals(1, classifier.classify("VersionLag"));
+        assertEquals(1, classifier.classify("BytesQueried"));
+        assertEquals(2, classifier.classify("CommittedVersion"));
+        assertEquals(4, classifier.classify("Memory"));
+        assertEquals(0, classifier.classify("MemoryLimit"));
+        assertEquals(0, classifier.classify("Vers"));
+        assertEquals(0, classifier.classify("Type"));
+        // Cached results are stable.
+        assertEquals(1, classifier.classify("VersionLag"));
+    }
+
+    @Test
+    public void testOverlappingGroups() {
+        AttributeClassifier classifier = AttributeClassifier.prefixes("Mutation").orPrefixes("MutationBytes");
+        assertEquals(1, classifier.classify("Mutations"));
+        assertEquals(3, classifier.classify("MutationBytes"));
+    }
+}
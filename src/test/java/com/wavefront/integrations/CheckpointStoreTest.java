@@ -0,0 +1,141 @@
+package com.wavefront.integrations;
+
+import com.google.common.base.Charsets;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * This class tests saving and resuming read positions across restarts.
+ */
+public class CheckpointStoreTest {
+
+    private static final long CATCH_UP_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private TailingEngine engine;
+
+    private File stateFile;
+
+    @Before
+    public void setUp() throws IOException {
+        engine = new TailingEngine(1);
+        stateFile = new File(folder.getRoot(), "checkpoints");
+    }
+
+    @After
+    public void tearDown() {
+        engine.shutdown();
+    }
+
+    private static void append(File file, String content) throws IOException {
+        try (FileOutputStream out = new FileOutputStream(file, true)) {
+            out.write(content.getBytes(Charsets.UTF_8));
+        }
+    }
+
+    private static void awaitPosition(TailedFile tailedFile, long position) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (tailedFile.getPosition() != position && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(position, tailedFile.getPosition());
+    }
+
+    /**
+     * Tails the file from its end, reads one line, and saves the checkpoint.
+     */
+    private File tailAndCheckpoint() throws Exception {
+        File file = folder.newFile("trace.xml");
+        append(file, "<?xml version=\"1.0\"?>\n<Trace>\n");
+        CheckpointStore store = new CheckpointStore(stateFile, CATCH_UP_MILLIS);
+        TailedFile tailedFile = engine.tail(file, new NullListener(), store.startPosition(file));
+        store.track(tailedFile);
+        awaitPosition(tailedFile, file.length());
+        append(file, "read\n");
+        awaitPosition(tailedFile, file.length());
+        store.flush();
+        assertTrue(stateFile.exists());
+        assertEquals(file.length(), store.getCheckpoint(file).position);
+        tailedFile.stop();
+        return file;
+    }
+
+    @Test
+    public void testResumesFromCheckpoint() throws Exception {
+        File file = tailAndCheckpoint();
+        long checkpoint = file.length();
+        append(file, "written while down\n");
+
+        CheckpointStore store = new CheckpointStore(stateFile, CATCH_UP_MILLIS);
+        assertEquals(checkpoint, store.startPosition(file));
+    }
+
+    @Test
+    public void testIgnoresReplacedFile() throws Exception {
+        File file = tailAndCheckpoint();
+        assertTrue(file.delete());
+        append(file, "<?xml version=\"1.0\"?>\n<Trace>\nsomething else entirely\n");
+
+        CheckpointStore store = new CheckpointStore(stateFile, CATCH_UP_MILLIS);
+        assertEquals(TailedFile.FROM_END, store.startPosition(file));
+    }
+
+    @Test
+    public void testIgnoresCheckpointOutsideCatchUpWindow() throws Exception {
+        File file = tailAndCheckpoint();
+        Thread.sleep(20);
+
+        CheckpointStore store = new CheckpointStore(stateFile, 10);
+        assertEquals(TailedFile.FROM_END, store.startPosition(file));
+    }
+
+    @Test
+    public void testUnchangedPositionsAreNotRewritten() throws Exception {
+        File file = tailAndCheckpoint();
+        CheckpointStore store = new CheckpointStore(stateFile, CATCH_UP_MILLIS);
+        TailedFile tailedFile = engine.tail(file, new NullListener(), store.startPosition(file));
+        store.track(tailedFile);
+        awaitPosition(tailedFile, file.length());
+        store.flush();
+        long saved = stateFile.lastModified();
+        assertTrue(stateFile.setLastModified(saved - 1000));
+        store.flush();
+        assertEquals(saved - 1000, stateFile.lastModified());
+    }
+
+    private static class NullListener implements TailListener {
+
+        @Override
+        public void init(TailedFile tailedFile) {
+        }
+
+        @Override
+        public void fileNotFound() {
+        }
+
+        @Override
+        public void fileRotated() {
+        }
+
+        @Override
+        public void handle(CharSequence line) {
+        }
+
+        @Override
+        public void handle(Exception ex) {
+            throw new AssertionError(ex);
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package com.wavefront.integrations;
+
+import com.codahale.metrics.Counter;
+import com.google.common.collect.ImmutableMap;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * This class tests sending only the latest point of every series once per flush.
+ */
+public class CoalescingSenderTest {
+
+    private static final Map<String, String> TAGS = ImmutableMap.of("service", "fdbtailer");
+
+    @Test
+    public void testSendsLatestPointPerSeries() throws Exception {
+        RecordingWavefrontSender delegate = new RecordingWavefrontSender();
+        Counter coalesced = new Counter();
+        CoalescingSender sender = new CoalescingSender(delegate, 60_000, coalesced);
+        sender.sendMetric("a", 1, 1000L, null, TAGS);
+        sender.sendMetric("a", 2, 2000L, null, TAGS);
+        sender.sendMetric("a", 3, 1500L, null, TAGS);
+        sender.sendMetric("b", 4, 1000L, null, TAGS);
+        sender.sendMetric("b", 5, 1000L, null, ImmutableMap.of("service", "other"));
+        assertTrue(delegate.points.isEmpty());
+        assertEquals(3, sender.getPendingCount());
+
+        sender.flush();
+        assertEquals(3, delegate.points.size());
+        assertEquals(2, coalesced.getCount());
+        for (RecordingWavefrontSender.Point point : delegate.points) {
+            if (point.name.equals("a")) {
+                assertEquals(2, point.value, 0);
+                assertEquals(Long.valueOf(2000L), point.timestamp);
+            }
+        }
+
+        delegate.points.clear();
+        sender.flush();
+        assertTrue(delegate.points.isEmpty());
+    }
+
+    @Test
+    public void testUnstampedPointsReplaceEachOther() throws Exception {
+        RecordingWavefrontSender delegate = new RecordingWavefrontSender();
+        CoalescingSender sender = new CoalescingSender(delegate, 60_000, new Counter());
+        sender.sendMetric("a", 1, null, null, TAGS);
+        sender.sendMetric("a", 2, null, null, TAGS);
+        sender.close();
+        assertEquals(1, delegate.points.size());
+        assertEquals(2, delegate.points.get(0).value, 0);
+        assertNull(delegate.points.get(0).timestamp);
+    }
+
+    @Test
+    public void testForgetsIdleSeries() throws Exception {
+        RecordingWavefrontSender delegate = new RecordingWavefrontSender();
+        CoalescingSender sender = new CoalescingSender(delegate, 60_000, new Counter());
+        for (int i = 0; i < 5000; ++i) {
+            sender.sendMetric("m" + i, i, 1000L, null, TAGS);
+        }
+        sender.sendMetric("m0", -1, 2000L, null, ImmutableMap.of("service", "fdbtailer"));
+        assertEquals(5000, sender.getSeriesCount());
+        sender.flush();
+        assertEquals(5000, delegate.points.size());
+        assertEquals(0, sender.getPendingCount());
+
+        // Series without a point since the last flush are forgotten.
+        sender.sendMetric("m1", 1, 3000L, null, TAGS);
+        sender.flush();
+        assertEquals(1, sender.getSeriesCount());
+        sender.flush();
+        assertEquals(0, sender.getSeriesCount());
+        assertEquals(5001, delegate.points.size());
+    }
+
+    @Test
+    public void testKeepsLatestPointPerIntervalOfBacklog() throws Exception {
+        RecordingWavefrontSender delegate = new RecordingWavefrontSender();
+        Counter coalesced = new Counter();
+        CoalescingSender sender = new CoalescingSender(delegate, 60_000, coalesced);
+        // Ten minutes of points every 5 s, read in one go, as when catching up from a checkpoint.
+        for (long time = 0; time < 600_000; time += 5_000) {
+            sender.sendMetric("a", time, time, null, TAGS);
+        }
+        // A late point of an earlier interval is not held back.
+        sender.sendMetric("a", -1, 30_000L, null, TAGS);
+        sender.flush();
+
+        assertEquals(11, delegate.points.size());
+        for (int i = 0; i < 10; ++i) {
+            // Each interval's point is sent when the next interval's arrives, and the last one when flushed.
+            RecordingWavefrontSender.Point point = delegate.points.get(i < 9 ? i : 10);
+            assertEquals(i * 60_000 + 55_000, point.value, 0);
+            assertEquals(Long.valueOf(i * 60_000 + 55_000), point.timestamp);
+        }
+        assertEquals(-1, delegate.points.get(9).value, 0);
+        assertEquals(110, coalesced.getCount());
+    }
+
+    @Test
+    public void testConcurrentSenders() throws Exception {
+        RecordingWavefrontSender delegate = new RecordingWavefrontSender();
+        Counter coalesced = new Counter();
+        CoalescingSender sender = new CoalescingSender(delegate, 60_000, coalesced);
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; ++t) {
+            int thread = t;
+            threads.add(new Thread(() -> {
+                try {
+                    for (int round = 0; round < 100; ++round) {
+                        for (int i = 0; i < 1000; ++i) {
+                            sender.sendMetric("m" + thread + "." + i, round, 1000L + round, null, TAGS);
+                        }
+                    }
+                } catch (Exception e) {
+                    throw new AssertionError(e);
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(4000, sender.getPendingCount());
+        sender.flush();
+        assertEquals(4000, delegate.points.size());
+        for (RecordingWavefrontSender.Point point : delegate.points) {
+            assertEquals(99, point.value, 0);
+        }
+        assertEquals(4000 * 99, coalesced.getCount());
+    }
+}
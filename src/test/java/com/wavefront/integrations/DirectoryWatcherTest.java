@@ -0,0 +1,116 @@
+package com.wavefront.integrations;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.*;
+
+/**
+ * This class tests discovering trace files as they are created and deleted.
+ */
+public class DirectoryWatcherTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final BlockingQueue<String> events = new LinkedBlockingQueue<>();
+
+    private File directory;
+
+    private DirectoryWatcher watcher;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = folder.newFolder("logs");
+        watcher = new DirectoryWatcher(directory, Pattern.compile("trace\\..*\\.xml"),
+                new DirectoryWatcher.Handler() {
+                    @Override
+                    public void created(File file) {
+                        events.add("created " + file.getName());
+                    }
+
+                    @Override
+                    public void modified(File file) {
+                        events.add("modified " + file.getName());
+                    }
+
+                    @Override
+                    public void deleted(File file) {
+                        events.add("deleted " + file.getName());
+                    }
+
+                    @Override
+                    public void overflowed() {
+                        events.add("overflowed");
+                    }
+                }, 100);
+        watcher.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        watcher.close();
+    }
+
+    /**
+     * Waits for the given event, skipping any others; watch services differ in how they coalesce events.
+     */
+    private void awaitEvent(String expected) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 30_000;
+        String event;
+        do {
+            event = events.poll(deadline - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+            assertNotNull("Timed out waiting for " + expected, event);
+        } while (!event.equals(expected));
+    }
+
+    @Test
+    public void testReportsMatchingFiles() throws Exception {
+        File ignored = new File(directory, "other.log");
+        assertTrue(ignored.createNewFile());
+        File file = new File(directory, "trace.1.xml");
+        assertTrue(file.createNewFile());
+        awaitEvent("created trace.1.xml");
+        try (FileOutputStream out = new FileOutputStream(file, true)) {
+            out.write("<Trace>\n".getBytes());
+        }
+        awaitEvent("modified trace.1.xml");
+        assertTrue(file.delete());
+        assertTrue(ignored.delete());
+        awaitEvent("deleted trace.1.xml");
+        for (String event : events) {
+            assertFalse(event.contains("other.log"));
+        }
+    }
+
+    @Test
+    public void testWatchesReplacedDirectory() throws Exception {
+        assertTrue(directory.delete());
+        // While the directory cannot be watched, it is scanned instead.
+        awaitEvent("overflowed");
+        awaitEvent("overflowed");
+        assertTrue(directory.mkdir());
+        long deadline = System.currentTimeMillis() + 30_000;
+        String event;
+        int created = 0;
+        do {
+            // A file created before the directory is watched again is only found by the scan.
+            assertTrue(new File(directory, "trace." + created++ + ".xml").createNewFile());
+            event = events.poll(200, TimeUnit.MILLISECONDS);
+            while (event != null && !event.startsWith("created")) {
+                event = events.poll();
+            }
+        } while (event == null && System.currentTimeMillis() < deadline);
+        assertNotNull("Timed out waiting for the directory to be watched again", event);
+    }
+}
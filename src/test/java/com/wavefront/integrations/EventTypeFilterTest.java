@@ -0,0 +1,51 @@
+package com.wavefront.integrations;
+
+import com.google.common.base.Strings;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * This class tests telling the type and severity of trace events from their raw lines.
+ */
+public class EventTypeFilterTest {
+
+    private final EventTypeFilter filter = new EventTypeFilter(Arrays.asList("StorageMetrics", "Role", "MemSample"));
+
+    @Test
+    public void testCheck() {
+        assertEquals(EventTypeFilter.ACCEPTED,
+                filter.check("<Event Severity=\"10\" Time=\"1.5\" Type=\"StorageMetrics\" ID=\"1\" />"));
+        assertEquals(EventTypeFilter.ACCEPTED, filter.check("<Event Severity=\"10\" Type=\"MemSample\" />"));
+        assertEquals(EventTypeFilter.REJECTED, filter.check("<Event Severity=\"10\" Type=\"MemSampleSummary\" />"));
+        assertEquals(EventTypeFilter.REJECTED, filter.check("<Event Severity=\"10\" Type=\"Net2SlowTaskTrace\" />"));
+        assertEquals(EventTypeFilter.REJECTED, filter.check("<Event Severity=\"10\" Type=\"\" />"));
+        // A type attribute only counts as one when it is a whole attribute name.
+        assertEquals(EventTypeFilter.UNKNOWN, filter.check("<Event Severity=\"10\" SubType=\"Role\" />"));
+        assertEquals(EventTypeFilter.UNKNOWN, filter.check("<Event Severity=\"10\" Type=\"Role"));
+        assertEquals(EventTypeFilter.UNKNOWN, filter.check("<Event " + Strings.repeat("A=\"1\" ",
+                EventTypeFilter.SCAN_LIMIT / 6) + "Type=\"Role\" />"));
+    }
+
+    @Test
+    public void testCheckJson() {
+        assertEquals(EventTypeFilter.ACCEPTED,
+                filter.checkJson("{  \"Severity\": \"10\", \"Time\": \"1.5\", \"Type\": \"StorageMetrics\" }"));
+        assertEquals(EventTypeFilter.REJECTED,
+                filter.checkJson("{  \"Severity\": \"10\", \"Type\": \"MemSampleSummary\" }"));
+        assertEquals(EventTypeFilter.UNKNOWN, filter.checkJson("{  \"Severity\": \"10\", \"Type\": \"Ro\\u006ce\" }"));
+        assertEquals(EventTypeFilter.UNKNOWN, filter.checkJson("{\"Type\":\"Role\"}"));
+        assertEquals(20, EventTypeFilter.jsonSeverity("{  \"Severity\": \"20\", \"Type\": \"Role\" }"));
+        assertEquals(0, EventTypeFilter.jsonSeverity("<Event Severity=\"20\" />"));
+    }
+
+    @Test
+    public void testSeverity() {
+        assertEquals(10, EventTypeFilter.severity("<Event Severity=\"10\" Type=\"Role\" />"));
+        assertEquals(40, EventTypeFilter.severity("<Event Time=\"1.5\" Severity=\"40\" />"));
+        assertEquals(0, EventTypeFilter.severity("<Event Severity=\"high\" />"));
+        assertEquals(0, EventTypeFilter.severity("<Event Type=\"Role\" />"));
+    }
+}
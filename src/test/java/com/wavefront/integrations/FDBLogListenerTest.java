@@ -1,20 +1,26 @@
 package com.wavefront.integrations;
 
-import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Counter;
 import com.codahale.metrics.MetricRegistry;
 import com.codahale.metrics.SharedMetricRegistries;
-import com.google.common.cache.CacheBuilder;
-import com.google.common.cache.CacheLoader;
-import com.google.common.cache.LoadingCache;
-import com.google.common.util.concurrent.AtomicDouble;
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.Files;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 
 import static org.junit.Assert.*;
 
@@ -25,6 +31,9 @@ import static org.junit.Assert.*;
  */
 public class FDBLogListenerTest {
 
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
     private FDBLogListener listener;
 
     private String prefix = "fdb.trace.";
@@ -39,39 +48,23 @@ public class FDBLogListenerTest {
 
     private List<String> disabledMetrics = Arrays.asList("machineMetrics");
 
+    private String storageMetricsLine = "<Event Severity=\"10\" Time=\"1706276733.451520\" DateTime=\"2024-01-26T13:45:33Z\" Type=\"StorageMetrics\" ID=\"87e95f4ce1825556\" Elapsed=\"5\" QueryQueue=\"1533.8 8.17835 446121285\" VersionLag=\"135\" Machine=\"10.0.0.1:4500\" LogGroup=\"default\" Roles=\"SS\" />";
+
+    private MetricStore metrics;
+
+    private MetricStore values;
+
     static {
         SharedMetricRegistries.setDefault("defaultFDBMetrics", new MetricRegistry());
     }
 
     @Before
     public void setUp() {
+        metrics = new MetricStore(SharedMetricRegistries.getDefault(), prefix, true, 100_000, 15);
+        // Listeners with a sender do not publish gauges.
+        values = new MetricStore(SharedMetricRegistries.getDefault(), prefix, false, 100_000, 15);
 
-        LoadingCache<String, AtomicDouble> values = CacheBuilder.newBuilder().build(
-                new CacheLoader<String, AtomicDouble>() {
-                    @Override
-                    public AtomicDouble load(String key) {
-                        return new AtomicDouble();
-                    }
-                });
-
-        LoadingCache<String, Gauge<Double>> gauges = CacheBuilder.newBuilder().build(
-                new CacheLoader<String, Gauge<Double>>() {
-                    @Override
-                    public Gauge load(final String key) {
-                        return SharedMetricRegistries.getDefault().gauge(metricName(key),
-                                () -> new Gauge() {
-                                    AtomicDouble value = values.getUnchecked(key);
-
-                                    @Override
-                                    public Double getValue() {
-                                        return value.get();
-                                    }
-                                });
-                    }
-                }
-        );
-
-        listener = new FDBLogListener(prefix, values, gauges, null, serviceName, disabledMetrics);
+        listener = new FDBLogListener(prefix, metrics, null, serviceName, disabledMetrics);
     }
 
     @Test
@@ -81,7 +74,288 @@ public class FDBLogListenerTest {
         while ((line = br.readLine()) != null) {
             listener.handleLine(line);
         }
-        assertEquals(SharedMetricRegistries.getDefault().getMetrics().size(), 25);
+        // The shared registry also counts the event types other tests have seen.
+        int count = 0;
+        for (String name : SharedMetricRegistries.getDefault().getNames()) {
+            if (!name.startsWith(metricName("events."))) {
+                ++count;
+            }
+        }
+        assertEquals(31, count);
+    }
+
+    @Test
+    public void testCounterComponents() {
+        FDBLogListener listener = new FDBLogListener(prefix, values, new RecordingWavefrontSender(),
+                serviceName, disabledMetrics);
+        listener.handleLine(storageMetricsLine);
+        assertEquals(446121285, values.getValue(metricName("4500.query_queue")), 0);
+        assertEquals(135, values.getValue(metricName("4500.version_lag")), 0);
+        assertNull(values.getValue(metricName("4500.query_queue.rate")));
+
+        listener.setCounterComponents(true);
+        listener.handleLine(storageMetricsLine);
+        assertEquals(1533.8, values.getValue(metricName("4500.query_queue.rate")), 0);
+        assertEquals(8.17835, values.getValue(metricName("4500.query_queue.roughness")), 0);
+        assertNull(values.getValue(metricName("4500.version_lag.rate")));
+    }
+
+    @Test
+    public void testEventTime() {
+        RecordingWavefrontSender sender = new RecordingWavefrontSender();
+        FDBLogListener listener = new FDBLogListener(prefix, values, sender, serviceName, disabledMetrics);
+        listener.setEventTime(true);
+        listener.handleLine(storageMetricsLine);
+        boolean found = false;
+        for (RecordingWavefrontSender.Point point : sender.points) {
+            assertEquals(Long.valueOf(1706276733452L), point.timestamp);
+            if (point.name.equals(metricName("4500.query_queue"))) {
+                assertEquals(446121285, point.value, 0);
+                found = true;
+            }
+        }
+        assertTrue(found);
+    }
+
+    @Test
+    public void testWallClockPointsCarryTheirEventsValue() {
+        RecordingWavefrontSender sender = new RecordingWavefrontSender();
+        FDBLogListener listener = new FDBLogListener(prefix, values, sender, serviceName, disabledMetrics);
+        listener.setEventTime(false);
+        listener.handleLine(storageMetricsLine);
+        boolean found = false;
+        for (RecordingWavefrontSender.Point point : sender.points) {
+            assertNull(point.timestamp);
+            if (point.name.equals(metricName("4500.query_queue"))) {
+                assertEquals(446121285, point.value, 0);
+                found = true;
+            }
+        }
+        assertTrue(found);
+    }
+
+    @Test
+    public void testDateTimeWithoutTime() {
+        RecordingWavefrontSender sender = new RecordingWavefrontSender();
+        FDBLogListener listener = new FDBLogListener(prefix, values, sender, serviceName, disabledMetrics);
+        listener.handleLine(storageMetricsLine.replace("Time=\"1706276733.451520\" ", ""));
+        assertFalse(sender.points.isEmpty());
+        assertEquals(Long.valueOf(1706276733000L), sender.points.get(0).timestamp);
+    }
+
+    @Test
+    public void testLatePoints() {
+        RecordingWavefrontSender sender = new RecordingWavefrontSender();
+        FDBLogListener listener = new FDBLogListener(prefix, values, sender, serviceName, disabledMetrics);
+        listener.setMaxLateness(60_000, FDBMetricsReporterArguments.LatePointPolicy.DROP);
+        listener.handleLine(storageMetricsLine);
+        assertTrue(sender.points.isEmpty());
+        assertEquals(446121285, values.getValue(metricName("4500.query_queue")), 0);
+
+        String now = String.format(Locale.ROOT, "%.6f", System.currentTimeMillis() / 1000.0);
+        listener.handleLine(storageMetricsLine.replace("1706276733.451520", now));
+        assertFalse(sender.points.isEmpty());
+
+        sender.points.clear();
+        long before = System.currentTimeMillis();
+        listener.setMaxLateness(60_000, FDBMetricsReporterArguments.LatePointPolicy.CLAMP);
+        listener.handleLine(storageMetricsLine);
+        assertFalse(sender.points.isEmpty());
+        for (RecordingWavefrontSender.Point point : sender.points) {
+            assertTrue(point.timestamp >= before);
+        }
+    }
+
+    @Test
+    public void testSkipsEventsOfOtherTypes() {
+        Counter skipped = SharedMetricRegistries.getDefault().counter(metricName("skipped_lines"));
+        long before = skipped.getCount();
+        // Lines of other types are not parsed at all, so even a broken one goes unnoticed.
+        listener.handleLine("<Event Severity=\"10\" Time=\"1706276733.451520\" Type=\"Net2SlowTaskTrace\" Broken=\"");
+        listener.handleLine(storageMetricsLine.replace("StorageMetrics", "MachineMetrics"));
+        assertEquals(before + 2, skipped.getCount());
+        assertNull(metrics.getValue(metricName("machine.query_queue")));
+
+        listener.handleLine(storageMetricsLine);
+        assertEquals(before + 2, skipped.getCount());
+        assertEquals(446121285, metrics.getValue(metricName("4500.query_queue")), 0);
+    }
+
+    @Test
+    public void testSeverityCountsPerFile() throws Exception {
+        File file = folder.newFile("trace.xml");
+        Files.write("<?xml version=\"1.0\"?>\n<Trace>\n" + sampleLogLine + "\n" + storageMetricsLine + "\n" +
+                "<Event Severity=\"20\" Time=\"1706276733.451520\" Type=\"Net2SlowTaskTrace\" />\n" +
+                storageMetricsLine.replace("Severity=\"10\"", "Severity=\"40\"") + "\n", file, Charsets.UTF_8);
+        RecordingWavefrontSender sender = new RecordingWavefrontSender();
+        FDBLogListener listener = new FDBLogListener(prefix, values, sender, serviceName, disabledMetrics);
+        TailingEngine engine = new TailingEngine(1);
+        engine.replay(file, listener);
+        engine.awaitIdle();
+        engine.shutdown();
+
+        SeverityCounts counts = listener.getSeverityCounts();
+        assertEquals(2, counts.get(10));
+        assertEquals(1, counts.get(20));
+        assertEquals(0, counts.get(30));
+        assertEquals(1, counts.get(40));
+
+        sender.points.clear();
+        listener.sendSeverityCounts(1706276800000L);
+        assertEquals(SeverityCounts.LEVELS.length, sender.points.size());
+        for (RecordingWavefrontSender.Point point : sender.points) {
+            assertEquals(Long.valueOf(1706276800000L), point.timestamp);
+            assertEquals("trace.xml", point.tags.get("file"));
+            assertEquals("/etc/foundationdb/fdb.cluster", point.tags.get("cluster_file"));
+            if (point.name.equals(metricName("severity_10"))) {
+                assertEquals(2, point.value, 0);
+            }
+        }
+    }
+
+    @Test
+    public void testTailerMetrics() throws Exception {
+        File file = folder.newFile("trace.xml");
+        String content = "<?xml version=\"1.0\"?>\n<Trace>\n" + sampleLogLine + "\n" + storageMetricsLine + "\n" +
+                storageMetricsLine + "\n";
+        Files.write(content, file, Charsets.UTF_8);
+        Counter storageMetrics = SharedMetricRegistries.getDefault().counter(metricName("events.StorageMetrics"));
+        long before = storageMetrics.getCount();
+        RecordingWavefrontSender sender = new RecordingWavefrontSender();
+        FDBLogListener listener = new FDBLogListener(prefix, values, sender, serviceName, disabledMetrics);
+        assertEquals(-1, listener.getEventLagMillis(1706276800000L));
+        MetricRegistry registry = new MetricRegistry();
+        TailingEngine engine = new TailingEngine(1, registry, prefix);
+        engine.replay(file, listener);
+        engine.awaitIdle();
+        engine.shutdown();
+
+        assertEquals(before + 2, storageMetrics.getCount());
+        assertEquals(5, registry.meter(metricName("tailer.lines")).getCount());
+        assertEquals(content.length(), registry.meter(metricName("tailer.bytes")).getCount());
+        assertEquals(0, listener.getBytesBehind());
+        assertEquals(1706276800000L - 1706276733452L, listener.getEventLagMillis(1706276800000L));
+
+        sender.points.clear();
+        listener.sendFileMetrics(1706276800000L);
+        Map<String, Double> points = new HashMap<>();
+        for (RecordingWavefrontSender.Point point : sender.points) {
+            assertEquals("trace.xml", point.tags.get("file"));
+            points.put(point.name, point.value);
+        }
+        assertEquals(0, points.get(metricName("tailer.bytes_behind")), 0);
+        assertEquals(66548, points.get(metricName("tailer.event_lag_ms")), 0);
+    }
+
+    @Test
+    public void testJsonTraceFile() throws Exception {
+        File file = folder.newFile("trace.10.0.0.1.4500.1706276733.abcdef.1.json");
+        String storageMetrics = "{  \"Severity\": \"10\", \"Time\": \"1706276733.451520\", " +
+                "\"DateTime\": \"2024-01-26T13:45:33Z\", \"Type\": \"StorageMetrics\", \"ID\": \"87e95f4ce1825556\", " +
+                "\"Elapsed\": \"5\", \"QueryQueue\": \"1533.8 8.17835 446121285\", \"VersionLag\": \"135\", " +
+                "\"Machine\": \"10.0.0.1:4500\", \"LogGroup\": \"default\", \"Roles\": \"SS\" }\r\n";
+        Files.write("{  \"Severity\": \"10\", \"Time\": \"1706276733.1\", \"Type\": \"ClientStart\", " +
+                "\"Machine\": \"10.0.0.1:4500\", \"ClusterFile\": \"/etc/foundationdb/fdb.cluster\" }\r\n" +
+                "{  \"Severity\": \"20\", \"Time\": \"1706276733.2\", \"Type\": \"Net2SlowTaskTrace\" }\r\n" +
+                storageMetrics, file, Charsets.UTF_8);
+        RecordingWavefrontSender sender = new RecordingWavefrontSender();
+        FDBLogListener listener = new FDBLogListener(prefix, values, sender, serviceName, disabledMetrics);
+        TailingEngine engine = new TailingEngine(1);
+        engine.replay(file, listener);
+        engine.awaitIdle();
+        engine.shutdown();
+
+        assertEquals(2, listener.getSeverityCounts().get(10));
+        assertEquals(1, listener.getSeverityCounts().get(20));
+        boolean found = false;
+        for (RecordingWavefrontSender.Point point : sender.points) {
+            assertEquals(Long.valueOf(1706276733452L), point.timestamp);
+            assertEquals("/etc/foundationdb/fdb.cluster", point.tags.get("cluster_file"));
+            if (point.name.equals(metricName("4500.query_queue"))) {
+                assertEquals(446121285, point.value, 0);
+                found = true;
+            }
+        }
+        assertTrue(found);
+        assertEquals(135, values.getValue(metricName("4500.version_lag")), 0);
+    }
+
+    @Test
+    public void testJsonLinesMatchXml() {
+        RecordingWavefrontSender xml = new RecordingWavefrontSender();
+        new FDBLogListener(prefix, values, xml, serviceName, disabledMetrics).handleLine(storageMetricsLine);
+        RecordingWavefrontSender json = new RecordingWavefrontSender();
+        new FDBLogListener(prefix, values, json, serviceName, disabledMetrics).handleLine(
+                "{\"Severity\":\"10\",\"Time\":\"1706276733.451520\",\"Type\":\"StorageMetrics\"," +
+                        "\"QueryQueue\":\"1533.8 8.17835 446121285\",\"VersionLag\":\"135\"," +
+                        "\"Machine\":\"10.0.0.1:4500\"}");
+        assertFalse(json.points.isEmpty());
+        assertEquals(xml.points.size(), json.points.size());
+        for (int i = 0; i < xml.points.size(); ++i) {
+            assertEquals(xml.points.get(i).name, json.points.get(i).name);
+            assertEquals(xml.points.get(i).value, json.points.get(i).value, 0);
+        }
+    }
+
+    private Map<String, Double> handleWithRules(List<MetricRule> rules, String... lines) {
+        RecordingWavefrontSender sender = new RecordingWavefrontSender();
+        FDBLogListener listener = new FDBLogListener(prefix, values, sender, serviceName, Collections.emptyList(),
+                MetricRules.compile(rules));
+        for (String line : lines) {
+            listener.handleLine(line);
+        }
+        Map<String, Double> points = new HashMap<>();
+        for (RecordingWavefrontSender.Point point : sender.points) {
+            points.put(point.name, point.value);
+        }
+        return points;
+    }
+
+    @Test
+    public void testBuiltInRules() {
+        RecordingWavefrontSender sender = new RecordingWavefrontSender();
+        FDBLogListener listener = new FDBLogListener(prefix, values, sender, serviceName, Collections.emptyList());
+        listener.handleLine("<Event Severity=\"10\" Time=\"1706276734.7\" Type=\"RedwoodMetrics\" " +
+                "LookupGetRPF=\"919\" HitGetRPF=\"61\" Machine=\"10.0.0.1:4502\" />");
+        assertEquals(61, values.getValue(metricName("4502.hit_get_rpf")), 0);
+        listener.handleLine("<Event Severity=\"10\" Time=\"1706276734.2\" Type=\"MemSample\" Machine=\"0.0.0.0:0\" " +
+                "Count=\"133088\" TotalSize=\"545128448\" SampleCount=\"1\" Hash=\"FastAllocatedUnused4096\" />");
+        assertEquals(133088, values.getValue(metricName("memsample.fast_allocated_unused.4096.count")), 0);
+        assertNull(values.getValue(metricName("memsample.fast_allocated_unused.4096.sample_count")));
+        listener.handleLine("<Event Severity=\"10\" Time=\"1706276733.1\" Type=\"Role\" Machine=\"10.0.0.1:4500\" " +
+                "As=\"StorageServer\" Transition=\"Begin\" />");
+        assertEquals(1, values.getValue(metricName("4500.role.storage_server")), 0);
+    }
+
+    @Test
+    public void testRuleIncludeAndExclude() {
+        MetricRule rule = MetricRulesTest.rule("StorageMetrics", "storage.{port}", "Query*", "VersionLag",
+                "QueryQueue");
+        rule.setExclude(Arrays.asList("QueryQueueMax", "QueryTime*"));
+        Map<String, Double> points = handleWithRules(Collections.singletonList(rule),
+                "<Event Severity=\"10\" Time=\"1706276733.4\" Type=\"StorageMetrics\" QueryQueue=\"1 2 3\" " +
+                        "QueryQueueMax=\"35\" QueryTimeP99=\"4\" QueriesPerSecond=\"5\" VersionLag=\"135\" " +
+                        "Machine=\"10.0.0.1:4500\" />");
+        assertEquals(ImmutableMap.of(metricName("storage.4500.query_queue"), 3.0,
+                metricName("storage.4500.version_lag"), 135.0), points);
+    }
+
+    @Test
+    public void testRuleWhenAndValues() {
+        MetricRule rate = MetricRulesTest.rule("ProcessMetrics", "{Roles}.{*}", "Disk*");
+        rate.setWhen(ImmutableMap.of("Machine", "10.0.0.*"));
+        rate.setValue("rate");
+        MetricRule test = MetricRulesTest.rule("ProcessMetrics", "{port}");
+        test.setName("Overloaded");
+        test.setValue("Overloaded=true");
+        Map<String, Double> points = handleWithRules(Arrays.asList(rate, test),
+                "<Event Severity=\"10\" Time=\"1706276733.4\" Type=\"ProcessMetrics\" DiskReads=\"1.5 0.5 100\" " +
+                        "DiskQueueDepth=\"7\" Overloaded=\"true\" Roles=\"SS\" Machine=\"10.0.0.1:4500\" />",
+                "<Event Severity=\"10\" Time=\"1706276733.4\" Type=\"ProcessMetrics\" DiskReads=\"2.5 0.5 200\" " +
+                        "Roles=\"TL\" Machine=\"10.1.0.1:4501\" />");
+        // Plain numbers have no rate, and the second event's machine does not match.
+        assertEquals(ImmutableMap.of(metricName("SS.1:4500.disk_reads"), 1.5, metricName("4500.overloaded"), 1.0,
+                metricName("4501.overloaded"), 0.0), points);
     }
 
     @Test
@@ -91,6 +365,17 @@ public class FDBLogListenerTest {
         System.out.println(clusterFile);
     }
 
+    @Test
+    public void testHeaderClusterFile() {
+        byte[] header = ("<?xml version=\"1.0\"?>\n<Trace>\n" + sampleLogLine + "\n").getBytes(Charsets.UTF_8);
+        assertEquals("/etc/foundationdb/fdb.cluster", FDBLogListener.getClusterFile(header));
+        assertNull(FDBLogListener.getClusterFile(Arrays.copyOf(header, header.length - 400)));
+        assertNull(FDBLogListener.getClusterFile("<Trace>\n".getBytes(Charsets.UTF_8)));
+        assertEquals("/etc/foundationdb/fdb.cluster", FDBLogListener.getClusterFile(
+                "{  \"Type\": \"ClientStart\", \"ClusterFile\": \"/etc/foundationdb/fdb.cluster\" }\r\n"
+                        .getBytes(Charsets.UTF_8)));
+    }
+
     @Test
     public void testEcoder() {
         assertEquals("cpu_seconds", listener.encode("CPUSeconds"));
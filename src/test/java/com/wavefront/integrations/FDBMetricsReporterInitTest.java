@@ -71,6 +71,10 @@ public class FDBMetricsReporterInitTest {
         assertEquals(init.arguments.getServiceName(), serviceName);
         assertEquals(init.arguments.getReporterType(), type);
         assertEquals(init.arguments.getDisabledMetrics(), disabledMetrics);
+        assertEquals(1, init.arguments.getMetricRules().size());
+        assertEquals("StorageMetrics", init.arguments.getMetricRules().get(0).getType());
+        assertEquals(Arrays.asList("Query*", "VersionLag"), init.arguments.getMetricRules().get(0).getInclude());
+        MetricRules.compile(init.arguments.getMetricRules());
     }
 
     @Test
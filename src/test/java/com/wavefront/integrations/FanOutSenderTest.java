@@ -0,0 +1,181 @@
+package com.wavefront.integrations;
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.CharStreams;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * This class tests sending points to several endpoints without a slow or failing one holding back the others.
+ */
+public class FanOutSenderTest {
+
+    private static final Map<String, String> TAGS = ImmutableMap.of("service", "fdbtailer");
+
+    /**
+     * An endpoint that does not answer until it is released.
+     */
+    private static class StuckSender extends RecordingWavefrontSender {
+
+        final CountDownLatch released = new CountDownLatch(1);
+
+        @Override
+        public void sendMetric(String name, double value, Long timestamp, String source, Map<String, String> tags) {
+            try {
+                released.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            super.sendMetric(name, value, timestamp, source, tags);
+        }
+    }
+
+    /**
+     * An endpoint that fails a number of times before it recovers.
+     */
+    private static class FailingSender extends RecordingWavefrontSender {
+
+        int failures;
+
+        FailingSender(int failures) {
+            this.failures = failures;
+        }
+
+        @Override
+        public void flush() {
+            if (failures > 0) {
+                --failures;
+                points.clear();
+                throw new RuntimeException(new IOException("Endpoint unavailable"));
+            }
+        }
+    }
+
+    @Test
+    public void testSlowEndpointDoesNotHoldBackOthers() throws Exception {
+        MetricRegistry registry = new MetricRegistry();
+        RecordingWavefrontSender healthy = new RecordingWavefrontSender();
+        StuckSender stuck = new StuckSender();
+        FanOutSender sender = new FanOutSender(registry, "p.",
+                ImmutableMap.of("healthy", healthy, "stuck", stuck), 10, 5);
+        for (int i = 0; i < 100; ++i) {
+            sender.sendMetric("m", i, null, null, TAGS);
+            // Give the healthy endpoint the time to keep up.
+            if (i % 5 == 4) {
+                Thread.sleep(20);
+            }
+        }
+        try {
+            sender.flush();
+            fail("Flushed a stuck endpoint");
+        } catch (IOException e) {
+            assertEquals("Points are still queued for stuck", e.getMessage());
+        }
+        assertEquals(100, healthy.points.size());
+        assertEquals(0, registry.counter("p.endpoint.healthy.dropped").getCount());
+        assertEquals(0, sender.getQueueDepth("healthy"));
+
+        // The stuck endpoint holds one point in its batch and a full queue, and drops the rest.
+        assertEquals(10, sender.getQueueDepth("stuck"));
+        assertEquals(10, registry.getGauges().get("p.endpoint.stuck.queue_depth").getValue());
+        long dropped = registry.counter("p.endpoint.stuck.dropped").getCount();
+        assertTrue("Dropped " + dropped, dropped >= 100 - 10 - 5 && dropped <= 100 - 10 - 1);
+        assertTrue(registry.timer("p.endpoint.healthy.send_latency").getCount() > 0);
+
+        stuck.released.countDown();
+        sender.close();
+        assertEquals(100 - dropped, stuck.points.size());
+    }
+
+    @Test
+    public void testRetriesFailedBatches() throws Exception {
+        FailingSender failing = new FailingSender(1);
+        FanOutSender sender = new FanOutSender(new MetricRegistry(), "p.", ImmutableMap.of("failing", failing), 10,
+                10);
+        for (int i = 0; i < 3; ++i) {
+            sender.sendMetric("m", i, null, null, TAGS);
+        }
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (failing.points.size() < 3 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(3, failing.points.size());
+        sender.close();
+    }
+
+    @Test
+    public void testFlushWaitsForFailingEndpointToRecover() throws Exception {
+        FailingSender failing = new FailingSender(2);
+        RecordingWavefrontSender healthy = new RecordingWavefrontSender();
+        FanOutSender sender = new FanOutSender(new MetricRegistry(), "p.",
+                ImmutableMap.of("healthy", healthy, "failing", failing), 10, 10);
+        sender.setWaitForRecovery(true);
+        for (int i = 0; i < 3; ++i) {
+            sender.sendMetric("m", i, null, null, TAGS);
+        }
+        // The endpoint is retried after 1 and 2 seconds, while the flush waits for it.
+        sender.flush();
+        assertEquals(3, failing.points.size());
+        assertEquals(3, healthy.points.size());
+        sender.close();
+    }
+
+    @Test
+    public void testServerErrorsDoNotDuplicatePoints() throws Exception {
+        AtomicInteger errors = new AtomicInteger(2);
+        List<String> lines = Collections.synchronizedList(new ArrayList<>());
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/report", exchange -> {
+            String body = CharStreams.toString(new InputStreamReader(
+                    new GZIPInputStream(exchange.getRequestBody()), Charsets.UTF_8));
+            if (errors.getAndDecrement() > 0) {
+                exchange.sendResponseHeaders(503, -1);
+            } else {
+                Collections.addAll(lines, body.split("\n"));
+                exchange.sendResponseHeaders(202, -1);
+            }
+            exchange.close();
+        });
+        server.start();
+        try {
+            ReportingSender endpoint = new ReportingSender("http://token@127.0.0.1:" +
+                    server.getAddress().getPort(), "host");
+            MetricRegistry registry = new MetricRegistry();
+            FanOutSender sender = new FanOutSender(registry, "p.", ImmutableMap.of("stub", endpoint), 100, 100);
+            for (int i = 0; i < 10; ++i) {
+                sender.sendMetric("m" + i, i, 1706276733000L, null, TAGS);
+            }
+            long deadline = System.currentTimeMillis() + 20_000;
+            while (lines.size() < 10 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            sender.flush();
+            sender.close();
+
+            assertEquals(2, endpoint.getFailureCount());
+            assertEquals(10, lines.size());
+            for (int i = 0; i < 10; ++i) {
+                assertTrue(lines.get(i), lines.get(i).startsWith("\"m" + i + "\" " + i + ".0 1706276733000 "));
+            }
+            assertEquals(0, registry.counter("p.endpoint.stub.dropped").getCount());
+        } finally {
+            server.stop(0);
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package com.wavefront.integrations;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.google.common.base.Charsets;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * This class tests reading the events of JSON trace files.
+ */
+public class JsonTraceEventTest {
+
+    private JsonTraceEvent event;
+
+    @Before
+    public void setUp() {
+        event = new JsonTraceEvent();
+    }
+
+    private static Map<String, String> attributes(TraceEvent event) {
+        Map<String, String> attributes = new HashMap<>();
+        for (int i = 0; i < event.getAttributeCount(); ++i) {
+            attributes.put(event.getAttributeName(i), event.getAttributeValue(i));
+        }
+        return attributes;
+    }
+
+    /**
+     * @return The event as FDB writes it to a JSON trace file.
+     */
+    private static String toJson(TraceEvent event) throws IOException {
+        StringWriter writer = new StringWriter();
+        try (JsonGenerator generator = new JsonFactory().createGenerator(writer)) {
+            generator.writeStartObject();
+            for (int i = 0; i < event.getAttributeCount(); ++i) {
+                generator.writeStringField(event.getAttributeName(i), event.getAttributeValue(i));
+            }
+            generator.writeEndObject();
+        }
+        return writer + "\r";
+    }
+
+    @Test
+    public void testLogFileMatchesXml() throws Exception {
+        TraceLineScanner scanner = new TraceLineScanner();
+        BufferedReader br = new BufferedReader(new InputStreamReader(getClass().getResourceAsStream("fdb.log")));
+        String line;
+        while ((line = br.readLine()) != null) {
+            if (scanner.scan(line)) {
+                event.parse(toJson(scanner));
+                assertEquals(attributes(scanner), attributes(event));
+            }
+        }
+    }
+
+    @Test
+    public void testAttributeLookup() throws IOException {
+        event.parse("{  \"Severity\": \"10\", \"Type\": \"StorageMetrics\", " +
+                "\"QueryQueue\": \"1533.8 8.17835 446121285\" }");
+        assertEquals(3, event.getAttributeCount());
+        assertEquals("StorageMetrics", event.getAttribute("Type"));
+        assertEquals(2, event.indexOf("QueryQueue"));
+        assertNull(event.getAttribute("Query"));
+        TraceValueDecoder decoder = new TraceValueDecoder();
+        assertEquals(446121285, event.decodeAttributeValue(2, decoder), 0);
+        assertEquals(1533.8, decoder.getComponent(0), 0);
+        String type = event.getInternedAttribute("Type");
+        event.parse("{\"Type\":\"StorageMetrics\"}");
+        assertSame(type, event.getInternedAttribute("Type"));
+        assertEquals(1, event.getAttributeCount());
+    }
+
+    @Test
+    public void testValues() throws IOException {
+        event.parse("{\"Error\": \"say \\\"hi\\\" \\u00e9\", \"Count\": 42, \"Ok\": true, \"None\": null, " +
+                "\"Nested\": {\"A\": [1, 2]}, \"Time\": 1706276733.45}");
+        assertEquals("say \"hi\" \u00e9", event.getAttribute("Error"));
+        assertEquals("42", event.getAttribute("Count"));
+        assertEquals("true", event.getAttribute("Ok"));
+        assertNull(event.getAttribute("None"));
+        assertNull(event.getAttribute("Nested"));
+        assertEquals(1706276733.45, event.decodeAttributeValue(event.indexOf("Time"), new TraceValueDecoder()), 0);
+    }
+
+    @Test
+    public void testByteView() throws IOException {
+        String text = "{\"Type\": \"Role\", \"Machine\": \"h\u00f4te:4500\", \"Error\": \"caf\u00e9\"}";
+        byte[] bytes = text.getBytes(Charsets.UTF_8);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length + 2);
+        buffer.put((byte) 'x').put(bytes);
+        event.parse(new TraceLine().set(buffer, 1, bytes.length));
+        assertEquals("Role", event.getInternedAttribute("Type"));
+        assertEquals("h\u00f4te:4500", event.getInternedAttribute("Machine"));
+        assertEquals("caf\u00e9", event.getAttribute("Error"));
+    }
+
+    @Test
+    public void testRejectsMalformedLines() {
+        for (String line : new String[]{"{\"Type\": \"Role\"", "[\"Type\", \"Role\"]", "{\"Type\" \"Role\"}", "{"}) {
+            try {
+                event.parse(line);
+                fail(line);
+            } catch (IOException e) {
+                // Expected.
+            }
+        }
+    }
+}
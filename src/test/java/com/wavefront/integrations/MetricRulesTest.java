@@ -0,0 +1,55 @@
+package com.wavefront.integrations;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+/**
+ * This class tests compiling metric rules.
+ */
+public class MetricRulesTest {
+
+    static MetricRule rule(String type, String scope, String... include) {
+        MetricRule rule = new MetricRule();
+        rule.setType(type);
+        rule.setScope(scope);
+        rule.setInclude(include.length == 0 ? null : Arrays.asList(include));
+        return rule;
+    }
+
+    @Test
+    public void testDefaultRules() {
+        MetricRules rules = MetricRules.defaults();
+        assertTrue(rules.getTypes().containsAll(Arrays.asList("Role", "StorageMetrics", "RedwoodMetrics")));
+        assertEquals(2, rules.forType("MasterCommit").length);
+        assertNull(rules.forType("Net2SlowTaskTrace"));
+    }
+
+    @Test
+    public void testInvalidRules() {
+        assertInvalid(rule("Role", "{port}.role"), "Either attributes to include or a name is required");
+        assertInvalid(rule(null, "{port}", "CPU*"), "a type is required");
+        assertInvalid(rule("Role", null, "CPU*"), "A scope is required");
+        assertInvalid(rule("Role", "{port", "CPU*"), "Malformed placeholder");
+        assertInvalid(rule("Role", "{*}", "CPU*"), "{*} needs a when pattern ending in *");
+        MetricRule value = rule("Role", "{port}", "CPU*");
+        value.setValue("average");
+        assertInvalid(value, "Unknown value 'average'");
+        MetricRule name = rule("Role", "{port}.role");
+        name.setName("{As}");
+        assertInvalid(name, "A name needs a value test");
+    }
+
+    private static void assertInvalid(MetricRule rule, String message) {
+        try {
+            MetricRules.compile(Collections.singletonList(rule));
+            fail("Compiled an invalid rule");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains(message));
+            assertTrue(e.getMessage(), e.getMessage().startsWith("Metric rule 1"));
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package com.wavefront.integrations;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * This class tests the id-addressed metric store, evicting idle metric series and capping their number.
+ */
+public class MetricStoreTest {
+
+    private MetricRegistry registry;
+
+    @Before
+    public void setUp() {
+        registry = new MetricRegistry();
+    }
+
+    @Test
+    public void testValues() {
+        MetricStore store = new MetricStore(registry, "p.", false, 100_000, 2);
+        long[] references = new long[10_000];
+        for (int i = 0; i < references.length; ++i) {
+            references[i] = store.acquire("s" + i);
+            store.set(references[i], i * 0.5);
+        }
+        for (int i = 0; i < references.length; ++i) {
+            assertEquals(references[i], store.acquire("s" + i));
+            assertEquals(i * 0.5, store.get(references[i]), 0);
+            assertTrue(store.isLive(references[i]));
+        }
+        assertEquals(references.length, store.size());
+    }
+
+    @Test
+    public void testIdleSeriesAreEvictedAndDeregistered() {
+        MetricStore store = new MetricStore(registry, "p.", true, 100, 2);
+        long idle = store.acquire("idle");
+        long busy = store.acquire("busy");
+        store.set(idle, 1);
+        assertEquals(1.0, registry.getGauges().get("p.idle").getValue());
+
+        for (int i = 0; i < 3; ++i) {
+            store.set(busy, i);
+            store.sweep();
+        }
+        assertFalse(store.isLive(idle));
+        assertTrue(store.isLive(busy));
+        assertNull(registry.getGauges().get("p.idle"));
+        assertNotNull(registry.getGauges().get("p.busy"));
+        assertEquals(1, registry.counter("p.series_evicted").getCount());
+        assertEquals(1, store.size());
+
+        // A new series reuses the evicted slot, which the old reference must not mistake for its own.
+        long reused = store.acquire("other");
+        assertFalse(store.isLive(idle));
+        assertTrue(store.isLive(reused));
+        assertEquals(0, store.get(reused), 0);
+        assertFalse(store.set(idle, 42));
+        assertEquals(0, store.get(reused), 0);
+        assertEquals(0, store.get(idle), 0);
+        assertTrue(store.set(reused, 7));
+        assertEquals(7, store.get(reused), 0);
+
+        long revived = store.acquire("idle");
+        assertTrue(store.isLive(revived));
+        assertNotNull(registry.getGauges().get("p.idle"));
+    }
+
+    @Test
+    public void testCapRejectsNewSeriesAndRetainsBusiest() {
+        MetricStore store = new MetricStore(registry, "p.", false, 10, 100);
+        long[] references = new long[10];
+        for (int i = 0; i < references.length; ++i) {
+            references[i] = store.acquire("s" + i);
+        }
+        // Series are only ranked once they have been held for a whole sweep.
+        store.sweep();
+        assertEquals(10, store.size());
+        for (int i = 0; i < references.length; ++i) {
+            for (int update = 0; update <= i; ++update) {
+                store.set(references[i], update);
+            }
+        }
+        long rejected = store.acquire("new");
+        assertTrue(MetricStore.isRejected(rejected));
+        assertTrue(store.isCurrent(rejected));
+        assertTrue(MetricStore.isRejected(store.acquire("new")));
+        assertNull(store.getValue("new"));
+        // Rejected series are counted, not attempts.
+        assertEquals(1, registry.counter("p.series_rejected").getCount());
+
+        store.sweep();
+        assertEquals((int) (10 * MetricStore.RETAINED_FRACTION), store.size());
+        assertFalse(store.isLive(references[0]));
+        assertTrue(store.isLive(references[9]));
+        assertFalse(store.isCurrent(rejected));
+        assertFalse(MetricStore.isRejected(store.acquire("new")));
+        // A series evicted for the cap is kept out until the next sweep.
+        assertTrue(MetricStore.isRejected(store.acquire("s0")));
+        assertEquals(2, registry.counter("p.series_rejected").getCount());
+        store.sweep();
+        assertFalse(MetricStore.isRejected(store.acquire("s0")));
+    }
+
+    @Test
+    public void testNewSeriesAreNotRankedOutAtOnce() {
+        MetricStore store = new MetricStore(registry, "p.", false, 10, 100);
+        long[] references = new long[10];
+        for (int i = 0; i < references.length; ++i) {
+            references[i] = store.acquire("s" + i);
+        }
+        store.sweep();
+        for (int i = 0; i < references.length; ++i) {
+            store.set(references[i], i);
+        }
+        store.sweep();
+        assertEquals(9, store.size());
+        long admitted = store.acquire("new");
+        for (long reference : references) {
+            store.set(reference, 1);
+            store.set(reference, 2);
+        }
+        // The new series has had one update to the others' two, but has not been held for a whole sweep.
+        store.set(admitted, 1);
+        store.sweep();
+        assertTrue(store.isLive(admitted));
+        assertEquals(9, store.size());
+    }
+
+    @Test
+    public void testRejectedHandlesWaitForTheNextSweep() {
+        MetricStore store = new MetricStore(registry, "p.", false, 1, 100);
+        MetricNameCache names = new MetricNameCache("fdb.", store);
+        names.handle("4500", "QueryQueue");
+        MetricNameCache.MetricHandle rejected = names.handle("4500", "VersionLag");
+        long reference = rejected.reference();
+        assertTrue(MetricStore.isRejected(reference));
+        for (int i = 0; i < 100; ++i) {
+            assertSame(rejected, names.handle("4500", "VersionLag"));
+            assertEquals(reference, rejected.reference());
+        }
+        assertEquals(1, registry.counter("p.series_rejected").getCount());
+
+        store.sweep();
+        names.handle("4500", "VersionLag");
+        assertNotEquals(reference, rejected.reference());
+        assertEquals(2, registry.counter("p.series_rejected").getCount());
+    }
+
+    @Test
+    public void testHandlesReacquireEvictedSeries() {
+        MetricStore store = new MetricStore(registry, "p.", true, 100, 0);
+        MetricNameCache names = new MetricNameCache("fdb.", store);
+        MetricNameCache.MetricHandle handle = names.handle("4500", "QueryQueue");
+        store.sweep();
+        store.sweep();
+        assertFalse(store.isLive(handle.reference()));
+
+        handle = names.handle("4500", "QueryQueue");
+        assertTrue(store.isLive(handle.reference()));
+        store.set(handle.reference(), 42);
+        Gauge<?> gauge = registry.getGauges().get("p.fdb.4500.query_queue");
+        assertEquals(42.0, gauge.getValue());
+    }
+}
@@ -0,0 +1,252 @@
+package com.wavefront.integrations;
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.base.Charsets;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * This class tests handing tailed lines over to parse workers.
+ */
+public class ParsePipelineTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private TailingEngine engine;
+
+    private MetricRegistry registry;
+
+    @Before
+    public void setUp() {
+        engine = new TailingEngine(2);
+        registry = new MetricRegistry();
+    }
+
+    @After
+    public void tearDown() {
+        engine.shutdown();
+    }
+
+    private static class CollectingListener implements TailListener {
+
+        final List<String> lines = Collections.synchronizedList(new ArrayList<>());
+
+        final Set<Thread> threads = ConcurrentHashMap.newKeySet();
+
+        @Override
+        public void init(TailedFile tailedFile) {
+        }
+
+        @Override
+        public void fileNotFound() {
+        }
+
+        @Override
+        public void fileRotated() {
+        }
+
+        @Override
+        public void handle(CharSequence line) {
+            threads.add(Thread.currentThread());
+            lines.add(line.toString());
+        }
+
+        @Override
+        public void handle(Exception ex) {
+            throw new AssertionError(ex);
+        }
+    }
+
+    private static void append(File file, String content) throws IOException {
+        try (FileOutputStream out = new FileOutputStream(file, true)) {
+            out.write(content.getBytes(Charsets.UTF_8));
+        }
+    }
+
+    private static void awaitLines(CollectingListener listener, int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (listener.lines.size() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(count, listener.lines.size());
+    }
+
+    @Test
+    public void testKeepsEachFileInOrderOnOneWorker() throws Exception {
+        ParsePipeline pipeline = new ParsePipeline(3, 4, FDBMetricsReporterArguments.Backpressure.BLOCK, registry,
+                "p.");
+        List<CollectingListener> listeners = new ArrayList<>();
+        for (int i = 0; i < 10; ++i) {
+            File file = folder.newFile("trace." + i + ".xml");
+            StringBuilder content = new StringBuilder();
+            for (int line = 0; line < 20_000; ++line) {
+                content.append(i).append(':').append(line).append(" \u00e9\n");
+            }
+            append(file, content.toString());
+            CollectingListener listener = new CollectingListener();
+            engine.replay(file, pipeline.wrap(file.getPath(), listener));
+            listeners.add(listener);
+        }
+        for (int i = 0; i < listeners.size(); ++i) {
+            CollectingListener listener = listeners.get(i);
+            awaitLines(listener, 20_000);
+            for (int line = 0; line < 20_000; ++line) {
+                assertEquals(i + ":" + line + " \u00e9", listener.lines.get(line));
+            }
+            assertEquals(1, listener.threads.size());
+            assertTrue(listener.threads.iterator().next().getName().startsWith("fdb-parser-"));
+        }
+        assertEquals(0, registry.counter("p.pipeline.dropped_lines").getCount());
+        assertTrue(registry.timer("p.pipeline.parse_latency").getCount() > 0);
+        assertEquals(0, registry.getGauges().get("p.pipeline.queue_depth").getValue());
+    }
+
+    @Test
+    public void testDropsWhenWorkerFallsBehind() throws Exception {
+        ParsePipeline pipeline = new ParsePipeline(1, 1, FDBMetricsReporterArguments.Backpressure.DROP, registry,
+                "p.");
+        CountDownLatch released = new CountDownLatch(1);
+        CollectingListener listener = new CollectingListener() {
+            @Override
+            public void handle(CharSequence line) {
+                try {
+                    released.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                super.handle(line);
+            }
+        };
+        TailListener source = pipeline.wrap("trace.xml", listener);
+        source.init(new TailedFile(engine, new File("trace.xml"), source, 0, false));
+        // One batch is being handled, one is queued, and the rest have nowhere to go.
+        for (int poll = 0; poll < 5; ++poll) {
+            source.handle("line " + poll);
+            source.polled();
+            Thread.sleep(50);
+        }
+        assertEquals(3, registry.counter("p.pipeline.dropped_lines").getCount());
+        released.countDown();
+        awaitLines(listener, 2);
+        assertEquals(Arrays.asList("line 0", "line 1"), listener.lines);
+    }
+
+    @Test
+    public void testDrainWaitsForQueuedLines() throws Exception {
+        ParsePipeline pipeline = new ParsePipeline(2, 4, FDBMetricsReporterArguments.Backpressure.BLOCK, registry,
+                "p.");
+        CountDownLatch released = new CountDownLatch(1);
+        CollectingListener listener = new CollectingListener() {
+            @Override
+            public void handle(CharSequence line) {
+                try {
+                    released.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                super.handle(line);
+            }
+        };
+        TailListener source = pipeline.wrap("trace.xml", listener);
+        source.init(new TailedFile(engine, new File("trace.xml"), source, 0, false));
+        for (int poll = 0; poll < 3; ++poll) {
+            source.handle("line " + poll);
+            source.polled();
+        }
+        assertFalse(pipeline.drain(100, TimeUnit.MILLISECONDS));
+        released.countDown();
+        assertTrue(pipeline.drain(10, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("line 0", "line 1", "line 2"), listener.lines);
+    }
+
+    @Test
+    public void testHandledPositionFollowsTheWorker() throws Exception {
+        ParsePipeline pipeline = new ParsePipeline(1, 4, FDBMetricsReporterArguments.Backpressure.BLOCK, registry,
+                "p.");
+        CountDownLatch released = new CountDownLatch(1);
+        CollectingListener listener = new CollectingListener() {
+            @Override
+            public void handle(CharSequence line) {
+                try {
+                    released.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                super.handle(line);
+            }
+        };
+        File file = folder.newFile("trace.xml");
+        append(file, "line 0\nline 1\n");
+        TailedFile tailedFile = engine.tail(file, pipeline.wrap(file.getPath(), listener), 0);
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (tailedFile.getPosition() < file.length() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(file.length(), tailedFile.getPosition());
+        // The lines have been read, but not handled yet.
+        assertEquals(0, tailedFile.getHandledPosition());
+        released.countDown();
+        awaitLines(listener, 2);
+        assertTrue(pipeline.drain(10, TimeUnit.SECONDS));
+        assertEquals(file.length(), tailedFile.getHandledPosition());
+    }
+
+    @Test
+    public void testHandledPositionStopsAtDroppedLines() throws Exception {
+        ParsePipeline pipeline = new ParsePipeline(1, 1, FDBMetricsReporterArguments.Backpressure.DROP, registry,
+                "p.");
+        CountDownLatch released = new CountDownLatch(1);
+        CollectingListener listener = new CollectingListener() {
+            @Override
+            public void handle(CharSequence line) {
+                try {
+                    released.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                super.handle(line);
+            }
+        };
+        File file = folder.newFile("trace.xml");
+        TailedFile tailedFile = engine.tail(file, pipeline.wrap(file.getPath(), listener), 0);
+        // One batch is being handled, one is queued, and the rest have nowhere to go.
+        long handled = 0;
+        for (int poll = 0; poll < 5; ++poll) {
+            append(file, "line " + poll + "\n");
+            if (poll == 1) {
+                handled = file.length();
+            }
+            long deadline = System.currentTimeMillis() + 10_000;
+            while (tailedFile.getPosition() < file.length() && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            Thread.sleep(50);
+        }
+        assertTrue(registry.counter("p.pipeline.dropped_lines").getCount() > 0);
+        released.countDown();
+        assertTrue(pipeline.drain(10, TimeUnit.SECONDS));
+        assertEquals(handled, tailedFile.getHandledPosition());
+        append(file, "line 5\n");
+        Thread.sleep(200);
+        assertTrue(pipeline.drain(10, TimeUnit.SECONDS));
+        assertEquals(handled, tailedFile.getHandledPosition());
+    }
+}
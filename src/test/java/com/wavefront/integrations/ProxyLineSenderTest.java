@@ -0,0 +1,196 @@
+package com.wavefront.integrations;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Timer;
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.wavefront.sdk.common.Pair;
+import com.wavefront.sdk.common.Utils;
+import com.wavefront.sdk.entities.histograms.HistogramGranularity;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * This class tests sending points to a local stand-in for the proxy.
+ */
+public class ProxyLineSenderTest {
+
+    private static final Map<String, String> TAGS = ImmutableMap.of("service", "fdbtailer", "cluster_file",
+            "/etc/foundationdb/fdb.cluster");
+
+    private ServerSocket server;
+
+    private final BlockingQueue<String> lines = new LinkedBlockingQueue<>();
+
+    @Before
+    public void setUp() throws Exception {
+        server = new ServerSocket(0);
+        accept();
+    }
+
+    private void accept() {
+        ServerSocket current = server;
+        Thread acceptor = new Thread(() -> {
+            try {
+                while (true) {
+                    Socket socket = current.accept();
+                    Thread reader = new Thread(() -> sink(socket));
+                    reader.setDaemon(true);
+                    reader.start();
+                }
+            } catch (Exception e) {
+                // The server was closed.
+            }
+        });
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    private void sink(Socket socket) {
+        try (Socket ignored = socket) {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), Charsets.UTF_8));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lines.add(line);
+            }
+        } catch (Exception e) {
+            // The connection was closed.
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.close();
+    }
+
+    private String nextLine() throws InterruptedException {
+        String line = lines.poll(10, TimeUnit.SECONDS);
+        assertNotNull("Timed out waiting for a line", line);
+        return line;
+    }
+
+    @Test
+    public void testLineFormat() throws Exception {
+        Timer sendLatency = new Timer();
+        ProxyLineSender sender = new ProxyLineSender("localhost", server.getLocalPort(), "host-1", 60,
+                new Counter(), sendLatency);
+        sender.sendMetric("fdb.4500.query_queue", 446121285, 1706276733452L, null, TAGS);
+        sender.sendMetric("fdb.4500.version_lag", -135, null, null, TAGS);
+        sender.sendMetric("fdb.4500.cpu_seconds", 0.25, 1706276733452L, "other-host", TAGS);
+        sender.sendMetric("fdb.4500.quoted", 1e20, null, null, ImmutableMap.of("service", "fdb \"tailer\""));
+        assertEquals(4, sender.getQueueDepth());
+        sender.flush();
+        assertEquals(0, sender.getQueueDepth());
+        assertEquals(1, sendLatency.getCount());
+
+        assertEquals("\"fdb.4500.query_queue\" 446121285 1706276733452 source=\"host-1\" \"service\"=\"fdbtailer\" " +
+                "\"cluster_file\"=\"/etc/foundationdb/fdb.cluster\"", nextLine());
+        assertEquals("\"fdb.4500.version_lag\" -135 source=\"host-1\" \"service\"=\"fdbtailer\" " +
+                "\"cluster_file\"=\"/etc/foundationdb/fdb.cluster\"", nextLine());
+        // Values that are not whole numbers are written as the SDK writes them.
+        assertEquals(Utils.metricToLineData("fdb.4500.cpu_seconds", 0.25, 1706276733452L, "other-host", TAGS,
+                "host-1").trim(), nextLine());
+        assertEquals(Utils.metricToLineData("fdb.4500.quoted", 1e20, null, null,
+                ImmutableMap.of("service", "fdb \"tailer\""), "host-1").trim(), nextLine());
+        assertEquals(0, sender.getFailureCount());
+        sender.close();
+    }
+
+    @Test
+    public void testDistributionsAndSpans() throws Exception {
+        ProxyLineSender sender = new ProxyLineSender("localhost", server.getLocalPort(), "host-1", 60,
+                new Counter(), new Timer());
+        List<Pair<Double, Integer>> centroids = ImmutableList.of(new Pair<>(1.5, 3), new Pair<>(20.0, 1));
+        sender.sendDistribution("fdb.latency", centroids, ImmutableSet.of(HistogramGranularity.MINUTE),
+                1706276733452L, null, TAGS);
+        UUID traceId = UUID.fromString("7b3bf470-9456-11e8-9eb6-529269fb1459");
+        UUID spanId = UUID.fromString("0313bafe-9457-11e8-9eb6-529269fb1459");
+        sender.sendSpan("commit", 1706276733452L, 12, null, traceId, spanId, null, null,
+                ImmutableList.of(new Pair<>("service", "fdbtailer")), null);
+        sender.flush();
+
+        assertEquals(Utils.histogramToLineData("fdb.latency", centroids, ImmutableSet.of(HistogramGranularity.MINUTE),
+                1706276733452L, null, TAGS, "host-1").trim(), nextLine());
+        assertEquals(Utils.tracingSpanToLineData("commit", 1706276733452L, 12, null, traceId, spanId, null, null,
+                ImmutableList.of(new Pair<>("service", "fdbtailer")), null, "host-1").trim(), nextLine());
+        assertEquals(0, sender.getFailureCount());
+        sender.close();
+    }
+
+    @Test
+    public void testReconnects() throws Exception {
+        int port = server.getLocalPort();
+        server.close();
+        Counter dropped = new Counter();
+        ProxyLineSender sender = new ProxyLineSender("localhost", port, "host-1", 60, dropped, new Timer());
+        sender.sendMetric("fdb.dropped", 1, null, null, TAGS);
+        sender.flush();
+        assertEquals(1, sender.getFailureCount());
+        assertEquals(1, dropped.getCount());
+
+        server = new ServerSocket();
+        server.setReuseAddress(true);
+        server.bind(new InetSocketAddress(port));
+        accept();
+        sender.sendMetric("fdb.sent", 1, null, null, TAGS);
+        sender.flush();
+        assertTrue(nextLine().startsWith("\"fdb.sent\" 1 "));
+        assertEquals(1, sender.getFailureCount());
+        sender.close();
+    }
+
+    @Test
+    public void testProxyNotReading() throws Exception {
+        List<Socket> connections = new ArrayList<>();
+        try (ServerSocket stuck = new ServerSocket(0)) {
+            Thread acceptor = new Thread(() -> {
+                try {
+                    while (true) {
+                        // Accepted and never read from.
+                        connections.add(stuck.accept());
+                    }
+                } catch (Exception e) {
+                    // The server was closed.
+                }
+            });
+            acceptor.setDaemon(true);
+            acceptor.start();
+
+            Counter dropped = new Counter();
+            ProxyLineSender sender = new ProxyLineSender("localhost", stuck.getLocalPort(), "host-1", 60, dropped,
+                    new Timer(), 4, 500);
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            int sent = 0;
+            // Sending only fills buffers, which are dropped while the writer has them all, until a write times out.
+            while (sender.getFailureCount() == 0 && System.nanoTime() < deadline) {
+                sender.sendMetric("fdb.4500.query_queue", sent++, 1706276733452L, null, TAGS);
+            }
+            assertTrue(sender.getFailureCount() > 0);
+            assertTrue(dropped.getCount() > 0);
+            sender.close();
+            assertEquals(0, sender.getQueueDepth());
+        } finally {
+            for (Socket connection : connections) {
+                connection.close();
+            }
+        }
+    }
+}
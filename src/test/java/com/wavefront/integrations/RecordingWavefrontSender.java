@@ -0,0 +1,76 @@
+package com.wavefront.integrations;
+
+import com.wavefront.sdk.common.Pair;
+import com.wavefront.sdk.common.WavefrontSender;
+import com.wavefront.sdk.entities.histograms.HistogramGranularity;
+import com.wavefront.sdk.entities.tracing.SpanLog;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * A {@link WavefrontSender} that records the metrics sent to it, for tests.
+ */
+class RecordingWavefrontSender implements WavefrontSender {
+
+    static class Point {
+        final String name;
+        final double value;
+        final Long timestamp;
+        final String source;
+        final Map<String, String> tags;
+
+        Point(String name, double value, Long timestamp, String source, Map<String, String> tags) {
+            this.name = name;
+            this.value = value;
+            this.timestamp = timestamp;
+            this.source = source;
+            this.tags = tags;
+        }
+    }
+
+    final List<Point> points = Collections.synchronizedList(new ArrayList<>());
+
+    @Override
+    public void sendMetric(String name, double value, Long timestamp, String source, Map<String, String> tags) {
+        points.add(new Point(name, value, timestamp, source, tags));
+    }
+
+    @Override
+    public void sendFormattedMetric(String point) {
+    }
+
+    @Override
+    public void sendDistribution(String name, List<Pair<Double, Integer>> centroids,
+                                 Set<HistogramGranularity> histogramGranularities, Long timestamp, String source,
+                                 Map<String, String> tags) {
+    }
+
+    @Override
+    public void sendSpan(String name, long startMillis, long durationMillis, String source, UUID traceId,
+                         UUID spanId, List<UUID> parents, List<UUID> followsFrom, List<Pair<String, String>> tags,
+                         List<SpanLog> spanLogs) {
+    }
+
+    @Override
+    public String getClientId() {
+        return "recording";
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public int getFailureCount() {
+        return 0;
+    }
+
+    @Override
+    public void close() {
+    }
+}
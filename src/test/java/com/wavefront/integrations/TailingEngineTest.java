@@ -0,0 +1,253 @@
+package com.wavefront.integrations;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * This class tests tailing files with the multiplexed engine.
+ */
+public class TailingEngineTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private TailingEngine engine;
+
+    @Before
+    public void setUp() {
+        engine = new TailingEngine(2);
+    }
+
+    @After
+    public void tearDown() {
+        engine.shutdown();
+    }
+
+    private static class CollectingListener implements TailListener {
+
+        final List<String> lines = Collections.synchronizedList(new ArrayList<>());
+
+        TailedFile tailedFile;
+
+        @Override
+        public void init(TailedFile tailedFile) {
+            this.tailedFile = tailedFile;
+        }
+
+        @Override
+        public void fileNotFound() {
+            tailedFile.stop();
+        }
+
+        @Override
+        public void fileRotated() {
+        }
+
+        @Override
+        public void handle(CharSequence line) {
+            lines.add(line.toString());
+            if (line.toString().equals("stop")) {
+                tailedFile.stop();
+            }
+        }
+
+        @Override
+        public void handle(Exception ex) {
+            throw new AssertionError(ex);
+        }
+    }
+
+    private static void append(File file, String content) throws IOException {
+        try (FileOutputStream out = new FileOutputStream(file, true)) {
+            out.write(content.getBytes(Charsets.UTF_8));
+        }
+    }
+
+    private static void awaitLines(CollectingListener listener, int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (listener.lines.size() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(count, listener.lines.size());
+    }
+
+    @Test
+    public void testReadsCompleteLinesInOrder() throws Exception {
+        File file = folder.newFile("trace.xml");
+        append(file, "one\ntwo\r\nthr");
+        CollectingListener listener = new CollectingListener();
+        engine.tail(file, listener, false);
+        awaitLines(listener, 2);
+
+        append(file, "ee\nfour\n");
+        awaitLines(listener, 4);
+        assertEquals(Arrays.asList("one", "two", "three", "four"), listener.lines);
+    }
+
+    @Test
+    public void testFromEndSkipsExistingContent() throws Exception {
+        File file = folder.newFile("trace.xml");
+        append(file, "old\n");
+        CollectingListener listener = new CollectingListener();
+        engine.tail(file, listener, true);
+        Thread.sleep(100);
+        append(file, "new\n");
+        awaitLines(listener, 1);
+        assertEquals("new", listener.lines.get(0));
+    }
+
+    @Test
+    public void testListenerCanStopFile() throws Exception {
+        File file = folder.newFile("trace.xml");
+        append(file, "a\nstop\nafter\n");
+        CollectingListener listener = new CollectingListener();
+        engine.tail(file, listener, false);
+        awaitLines(listener, 2);
+        Thread.sleep(100);
+        assertEquals(Arrays.asList("a", "stop"), listener.lines);
+        assertEquals(0, engine.getActiveCount());
+    }
+
+    @Test
+    public void testReplayStopsAtEnd() throws Exception {
+        File file = folder.newFile("trace.xml");
+        append(file, "one\ntwo\n");
+        CollectingListener listener = new CollectingListener();
+        TailedFile tailedFile = engine.replay(file, listener);
+        engine.awaitIdle();
+        assertTrue(tailedFile.isStopped());
+        assertEquals(Arrays.asList("one", "two"), listener.lines);
+        assertEquals(file.length(), tailedFile.getPosition());
+    }
+
+    @Test
+    public void testManyFilesOnFewThreads() throws Exception {
+        List<CollectingListener> listeners = new ArrayList<>();
+        for (int i = 0; i < 20; ++i) {
+            File file = folder.newFile("trace." + i + ".xml");
+            CollectingListener listener = new CollectingListener();
+            engine.tail(file, listener, false);
+            listeners.add(listener);
+            StringBuilder content = new StringBuilder();
+            for (int line = 0; line < 1000; ++line) {
+                content.append(i).append(':').append(line).append('\n');
+            }
+            append(file, content.toString());
+        }
+        for (int i = 0; i < listeners.size(); ++i) {
+            CollectingListener listener = listeners.get(i);
+            awaitLines(listener, 1000);
+            for (int line = 0; line < 1000; ++line) {
+                assertEquals(i + ":" + line, listener.lines.get(line));
+            }
+        }
+    }
+
+    @Test
+    public void testDecodesMultiByteCharacters() throws Exception {
+        File file = folder.newFile("trace.xml");
+        append(file, "caf\u00e9\n\u65e5\u672c\n");
+        CollectingListener listener = new CollectingListener();
+        engine.tail(file, listener, false);
+        awaitLines(listener, 2);
+        assertEquals(Arrays.asList("caf\u00e9", "\u65e5\u672c"), listener.lines);
+    }
+
+    @Test
+    public void testCatchesUpOnLargeBacklog() throws Exception {
+        File file = folder.newFile("trace.xml");
+        int count = 200_000;
+        StringBuilder content = new StringBuilder();
+        for (int line = 0; line < count; ++line) {
+            content.append("line ").append(line).append(" padded to make the backlog large enough to map\n");
+        }
+        append(file, content.toString());
+        assertTrue(file.length() > 8 * 1024 * 1024);
+        append(file, "partial");
+
+        CollectingListener listener = new CollectingListener();
+        engine.tail(file, listener, false);
+        awaitLines(listener, count);
+        for (int line = 0; line < count; line += 997) {
+            assertEquals("line " + line + " padded to make the backlog large enough to map", listener.lines.get(line));
+        }
+
+        append(file, " line\n");
+        awaitLines(listener, count + 1);
+        assertEquals("partial line", listener.lines.get(count));
+    }
+
+    @Test
+    public void testLargeBacklogIsReadInBoundedPolls() throws Exception {
+        File file = folder.newFile("trace.xml");
+        String line = "a line of a backlog large enough to be mapped rather than read, padded to 100 bytes";
+        line = line + Strings.repeat(".", 99 - line.length()) + "\n";
+        int count = 300_000;
+        append(file, Strings.repeat(line, count));
+        assertTrue(file.length() > 16 * 1024 * 1024);
+
+        List<Integer> linesPerPoll = Collections.synchronizedList(new ArrayList<>());
+        CollectingListener listener = new CollectingListener() {
+            int lines;
+
+            @Override
+            public void handle(CharSequence line) {
+                ++lines;
+                super.handle(line);
+            }
+
+            @Override
+            public void polled() {
+                linesPerPoll.add(lines);
+                lines = 0;
+            }
+        };
+        engine.tail(file, listener, false);
+        awaitLines(listener, count);
+        int max = 0;
+        for (int lines : linesPerPoll) {
+            max = Math.max(max, lines);
+        }
+        // No poll frames much more than 4 MB, so other files get their turn.
+        assertTrue(max <= 4 * 1024 * 1024 / line.length() + 1);
+        assertTrue(linesPerPoll.size() >= 5);
+    }
+
+    @Test
+    public void testWaitsForEndOfLargePartialLine() throws Exception {
+        File file = folder.newFile("trace.xml");
+        append(file, Strings.repeat("x", 9 * 1024 * 1024));
+        AtomicInteger polls = new AtomicInteger();
+        CollectingListener listener = new CollectingListener() {
+            @Override
+            public void polled() {
+                polls.incrementAndGet();
+            }
+        };
+        engine.tail(file, listener, false);
+        Thread.sleep(500);
+        // Polled at the minimum delay, rather than mapping the partial line again and again.
+        assertTrue(polls.get() <= 500 / TailedFile.MIN_DELAY_MILLIS + 2);
+        assertTrue(listener.lines.isEmpty());
+
+        append(file, "\n");
+        awaitLines(listener, 1);
+        assertEquals(9 * 1024 * 1024, listener.lines.get(0).length());
+    }
+}
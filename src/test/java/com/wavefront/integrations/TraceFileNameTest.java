@@ -0,0 +1,57 @@
+package com.wavefront.integrations;
+
+import org.junit.Test;
+
+import java.io.File;
+
+import static org.junit.Assert.*;
+
+/**
+ * This class tests parsing FDB trace file names and ordering the files of a process.
+ */
+public class TraceFileNameTest {
+
+    private static final File DIR = new File("/var/log/foundationdb");
+
+    private static TraceFileName parse(String name) {
+        return TraceFileName.parse(new File(DIR, name));
+    }
+
+    @Test
+    public void testParse() {
+        TraceFileName name = parse("trace.10.0.0.1.4500.1555440637.AbCdEf.1.xml");
+        assertNotNull(name);
+        assertEquals(new File(DIR, "trace.10.0.0.1.4500").getPath(), name.getProcessKey());
+        assertEquals(1555440637, name.getTimestamp());
+        assertEquals(1, name.getSequence());
+
+        name = parse("trace.10.0.0.1.4500.1555440999.123456.json");
+        assertNotNull(name);
+        assertEquals(new File(DIR, "trace.10.0.0.1.4500").getPath(), name.getProcessKey());
+        assertEquals(1555440999, name.getTimestamp());
+        assertEquals(0, name.getSequence());
+
+        assertNull(parse("other.log"));
+        assertNull(parse("trace.10.0.0.1.4500.xml"));
+    }
+
+    @Test
+    public void testProcessKey() {
+        assertEquals(new File(DIR, "trace.10.0.0.1.4500").getPath(),
+                TraceFileName.processKey(new File(DIR, "trace.10.0.0.1.4500.1555440637.AbCdEf.1.xml")));
+        assertEquals(new File(DIR, "other.log").getPath(), TraceFileName.processKey(new File(DIR, "other.log")));
+    }
+
+    @Test
+    public void testChain() {
+        TraceFileName first = parse("trace.10.0.0.1.4500.1555440637.AbCdEf.1.xml");
+        TraceFileName second = parse("trace.10.0.0.1.4500.1555440637.AbCdEf.2.xml");
+        TraceFileName third = parse("trace.10.0.0.1.4500.1555441000.GhIjKl.1.xml");
+        TraceFileName otherProcess = parse("trace.10.0.0.1.4501.1555441000.GhIjKl.1.xml");
+        assertTrue(first.isFollowedBy(second));
+        assertTrue(second.isFollowedBy(third));
+        assertFalse(third.isFollowedBy(first));
+        assertFalse(first.isFollowedBy(first));
+        assertFalse(first.isFollowedBy(otherProcess));
+    }
+}
@@ -0,0 +1,114 @@
+package com.wavefront.integrations;
+
+import com.google.common.base.Charsets;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * This class tests the streaming trace line scanner against the DOM parser.
+ */
+public class TraceLineScannerTest {
+
+    private TraceLineScanner scanner;
+
+    @Before
+    public void setUp() {
+        scanner = new TraceLineScanner();
+    }
+
+    private static Map<String, String> attributes(TraceEvent event) {
+        Map<String, String> attributes = new HashMap<>();
+        for (int i = 0; i < event.getAttributeCount(); ++i) {
+            attributes.put(event.getAttributeName(i), event.getAttributeValue(i));
+        }
+        return attributes;
+    }
+
+    private void assertMatchesDom(String line) throws Exception {
+        assertTrue(line, scanner.scan(line));
+        assertEquals(attributes(DomTraceEvent.parse(line)), attributes(scanner));
+    }
+
+    @Test
+    public void testLogFileMatchesDom() throws Exception {
+        BufferedReader br = new BufferedReader(new InputStreamReader(getClass().getResourceAsStream("fdb.log")));
+        String line;
+        while ((line = br.readLine()) != null) {
+            assertMatchesDom(line);
+        }
+    }
+
+    @Test
+    public void testAttributeLookup() {
+        assertTrue(scanner.scan("<Event Severity=\"10\" Type=\"StorageMetrics\" QueryQueue=\"1533.8 8.17835 446121285\" />"));
+        assertEquals(3, scanner.getAttributeCount());
+        assertEquals("StorageMetrics", scanner.getAttribute("Type"));
+        assertEquals("1533.8 8.17835 446121285", scanner.getAttribute("QueryQueue"));
+        assertEquals(2, scanner.indexOf("QueryQueue"));
+        assertNull(scanner.getAttribute("Query"));
+        String severity = scanner.getAttributeName(0);
+        assertTrue(scanner.scan("<Event Severity=\"20\"/>"));
+        assertSame(severity, scanner.getAttributeName(0));
+    }
+
+    @Test
+    public void testUnescaping() throws Exception {
+        assertMatchesDom("<Event Type=\"Err\" Error=\"a &lt;b&gt; &amp; &quot;c&quot; &apos;d&apos;\" Char=\"&#65;&#x42;&#x1F600;\"/>");
+        assertMatchesDom("<Event Type='Err' Quoted='say \"hi\"' Tab=\"a\tb\"/>");
+        assertEquals("a <b> & \"c\" 'd'", scanned(
+                "<Event Error=\"a &lt;b&gt; &amp; &quot;c&quot; &apos;d&apos;\"/>").getAttribute("Error"));
+    }
+
+    @Test
+    public void testWhitespaceAndTrailingCarriageReturn() throws Exception {
+        assertMatchesDom("<Event  Severity = \"10\"\tType=\"Role\"/>\r");
+        assertMatchesDom("<Event/>");
+    }
+
+    @Test
+    public void testByteView() {
+        String text = "<Event Type=\"Role\" Machine=\"h\u00f4te:4500\" Error=\"caf\u00e9 &amp; th\u00e9\"/>";
+        byte[] bytes = text.getBytes(Charsets.UTF_8);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length + 2);
+        buffer.put((byte) 'x').put(bytes);
+        assertTrue(scanner.scan(new TraceLine().set(buffer, 1, bytes.length)));
+        assertEquals("Role", scanner.getInternedAttribute("Type"));
+        assertEquals("h\u00f4te:4500", scanner.getInternedAttribute("Machine"));
+        assertEquals("h\u00f4te:4500", scanner.getInternedAttribute("Machine"));
+        assertEquals("caf\u00e9 & th\u00e9", scanner.getAttribute("Error"));
+    }
+
+    @Test
+    public void testEscapedNonAsciiValueOnByteView() throws Exception {
+        String text = "<Event Type=\"Role\" Error=\"&quot;\u00e9&quot; \u00fc&#x20AC;\u20ac\" Plain=\"\u00e9\"/>";
+        byte[] bytes = text.getBytes(Charsets.UTF_8);
+        assertTrue(scanner.scan(new TraceLine().set(ByteBuffer.wrap(bytes), 0, bytes.length)));
+        assertEquals("\"\u00e9\" \u00fc\u20ac\u20ac", scanner.getAttribute("Error"));
+        assertEquals("\u00e9", scanner.getAttribute("Plain"));
+        assertEquals(DomTraceEvent.parse(text).getAttribute("Error"), scanner.getAttribute("Error"));
+    }
+
+    @Test
+    public void testRejectsLinesForDom() {
+        assertFalse(scanner.scan("<Event Severity=\"10\" Type=\"Role\""));
+        assertFalse(scanner.scan("<Event Severity=\"10\" Type=\"Role\">text</Event>"));
+        assertFalse(scanner.scan("<Event Severity=\"10\"Type=\"Role\"/>"));
+        assertFalse(scanner.scan("<Event Severity=10/>"));
+        assertFalse(scanner.scan("<Event Error=\"&unknown;\"/>"));
+        assertFalse(scanner.scan("<Event Error=\"a < b\"/>"));
+        assertFalse(scanner.scan("<Events Severity=\"10\"/>"));
+    }
+
+    private TraceLineScanner scanned(String line) {
+        assertTrue(scanner.scan(line));
+        return scanner;
+    }
+}
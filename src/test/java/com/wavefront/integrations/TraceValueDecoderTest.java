@@ -0,0 +1,53 @@
+package com.wavefront.integrations;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * This class tests decoding of numeric trace attribute values.
+ */
+public class TraceValueDecoderTest {
+
+    private final TraceValueDecoder decoder = new TraceValueDecoder();
+
+    @Test
+    public void testMatchesParseDouble() {
+        for (String value : new String[]{"0", "-1", "100", "5.0", "0.000123", "1402547147.206986", "3.63678e+06",
+                "2.8017e-06", "48820848276807", "18261086947468930259", "9007199254740993", "1e300", "4.9e-324",
+                "-0", "+7", ".5", "5.", "1E5", " 42 ", "NaN", "Infinity", "0x1p3"}) {
+            assertEquals(value, Double.parseDouble(value), decoder.decode(value), 0);
+            assertEquals(1, decoder.getComponentCount());
+        }
+    }
+
+    @Test
+    public void testCounterTriple() {
+        assertEquals(446121285, decoder.decode("1533.8 8.17835 446121285"), 0);
+        assertEquals(3, decoder.getComponentCount());
+        assertEquals(1533.8, decoder.getComponent(0), 0);
+        assertEquals(8.17835, decoder.getComponent(1), 0);
+        assertEquals(446121285, decoder.getComponent(2), 0);
+
+        assertEquals(0, decoder.decode("0 -1 0"), 0);
+        assertEquals(-1, decoder.getComponent(1), 0);
+    }
+
+    @Test
+    public void testDecodesRangeOfLine() {
+        String line = "QueryQueue=\"1533.8 8.17835 446121285\"";
+        assertEquals(446121285, decoder.decode(line, 12, line.length() - 1), 0);
+        assertEquals(3, decoder.getComponentCount());
+    }
+
+    @Test
+    public void testOnlyLastComponentMustBeNumeric() {
+        assertEquals(5, decoder.decode("abc 5"), 0);
+        assertTrue(Double.isNaN(decoder.getComponent(0)));
+    }
+
+    @Test(expected = NumberFormatException.class)
+    public void testNotANumber() {
+        decoder.decode("1 2 abc");
+    }
+}